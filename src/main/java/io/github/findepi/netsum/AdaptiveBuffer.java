@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A connection's packet buffer, borrowed from a {@link BufferPool} and sized to the packets seen. It grows
+ * at once for a larger packet, and shrinks after {@value #SHRINK_AFTER_PACKETS} packets in a row fit in a
+ * quarter of it, so that an occasional huge packet does not hold a huge buffer for the rest of the connection.
+ */
+final class AdaptiveBuffer
+{
+    static final int SHRINK_AFTER_PACKETS = 64;
+    private static final int SHRINK_RATIO = 4;
+
+    private final BufferPool bufferPool;
+    private ByteBuffer buffer;
+    private int smallPackets;
+    private int smallPacketsMaxLength;
+
+    public AdaptiveBuffer(BufferPool bufferPool)
+    {
+        this.bufferPool = requireNonNull(bufferPool, "bufferPool is null");
+    }
+
+    /**
+     * Returns a buffer for a packet of {@code length} bytes, with position 0 and limit {@code length}.
+     * The buffer is valid until the next call.
+     */
+    public ByteBuffer get(int length)
+    {
+        checkArgument(length >= 0, "Invalid length: %s", length);
+        if (buffer != null && length <= buffer.capacity() / SHRINK_RATIO) {
+            smallPackets++;
+            smallPacketsMaxLength = Math.max(smallPacketsMaxLength, length);
+            if (smallPackets >= SHRINK_AFTER_PACKETS) {
+                int size = smallPacketsMaxLength;
+                release();
+                buffer = bufferPool.borrow(size);
+            }
+        }
+        else {
+            smallPackets = 0;
+            smallPacketsMaxLength = 0;
+        }
+
+        if (buffer == null || buffer.capacity() < length) {
+            release();
+            buffer = bufferPool.borrow(length);
+        }
+        buffer.clear().limit(length);
+        return buffer;
+    }
+
+    public int capacity()
+    {
+        return buffer == null ? 0 : buffer.capacity();
+    }
+
+    /**
+     * Returns the buffer to the pool.
+     */
+    public void release()
+    {
+        if (buffer != null) {
+            bufferPool.release(buffer);
+            buffer = null;
+        }
+        smallPackets = 0;
+        smallPacketsMaxLength = 0;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import io.airlift.log.Logger;
+import org.weakref.jmx.Managed;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Locale.ENGLISH;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Limits the connections served at once, shared by all acceptors of a server. A connection over the limit is
+ * handled according to the {@link OverloadPolicy}, so that an overloaded server keeps serving the connections it
+ * took, instead of starting threads for every connection until it runs out of memory. A limit of 0 admits every
+ * connection.
+ */
+public final class AdmissionControl
+{
+    private static final Logger log = Logger.get(AdmissionControl.class);
+
+    private static final long REJECTION_LOG_INTERVAL_NANOS = SECONDS.toNanos(1);
+
+    public enum OverloadPolicy
+    {
+        /**
+         * Close connections over the limit right after accepting them.
+         */
+        REJECT,
+        /**
+         * Stop accepting until a connection ends, leaving new connections in the listen backlog of the kernel.
+         */
+        DELAY,
+        /**
+         * Keep connections over the limit, up to the queue limit, until a worker is done with a connection;
+         * reject those over the queue limit.
+         */
+        QUEUE;
+
+        public static OverloadPolicy fromString(String value)
+        {
+            return valueOf(value.toUpperCase(ENGLISH));
+        }
+    }
+
+    private final int maxConnections;
+    private final OverloadPolicy policy;
+    private final int queueLimit;
+
+    // guarded by this
+    private int running;
+    private final Queue<Runnable> queue = new ArrayDeque<>();
+    private long rejected;
+    private long queued;
+    private long delayedAccepts;
+    private long acceptDelayNanos;
+    private long rejectionsLogged;
+    private long rejectionLoggedNanos;
+
+    public AdmissionControl(int maxConnections, OverloadPolicy policy, int queueLimit)
+    {
+        checkArgument(maxConnections >= 0, "Invalid maxConnections: %s", maxConnections);
+        checkArgument(queueLimit >= 0, "Invalid queueLimit: %s", queueLimit);
+        this.maxConnections = maxConnections;
+        this.policy = requireNonNull(policy, "policy is null");
+        this.queueLimit = queueLimit;
+    }
+
+    /**
+     * Called by an acceptor before accepting a connection. Under the {@link OverloadPolicy#DELAY DELAY} policy,
+     * waits until there is room for one more connection.
+     */
+    public void awaitAccept()
+            throws InterruptedException
+    {
+        if (maxConnections == 0 || policy != OverloadPolicy.DELAY) {
+            return;
+        }
+        synchronized (this) {
+            if (running < maxConnections) {
+                return;
+            }
+            long start = System.nanoTime();
+            while (running >= maxConnections) {
+                wait();
+            }
+            delayedAccepts++;
+            acceptDelayNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Serves a connection accepted, running {@code connection} on {@code executor} if under the limit, or else
+     * according to the policy. Returns {@code false} if the connection is rejected, for the caller to close it,
+     * which includes {@code executor} rejecting it, e.g. when out of threads.
+     */
+    public boolean submit(Runnable connection, Executor executor)
+            throws InterruptedException
+    {
+        requireNonNull(connection, "connection is null");
+        if (maxConnections == 0) {
+            try {
+                executor.execute(connection);
+            }
+            catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    rejected++;
+                    logRejections();
+                }
+                return false;
+            }
+            return true;
+        }
+        synchronized (this) {
+            if (policy == OverloadPolicy.DELAY) {
+                // another acceptor may have taken the room waited for
+                while (running >= maxConnections) {
+                    wait();
+                }
+            }
+            if (running >= maxConnections) {
+                if (policy == OverloadPolicy.QUEUE && queue.size() < queueLimit) {
+                    queue.add(connection);
+                    queued++;
+                    return true;
+                }
+                rejected++;
+                logRejections();
+                return false;
+            }
+            running++;
+        }
+        try {
+            executor.execute(() -> serve(connection));
+        }
+        catch (RejectedExecutionException e) {
+            synchronized (this) {
+                running--;
+                rejected++;
+                logRejections();
+                notifyAll();
+            }
+            return false;
+        }
+        catch (RuntimeException e) {
+            synchronized (this) {
+                running--;
+                notifyAll();
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Runs {@code connection}, then the connections queued meanwhile, on this thread.
+     */
+    private void serve(Runnable connection)
+    {
+        Runnable next = connection;
+        while (next != null) {
+            try {
+                next.run();
+            }
+            finally {
+                synchronized (this) {
+                    next = queue.poll();
+                    if (next == null) {
+                        running--;
+                        notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    private void logRejections()
+    {
+        long now = System.nanoTime();
+        if (now - rejectionLoggedNanos < REJECTION_LOG_INTERVAL_NANOS && rejectionsLogged > 0) {
+            return;
+        }
+        log.warn("Rejected %s connections (limit %s, %s running, %s queued)", rejected - rejectionsLogged, maxConnections, running, queue.size());
+        rejectionsLogged = rejected;
+        rejectionLoggedNanos = now;
+    }
+
+    @Managed
+    public int getMaxConnections()
+    {
+        return maxConnections;
+    }
+
+    @Managed
+    public synchronized int getRunningConnections()
+    {
+        return running;
+    }
+
+    @Managed
+    public synchronized int getQueueDepth()
+    {
+        return queue.size();
+    }
+
+    @Managed
+    public synchronized long getTotalQueued()
+    {
+        return queued;
+    }
+
+    @Managed
+    public synchronized long getTotalRejected()
+    {
+        return rejected;
+    }
+
+    @Managed
+    public synchronized long getTotalDelayedAccepts()
+    {
+        return delayedAccepts;
+    }
+
+    @Managed
+    public synchronized long getAcceptDelayNanos()
+    {
+        return acceptDelayNanos;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Verify.verify;
+import static io.github.findepi.netsum.Io.readFully;
+import static io.github.findepi.netsum.Io.writeFully;
+import static io.github.findepi.netsum.ProtocolVersion.HELLO;
+import static io.github.findepi.netsum.Server.MAX_PACKET_LENGTH;
+import static io.github.findepi.netsum.Server.reverse;
+import static io.github.findepi.netsum.Server.verifyPacket;
+import static io.github.findepi.netsum.TransferStats.Phase.READ;
+import static io.github.findepi.netsum.TransferStats.Phase.REVERSE;
+import static io.github.findepi.netsum.TransferStats.Phase.VERIFY;
+import static io.github.findepi.netsum.TransferStats.Phase.WRITE;
+import static java.lang.String.format;
+import static java.nio.ByteOrder.BIG_ENDIAN;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Serves a connection in batches: reads as much as the client has sent, handles every complete packet read,
+ * and writes all their responses at once, so that a batch of small packets costs one read and one write
+ * system call rather than a few per packet. Packets too large for the buffer are handled one at a time.
+ */
+final class BatchingPacketHandler
+        implements Closeable
+{
+    private final BufferPool bufferPool;
+    private final ProtocolVersion supportedVersion;
+    private final TransferStats stats;
+    private final Throughput throughput;
+    // the pool may hand out larger buffers, only this much of them is used
+    private final int bufferSize;
+    private final ByteBuffer input;
+    private final ByteBuffer output;
+    private final AdaptiveBuffer largePacket;
+    // lengths of the responses in output
+    private int[] pending = new int[16];
+    private int pendingCount;
+
+    public BatchingPacketHandler(BufferPool bufferPool, int bufferSize, ProtocolVersion supportedVersion, TransferStats stats, Throughput throughput)
+    {
+        checkArgument(bufferSize >= 2 * Integer.BYTES, "Invalid bufferSize: %s", bufferSize);
+        this.bufferPool = requireNonNull(bufferPool, "bufferPool is null");
+        this.supportedVersion = requireNonNull(supportedVersion, "supportedVersion is null");
+        this.stats = requireNonNull(stats, "stats is null");
+        this.throughput = requireNonNull(throughput, "throughput is null");
+        this.bufferSize = bufferSize;
+        this.largePacket = new AdaptiveBuffer(bufferPool);
+        this.input = bufferPool.borrow(bufferSize).order(BIG_ENDIAN);
+        this.output = bufferPool.borrow(bufferSize).order(BIG_ENDIAN);
+        input.limit(bufferSize);
+        output.limit(bufferSize);
+    }
+
+    /**
+     * Serves packets read from {@code source}, writing the responses to {@code sink}, until the end of stream.
+     */
+    public void serve(ReadableByteChannel source, WritableByteChannel sink)
+            throws IOException
+    {
+        ProtocolVersion version = ProtocolVersion.V1;
+        while (true) {
+            long start = System.nanoTime();
+            if (source.read(input) < 0) {
+                if (input.position() > 0) {
+                    throw new EOFException(format("reached end of stream; %s bytes of an incomplete packet", input.position()));
+                }
+                return;
+            }
+            stats.addPhaseNanos(READ, System.nanoTime() - start);
+
+            input.flip();
+            while (input.remaining() >= Integer.BYTES) {
+                int position = input.position();
+                int length = input.getInt(position);
+                if (length == HELLO) {
+                    if (input.remaining() < 2 * Integer.BYTES) {
+                        break;
+                    }
+                    version = ProtocolVersion.negotiate(input.getInt(position + Integer.BYTES), supportedVersion);
+                    reserve(sink, Integer.BYTES);
+                    output.putInt(version.getId());
+                    input.position(position + 2 * Integer.BYTES);
+                    continue;
+                }
+                verify(length >= 0 && length <= MAX_PACKET_LENGTH, "invalid length: %s", length);
+                if (Integer.BYTES + length > bufferSize) {
+                    flush(sink);
+                    input.position(position + Integer.BYTES);
+                    handleLargePacket(source, sink, version, length);
+                    break;
+                }
+                if (input.remaining() < Integer.BYTES + length) {
+                    break;
+                }
+
+                ByteBuffer packet = input.duplicate();
+                packet.position(position + Integer.BYTES);
+                packet.limit(position + Integer.BYTES + length);
+                input.position(packet.limit());
+                handle(sink, version, packet);
+            }
+            input.compact();
+            input.limit(bufferSize);
+            flush(sink);
+        }
+    }
+
+    private void handle(WritableByteChannel sink, ProtocolVersion version, ByteBuffer packet)
+            throws IOException
+    {
+        int length = packet.remaining();
+        stats.addIn(length);
+        long start = System.nanoTime();
+        verifyPacket(version, packet, stats);
+        long verified = System.nanoTime();
+        stats.addPhaseNanos(VERIFY, verified - start);
+
+        reserve(sink, length);
+        // the packet is reversed where it was read, it is not needed afterwards
+        reverse(packet);
+        output.put(packet);
+        stats.addPhaseNanos(REVERSE, System.nanoTime() - verified);
+        if (pendingCount == pending.length) {
+            pending = Arrays.copyOf(pending, 2 * pending.length);
+        }
+        pending[pendingCount++] = length;
+    }
+
+    /**
+     * Handles a packet that does not fit in the input buffer, which is left empty.
+     */
+    private void handleLargePacket(ReadableByteChannel source, WritableByteChannel sink, ProtocolVersion version, int length)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        ByteBuffer packet = largePacket.get(length);
+        packet.put(input);
+        readFully(source, packet);
+        packet.flip();
+        long read = System.nanoTime();
+        stats.addPhaseNanos(READ, read - start);
+        stats.addIn(length);
+
+        verifyPacket(version, packet, stats);
+        long verified = System.nanoTime();
+        stats.addPhaseNanos(VERIFY, verified - read);
+        reverse(packet);
+        long reversed = System.nanoTime();
+        stats.addPhaseNanos(REVERSE, reversed - verified);
+
+        writeFully(sink, packet);
+        stats.addPhaseNanos(WRITE, System.nanoTime() - reversed);
+        stats.addOut(length);
+        throughput.add(length);
+    }
+
+    private void reserve(WritableByteChannel sink, int length)
+            throws IOException
+    {
+        if (output.remaining() < length) {
+            flush(sink);
+        }
+    }
+
+    private void flush(WritableByteChannel sink)
+            throws IOException
+    {
+        if (output.position() == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        output.flip();
+        writeFully(sink, output);
+        output.clear();
+        output.limit(bufferSize);
+        stats.addPhaseNanos(WRITE, System.nanoTime() - start);
+        for (int i = 0; i < pendingCount; i++) {
+            stats.addOut(pending[i]);
+            throughput.add(pending[i]);
+        }
+        pendingCount = 0;
+    }
+
+    @Override
+    public void close()
+    {
+        bufferPool.release(input);
+        bufferPool.release(output);
+        largePacket.release();
+    }
+}
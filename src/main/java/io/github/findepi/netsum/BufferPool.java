@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import com.google.common.collect.ImmutableList;
+import org.weakref.jmx.Managed;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Pool of direct buffers in power-of-two size classes. Buffers are borrowed sized to the data at hand
+ * and returned when no longer needed, so memory follows the data in flight rather than a fixed maximum.
+ * The free buffers kept for reuse are limited to a number of bytes, beyond which released buffers are
+ * dropped, so that a burst of large packets does not hold on to its peak memory for good.
+ */
+public final class BufferPool
+{
+    private static final int MIN_SIZE_CLASS = 12; // 4 KB
+    public static final long DEFAULT_MAX_BYTES_POOLED = 256 * 1024 * 1024;
+
+    private final int maxBufferSize;
+    private final long maxBytesPooled;
+    private final List<Queue<ByteBuffer>> free;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong bytesOutstanding = new AtomicLong();
+    private final AtomicLong bytesPooled = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+
+    public BufferPool(int maxBufferSize)
+    {
+        this(maxBufferSize, DEFAULT_MAX_BYTES_POOLED);
+    }
+
+    public BufferPool(int maxBufferSize, long maxBytesPooled)
+    {
+        checkArgument(maxBufferSize > 0, "Invalid maxBufferSize: %s", maxBufferSize);
+        checkArgument(maxBytesPooled >= 0, "Invalid maxBytesPooled: %s", maxBytesPooled);
+        this.maxBufferSize = maxBufferSize;
+        this.maxBytesPooled = maxBytesPooled;
+        ImmutableList.Builder<Queue<ByteBuffer>> free = ImmutableList.builder();
+        for (int i = 0; i <= sizeClass(maxBufferSize); i++) {
+            free.add(new ConcurrentLinkedQueue<>());
+        }
+        this.free = free.build();
+    }
+
+    /**
+     * Returns a cleared buffer with capacity of at least {@code size}.
+     */
+    public ByteBuffer borrow(int size)
+    {
+        checkArgument(size >= 0 && size <= maxBufferSize, "Invalid size: %s", size);
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = free.get(sizeClass).poll();
+        if (buffer == null) {
+            misses.increment();
+            buffer = ByteBuffer.allocateDirect(1 << sizeClass);
+        }
+        else {
+            hits.increment();
+            bytesPooled.addAndGet(-buffer.capacity());
+        }
+        bytesOutstanding.addAndGet(buffer.capacity());
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns {@code buffer} to the pool, or drops it, leaving it to the garbage collector, when the pool holds
+     * as many bytes as it may.
+     */
+    public void release(ByteBuffer buffer)
+    {
+        int sizeClass = sizeClass(buffer.capacity());
+        checkArgument(buffer.isDirect() && buffer.capacity() == 1 << sizeClass, "Buffer not from the pool: %s", buffer);
+        bytesOutstanding.addAndGet(-buffer.capacity());
+        long pooled;
+        do {
+            pooled = bytesPooled.get();
+            if (pooled + buffer.capacity() > maxBytesPooled) {
+                dropped.increment();
+                return;
+            }
+        }
+        while (!bytesPooled.compareAndSet(pooled, pooled + buffer.capacity()));
+        free.get(sizeClass).add(buffer);
+    }
+
+    @Managed
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    @Managed
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    @Managed
+    public long getBytesOutstanding()
+    {
+        return bytesOutstanding.get();
+    }
+
+    @Managed
+    public long getBytesPooled()
+    {
+        return bytesPooled.get();
+    }
+
+    @Managed
+    public long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    private static int sizeClass(int size)
+    {
+        if (size <= 1 << MIN_SIZE_CLASS) {
+            return MIN_SIZE_CLASS;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("hits", getHits())
+                .add("misses", getMisses())
+                .add("bytesOutstanding", getBytesOutstanding())
+                .add("bytesPooled", getBytesPooled())
+                .add("dropped", getDropped())
+                .toString();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import com.google.common.hash.Hashing;
+import io.airlift.slice.Slice;
+import io.airlift.slice.XxHash64;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+import static java.lang.invoke.MethodType.methodType;
+import static java.util.Locale.ENGLISH;
+
+/**
+ * Checksums of {@link ProtocolVersion#V2} packets, identified in the packet header. Each chunk checksum is
+ * computed with the chunk index as a seed, so that chunks cannot be swapped unnoticed.
+ */
+public enum ChecksumType
+{
+    /**
+     * No checksum, to measure the network without the cost of hashing.
+     */
+    NONE(0) {
+        @Override
+        public long checksum(long seed, Slice data, int offset, int length)
+        {
+            return 0;
+        }
+    },
+    XXHASH64(1) {
+        @Override
+        public long checksum(long seed, Slice data, int offset, int length)
+        {
+            return XxHash64.hash(seed, data, offset, length);
+        }
+    },
+    /**
+     * CRC32C, intrinsified on Java 9 and newer, with the seed in the upper 32 bits.
+     */
+    CRC32C(2) {
+        @Override
+        public long checksum(long seed, Slice data, int offset, int length)
+        {
+            return (seed << 32) ^ crc32c(data.toByteBuffer(offset, length));
+        }
+    };
+
+    private static final MethodHandle NEW_CRC32C = crc32cConstructorHandle();
+    private static final MethodHandle UPDATE_BYTE_BUFFER = updateByteBufferHandle();
+
+    private final int id;
+
+    ChecksumType(int id)
+    {
+        this.id = id;
+    }
+
+    public int getId()
+    {
+        return id;
+    }
+
+    public abstract long checksum(long seed, Slice data, int offset, int length);
+
+    public static ChecksumType fromId(int id)
+    {
+        return Arrays.stream(values())
+                .filter(type -> type.id == id)
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Unsupported checksum: " + id));
+    }
+
+    public static ChecksumType fromString(String value)
+    {
+        return valueOf(value.toUpperCase(ENGLISH));
+    }
+
+    static long crc32c(ByteBuffer data)
+    {
+        if (NEW_CRC32C == null || UPDATE_BYTE_BUFFER == null) {
+            // Java 8
+            return Hashing.crc32c().hashBytes(data).padToLong();
+        }
+        try {
+            Checksum checksum = (Checksum) NEW_CRC32C.invokeExact();
+            UPDATE_BYTE_BUFFER.invokeExact(checksum, data);
+            return checksum.getValue();
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // new java.util.zip.CRC32C(), Java 9+
+    private static MethodHandle crc32cConstructorHandle()
+    {
+        try {
+            Class<?> crc32c = Class.forName("java.util.zip.CRC32C");
+            return MethodHandles.publicLookup().findConstructor(crc32c, methodType(void.class))
+                    .asType(methodType(Checksum.class));
+        }
+        catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // Checksum.update(ByteBuffer), Java 9+
+    private static MethodHandle updateByteBufferHandle()
+    {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Checksum.class, "update", methodType(void.class, ByteBuffer.class));
+        }
+        catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import com.google.common.collect.ImmutableList;
+import io.airlift.slice.Slice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static io.airlift.slice.Slices.wrappedBuffer;
+import static io.github.findepi.netsum.Io.readFully;
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Packets of protocol version 2, with a checksum per fixed-size chunk of the payload, so that chunks can be verified
+ * in parallel, and as soon as they arrive. The layout is
+ * <ul>
+ * <li>version: 1 byte, always 2</li>
+ * <li>checksum: 1 byte, {@link ChecksumType#getId()}</li>
+ * <li>reserved: 2 bytes, zero</li>
+ * <li>chunk size: 4 bytes, big endian</li>
+ * <li>chunk checksums: 8 bytes each, big endian, seeded with the chunk index</li>
+ * <li>payload</li>
+ * </ul>
+ * The number of chunks follows from the packet length {@code L} and the chunk size {@code C}:
+ * {@code ceil((L - 8) / (C + 8))}. The last chunk may be shorter than the others, or empty. Packets of 9 to 15
+ * bytes leave no room for the checksum of their only chunk and are invalid.
+ */
+final class ChunkedPackets
+{
+    private ChunkedPackets() {}
+
+    public static final int VERSION = 2;
+    public static final int HEADER_LENGTH = 8;
+    public static final int MIN_CHUNK_SIZE = 1024;
+
+    private static final int CHECKSUM_LENGTH = 8;
+
+    public static void createPacket(byte[] buffer, int offset, int length, long seed, int chunkSize, ChecksumType checksum)
+    {
+        checkArgument(length >= HEADER_LENGTH, "Invalid length: %s", length);
+        checkArgument(chunkSize >= MIN_CHUNK_SIZE, "Invalid chunkSize: %s", chunkSize);
+
+        Layout layout = new Layout(checksum, chunkSize, length);
+        for (int i = offset + layout.payloadOffset(); i < offset + length; i++) {
+            buffer[i] = (byte) (i ^ seed);
+        }
+
+        Slice packet = wrappedBuffer(buffer, offset, length);
+        packet.setByte(0, VERSION);
+        packet.setByte(1, checksum.getId());
+        packet.setByte(2, 0);
+        packet.setByte(3, 0);
+        // Slice is little endian
+        packet.setInt(4, Integer.reverseBytes(chunkSize));
+        for (int chunk = 0; chunk < layout.chunks; chunk++) {
+            packet.setLong(HEADER_LENGTH + chunk * CHECKSUM_LENGTH, Long.reverseBytes(layout.checksum(packet, chunk)));
+        }
+    }
+
+    /**
+     * Verifies the packet between {@code packet}'s position and limit, without changing the position.
+     * Chunks are verified in parallel on {@code pool}.
+     */
+    public static void verifyPacket(ByteBuffer packet, ForkJoinPool pool)
+    {
+        checkArgument(packet.remaining() >= HEADER_LENGTH, "Packet too short: %s", packet.remaining());
+        Slice slice = wrappedBuffer(packet);
+        Layout layout = readHeader(slice);
+        if (layout.checksum == ChecksumType.NONE) {
+            return;
+        }
+        if (layout.chunks <= 1) {
+            for (int chunk = 0; chunk < layout.chunks; chunk++) {
+                verifyChunk(slice, layout, chunk);
+            }
+            return;
+        }
+
+        ImmutableList.Builder<ForkJoinTask<?>> tasks = ImmutableList.builder();
+        for (int chunk = 0; chunk < layout.chunks; chunk++) {
+            tasks.add(verifyChunkAsync(pool, slice, layout, chunk));
+        }
+        awaitAll(tasks.build());
+    }
+
+    /**
+     * Reads a packet of {@code packet.remaining()} bytes into {@code packet}, verifying each chunk on {@code pool}
+     * as soon as it is read. Returns once the packet is read and verified, without changing the position.
+     */
+    public static void readAndVerifyPacket(ReadableByteChannel channel, ByteBuffer packet, ForkJoinPool pool)
+            throws IOException
+    {
+        int length = packet.remaining();
+        checkArgument(length >= HEADER_LENGTH, "Packet too short: %s", length);
+        // the slice sees the data as it is read into the packet
+        Slice slice = wrappedBuffer(packet);
+        ByteBuffer target = packet.duplicate();
+
+        target.limit(packet.position() + HEADER_LENGTH);
+        readFully(channel, target);
+        Layout layout = readHeader(slice);
+        if (layout.checksum == ChecksumType.NONE) {
+            target.limit(packet.limit());
+            readFully(channel, target);
+            return;
+        }
+        target.limit(packet.position() + layout.payloadOffset());
+        readFully(channel, target);
+
+        ImmutableList.Builder<ForkJoinTask<?>> tasks = ImmutableList.builder();
+        boolean success = false;
+        try {
+            for (int chunk = 0; chunk < layout.chunks; chunk++) {
+                target.limit(packet.position() + layout.chunkEnd(chunk));
+                readFully(channel, target);
+                tasks.add(verifyChunkAsync(pool, slice, layout, chunk));
+            }
+            success = true;
+        }
+        finally {
+            if (!success) {
+                // do not look at the buffer once the caller has it back
+                tasks.build().forEach(task -> task.cancel(false));
+            }
+        }
+        awaitAll(tasks.build());
+    }
+
+    private static ForkJoinTask<?> verifyChunkAsync(ForkJoinPool pool, Slice packet, Layout layout, int chunk)
+    {
+        return pool.submit(() -> verifyChunk(packet, layout, chunk));
+    }
+
+    private static void awaitAll(List<ForkJoinTask<?>> tasks)
+    {
+        RuntimeException failure = null;
+        for (ForkJoinTask<?> task : tasks) {
+            try {
+                task.join();
+            }
+            catch (RuntimeException e) {
+                // wait for all the tasks, they read the caller's buffer
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static void verifyChunk(Slice packet, Layout layout, int chunk)
+    {
+        // Slice is little endian
+        long readChecksum = Long.reverseBytes(packet.getLong(HEADER_LENGTH + chunk * CHECKSUM_LENGTH));
+        long computedChecksum = layout.checksum(packet, chunk);
+        if (readChecksum != computedChecksum) {
+            throw new IllegalArgumentException(format(
+                    "Checksum failed: chunk %s of %s, %s: read %s, computed %s, packet length: %s",
+                    chunk,
+                    layout.chunks,
+                    layout.checksum,
+                    readChecksum,
+                    computedChecksum,
+                    packet.length()));
+        }
+    }
+
+    private static Layout readHeader(Slice packet)
+    {
+        int version = packet.getUnsignedByte(0);
+        checkArgument(version == VERSION, "Invalid packet version: %s", version);
+        ChecksumType checksum = ChecksumType.fromId(packet.getUnsignedByte(1));
+        checkArgument(packet.getByte(2) == 0 && packet.getByte(3) == 0, "Reserved header bytes are set");
+        int chunkSize = Integer.reverseBytes(packet.getInt(4));
+        checkArgument(chunkSize >= MIN_CHUNK_SIZE, "Invalid chunk size: %s", chunkSize);
+        return new Layout(checksum, chunkSize, packet.length());
+    }
+
+    static int chunkCount(int length, int chunkSize)
+    {
+        long chunks = (length - HEADER_LENGTH + (long) chunkSize + CHECKSUM_LENGTH - 1) / ((long) chunkSize + CHECKSUM_LENGTH);
+        // below 16 bytes, there is no room for the checksum
+        checkArgument(HEADER_LENGTH + chunks * CHECKSUM_LENGTH <= length, "Invalid packet length: %s", length);
+        return (int) chunks;
+    }
+
+    private static final class Layout
+    {
+        private final ChecksumType checksum;
+        private final int chunkSize;
+        private final int length;
+        private final int chunks;
+
+        Layout(ChecksumType checksum, int chunkSize, int length)
+        {
+            this.checksum = requireNonNull(checksum, "checksum is null");
+            this.chunkSize = chunkSize;
+            this.length = length;
+            this.chunks = chunkCount(length, chunkSize);
+        }
+
+        int payloadOffset()
+        {
+            return HEADER_LENGTH + chunks * CHECKSUM_LENGTH;
+        }
+
+        int chunkStart(int chunk)
+        {
+            return (int) Math.min(length, payloadOffset() + (long) chunk * chunkSize);
+        }
+
+        int chunkEnd(int chunk)
+        {
+            return chunkStart(chunk + 1);
+        }
+
+        long checksum(Slice packet, int chunk)
+        {
+            int start = chunkStart(chunk);
+            return checksum.checksum(chunk, packet, start, chunkEnd(chunk) - start);
+        }
+    }
+}
@@ -16,25 +16,66 @@ package io.github.findepi.netsum;
 import io.airlift.airline.Command;
 import io.airlift.airline.Option;
 import io.airlift.log.Logger;
+import io.airlift.slice.Slice;
+
+import javax.annotation.Nullable;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Verify.verify;
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.io.BaseEncoding.base16;
-import static com.google.common.io.ByteStreams.readFully;
+import static com.google.common.util.concurrent.Futures.getUnchecked;
 import static io.airlift.concurrent.Threads.daemonThreadsNamed;
+import static io.airlift.slice.Slices.wrappedBuffer;
+import static io.github.findepi.netsum.Io.decodeLong;
+import static io.github.findepi.netsum.Io.readFully;
+import static io.github.findepi.netsum.Io.transferFully;
 import static io.github.findepi.netsum.Io.writePacket;
+import static io.github.findepi.netsum.Io.writePackets;
+import static io.github.findepi.netsum.Jmx.objectName;
+import static io.github.findepi.netsum.Mirror.mismatch;
+import static io.github.findepi.netsum.Packets.HASH_LENGTH;
 import static io.github.findepi.netsum.Packets.createPacket;
+import static io.github.findepi.netsum.TransferStats.Phase.GENERATE;
+import static io.github.findepi.netsum.TransferStats.Phase.READ;
+import static io.github.findepi.netsum.TransferStats.Phase.VERIFY;
+import static io.github.findepi.netsum.TransferStats.Phase.WRITE;
+import static io.github.findepi.netsum.UdpServer.DATAGRAM_HEADER_LENGTH;
+import static io.github.findepi.netsum.UdpServer.MAX_DATAGRAM_LENGTH;
+import static io.github.findepi.netsum.VirtualThreads.newVirtualThreadPerTaskExecutor;
 import static java.lang.String.format;
+import static java.net.StandardSocketOptions.SO_RCVBUF;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 @Command(name = "client")
 public class Client
@@ -42,82 +83,899 @@ public class Client
 {
     private static final Logger log = Logger.get(Client.class);
 
-    @Option(name = {"-h", "--host"}, required = true)
+    private static final int RESPONSE_BUFFER_SIZE = 64 * 1024;
+    private static final long DATAGRAM_DRAIN_MILLIS = 500;
+
+    @Option(name = {"-h", "--host"}, description = "server host, required with tcp and udp unless --targets are given")
     public String host;
 
-    @Option(name = {"-p", "--port"}, required = true)
+    @Option(name = {"-p", "--port"}, description = "server port, required with tcp and udp unless --targets are given")
     public int port;
 
+    @Option(name = "--targets", description = "servers to spread the --threads connections over, instead of --host and --port: HOST:PORT[=WEIGHT],..., each getting at least one connection, and the rest in proportion to its weight, 1 by default; each is reported on its own, and slow ones are warned of")
+    public Targets targets;
+
+    @Option(name = "--transport", description = "tcp, udp (a datagram per packet, sent at --rate or --byte-rate, reporting loss, reordering and duplication) or shm (shared memory with a server on the same host, one connection at a time)")
+    public Transport transport = Transport.TCP;
+
+    @Option(name = "--shm-file", description = "file of the server's shared memory transport, required with shm")
+    public String shmFile;
+
     @Option(name = {"-t", "--threads"})
     public int threads = 1;
 
-    @Option(name = {"-s", "--size"}, description = "packet size")
-    private int packetLength = 100_000;
+    @Option(name = {"-s", "--size"}, description = "packet size in bytes, or a distribution of sizes: uniform:MIN-MAX, weighted:SIZE=WEIGHT,... or histogram:FILE, with a size and a count on each line")
+    private SizeDistribution packetSizes = SizeDistribution.fixed(100_000);
+
+    @Option(name = "--virtual-threads", description = "run connections on virtual threads (requires Java 21)")
+    public boolean virtualThreads;
+
+    @Option(name = "--pipeline", description = "number of packets in flight per connection")
+    public int pipeline = 1;
+
+    @Option(name = "--batch", description = "write up to this many packets in one system call, with --pipeline at least as large, and read responses in bulk")
+    public int batchSize = 1;
+
+    @Option(name = "--batch-delay", description = "maximum time, in microseconds, that a packet waits for more packets to fill its --batch")
+    public long batchDelayMicros;
+
+    @Option(name = "--rate", description = "send packets on a fixed schedule, at this many packets per second across all connections, and measure latency from the scheduled send times")
+    public double rate;
+
+    @Option(name = "--byte-rate", description = "like --rate, but in bytes per second")
+    public long byteRate;
+
+    @Option(name = "--protocol", description = "packet format to negotiate: v1 (one hash per packet) or v2 (one hash per chunk)")
+    public ProtocolVersion protocol = ProtocolVersion.V1;
+
+    @Option(name = "--checksum-chunk-size", description = "size of the separately checksummed chunks of v2 packets")
+    public int checksumChunkSize = 64 * 1024;
 
+    @Option(name = "--checksum", description = "checksum of v2 packets: xxhash64, crc32c or none")
+    public ChecksumType checksum = ChecksumType.XXHASH64;
+
+    @Option(name = "--packets-per-connection", description = "close the connection after this many packets and open a new one, to measure connection setup; 0 to keep connections open")
+    public long packetsPerConnection;
+
+    @Option(name = "--replay", description = "send the packets recorded by a server with --record FILE, over and over, straight from the capture files, instead of creating packets")
+    public String replay;
+
+    @Option(name = "--packet-ring", description = "send this many packets (2 to 256), created once at startup, in turn instead of creating every packet sent; 0 to create every packet")
+    public int packetRing;
+
+    @Option(name = "--duration", description = "stop after this many seconds, following the --warmup; 0 to run until killed")
+    public long durationSeconds;
+
+    @Option(name = "--warmup", description = "seconds to run before measuring the --result")
+    public long warmupSeconds;
+
+    @Option(name = "--result", description = "write the configuration and the totals of the run, after the warm-up, to this file at the end, also when killed")
+    public String result;
+
+    @Option(name = "--result-format", description = "format of the --result: json or csv")
+    public RunResult.Format resultFormat = RunResult.Format.JSON;
+
+    private final ConcurrentMap<PacketFormat, PacketRing> packetRings = new ConcurrentHashMap<>();
+    private final AtomicBoolean protocolWarned = new AtomicBoolean();
+    @Nullable
+    private TrafficCapture capture;
+    private final TransferStats stats = new TransferStats();
+    private final Jmx jmx = new Jmx();
+    private ExecutorService executorService;
     private Throughput throughout;
+    private ConnectStats connectStats;
+    private DatagramStats datagramStats;
+    // only when sizes vary
+    @Nullable
+    private SizeStats sizeStats;
+    @Nullable
+    private TargetMonitor targetMonitor;
+    // the beginning of the measured part of the run
+    private volatile RunResult.Totals measuredFrom;
+    private final AtomicBoolean finished = new AtomicBoolean();
 
     @Override
     public void run()
     {
         verify(threads > 0, "No threads: %s", threads);
-        verify(packetLength > 0, "Rogue packetLength: %s", packetLength);
+        verify(transport == Transport.SHM || targets != null || (host != null && port > 0), "host and port, or targets, are required with %s", transport);
+        verify(targets == null || (host == null && transport != Transport.SHM), "targets replace host and port, and do not apply to shm");
+        verify(targets == null || threads >= targets.getTargets().size(), "Fewer threads than targets: %s", threads);
+        verify(transport != Transport.SHM || (shmFile != null && threads == 1), "Shared memory requires shmFile and supports a single thread");
+        verify(packetSizes.getMin() > 0, "Rogue packet size: %s", packetSizes);
+        verify(pipeline > 0, "Rogue pipeline: %s", pipeline);
+        verify(batchSize > 0 && (batchSize == 1 || batchSize <= pipeline), "Rogue batchSize: %s, must be at most pipeline: %s", batchSize, pipeline);
+        verify(batchDelayMicros >= 0, "Rogue batchDelayMicros: %s", batchDelayMicros);
+        verify(rate >= 0, "Rogue rate: %s", rate);
+        verify(durationSeconds >= 0, "Rogue durationSeconds: %s", durationSeconds);
+        verify(warmupSeconds >= 0, "Rogue warmupSeconds: %s", warmupSeconds);
+        verify(byteRate >= 0, "Rogue byteRate: %s", byteRate);
+        verify(rate == 0 || byteRate == 0, "Only one of rate and byteRate can be set");
+        verify(checksumChunkSize >= ChunkedPackets.MIN_CHUNK_SIZE, "Rogue checksumChunkSize: %s", checksumChunkSize);
+        verify(protocol == ProtocolVersion.V2 || checksum == ChecksumType.XXHASH64, "Checksum can be chosen with protocol v2 only");
+        verify(packetsPerConnection >= 0, "Rogue packetsPerConnection: %s", packetsPerConnection);
+        verify(transport != Transport.UDP || rate > 0 || byteRate > 0, "UDP requires rate or byteRate");
+        verify(transport != Transport.UDP || (pipeline == 1 && batchSize == 1), "UDP does not support pipeline or batchSize, datagrams are sent at the rate set");
+        verify(transport != Transport.UDP || protocol == ProtocolVersion.V1, "UDP supports protocol v1 only");
+        verify(transport != Transport.UDP || packetSizes.getMax() <= MAX_DATAGRAM_LENGTH - DATAGRAM_HEADER_LENGTH, "Rogue packet size for UDP: %s", packetSizes);
+        verify(replay == null || (transport != Transport.UDP && packetRing == 0), "Replay does not support UDP or packetRing");
+        verify(packetRing == 0 || (packetRing >= 2 && packetRing <= PacketRing.MAX_SIZE), "Rogue packetRing: %s", packetRing);
+
+        if (replay != null) {
+            try {
+                capture = TrafficCapture.open(Paths.get(replay));
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            log.info("Replaying %s packets of protocol %s, %s to %s bytes, from %s segments",
+                    capture.getPackets(), capture.getVersion(), capture.getMinPacketLength(), capture.getMaxPacketLength(), capture.getSegments());
+        }
 
-        ExecutorService executorService = Executors.newCachedThreadPool(daemonThreadsNamed("client-%s"));
+        // only worth the cost when sizes vary
+        if (SizeStats.sizeBucket(minPacketLength()) != SizeStats.sizeBucket(maxPacketLength())) {
+            sizeStats = new SizeStats();
+        }
+
+        executorService = virtualThreads
+                ? newVirtualThreadPerTaskExecutor("client-")
+                : Executors.newCachedThreadPool(daemonThreadsNamed("client-%s"));
         throughout = new Throughput(executorService);
+        connectStats = new ConnectStats(executorService);
+        datagramStats = new DatagramStats(executorService);
+        measuredFrom = totals();
+        jmx.export(objectName(TransferStats.class, "client"), stats);
+        jmx.export(objectName(Throughput.class, "client"), throughout);
+        jmx.export(objectName(DatagramStats.class, "client"), datagramStats);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> finish(null)));
+        // the target group of each connection, if there are targets
+        List<TargetMonitor.TargetGroup> connectionGroups = null;
+        if (targets != null) {
+            TargetMonitor monitor = new TargetMonitor(targets, stats, executorService);
+            for (TargetMonitor.TargetGroup group : monitor.getGroups()) {
+                jmx.export(objectName(TransferStats.class, "client", "target", group.getTarget().toString()), group.getStats());
+            }
+            connectionGroups = targets.assign(threads).stream()
+                    .map(monitor::getGroup)
+                    .collect(toImmutableList());
+            targetMonitor = monitor;
+        }
         CompletionService<?> executor = new ExecutorCompletionService<>(executorService);
 
         for (int i = 0; i < threads; i++) {
-            executor.submit(this::work, null);
+            TargetMonitor.TargetGroup group = connectionGroups == null ? null : connectionGroups.get(i);
+            executor.submit(() -> work(group), null);
         }
 
+        Throwable error = null;
         try {
-            executor.take().get();
+            // the first connection to fail ends the run
+            Future<?> failed = null;
+            if (warmupSeconds > 0) {
+                failed = executor.poll(warmupSeconds, SECONDS);
+                if (failed == null) {
+                    measuredFrom = totals();
+                    log.info("Warm-up done");
+                }
+            }
+            if (failed == null) {
+                failed = durationSeconds > 0 ? executor.poll(durationSeconds, SECONDS) : executor.take();
+            }
+            if (failed != null) {
+                failed.get();
+            }
         }
         catch (InterruptedException e) {
             log.info("Interrupted");
+            finish(e);
             System.exit(1);
         }
         catch (ExecutionException e) {
+            error = e.getCause();
             throw new RuntimeException("Execution failed", e);
         }
+        finally {
+            finish(error);
+            if (capture != null) {
+                try {
+                    capture.close();
+                }
+                catch (IOException e) {
+                    log.warn(e, "Failed to close capture");
+                }
+            }
+        }
     }
 
-    private void work()
+    /**
+     * Reports the totals and writes the {@link #result}. Only the first call has effect, so that it can be called
+     * both at the end of the run and from a shutdown hook. Connections still running are left to end with the
+     * process.
+     */
+    private void finish(@Nullable Throwable error)
     {
-        byte[] workBuffer = new byte[42];
-        byte[] packetBuffer = new byte[packetLength];
-        byte[] responseBuffer = new byte[packetBuffer.length];
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        throughout.reportTotal();
+        connectStats.reportTotal();
+        datagramStats.reportTotal();
+        if (sizeStats != null) {
+            sizeStats.reportTotal();
+        }
+        if (targetMonitor != null) {
+            targetMonitor.reportTotal();
+        }
+        if (result != null) {
+            RunResult.Totals measured = totals().since(measuredFrom);
+            try {
+                RunResult.create(this, throughout, measured, error).write(Paths.get(result), resultFormat);
+                log.info("Result written to %s", result);
+            }
+            catch (IOException e) {
+                log.error(e, "Failed to write result to %s", result);
+            }
+        }
+    }
 
-        try (Socket socket = new Socket(host, port)) {
-            InputStream inputStream = socket.getInputStream();
-            OutputStream outputStream = socket.getOutputStream();
-            int round = 0;
-            while (true) {
-                createPacket(packetBuffer, 0, packetLength, round);
-                writePacket(outputStream, workBuffer, packetBuffer, 0, packetLength);
-                readFully(inputStream, responseBuffer, 0, packetLength);
-                verifyResponse(responseBuffer, 0, packetLength, packetBuffer, 0, packetLength);
+    private RunResult.Totals totals()
+    {
+        return RunResult.Totals.of(throughout, stats, connectStats, datagramStats);
+    }
 
-                throughout.add(packetLength);
-                round++;
+    /**
+     * Runs the connections of one thread, to the {@code group}'s target if given, otherwise to {@link #host}.
+     */
+    private void work(@Nullable TargetMonitor.TargetGroup group)
+    {
+        InetSocketAddress address = null;
+        if (group != null) {
+            address = group.getTarget().getAddress();
+        }
+        else if (transport != Transport.SHM) {
+            address = new InetSocketAddress(host, port);
+        }
+        TransferStats workStats = group == null ? stats : group.getStats();
+        // shared by the thread's connections, which may be short lived
+        LatencyHistogram latencies = throughout.newLatencyHistogram();
+        if (group != null) {
+            group.addLatencies(latencies);
+        }
+        Pacer pacer = newPacer();
+        do {
+            if (transport == Transport.UDP) {
+                runDatagrams(requireNonNull(address, "address is null"), latencies, requireNonNull(pacer, "pacer is null"), workStats);
+            }
+            else {
+                runConnection(address, latencies, pacer, workStats);
+            }
+        }
+        while (packetsPerConnection > 0);
+    }
+
+    /**
+     * Runs one connection, for {@link #packetsPerConnection} packets or until failure.
+     */
+    private void runConnection(@Nullable InetSocketAddress address, LatencyHistogram latencies, @Nullable Pacer pacer, TransferStats groupStats)
+    {
+        TransferStats connectionStats = groupStats.connectionOpened();
+        long packets = packetsPerConnection > 0 ? packetsPerConnection : Long.MAX_VALUE;
+        String objectName = null;
+        long connecting = System.nanoTime();
+        try (ByteChannel channel = connect(address)) {
+            long connected = System.nanoTime();
+            throughout.addConnection();
+            connectStats.recordConnect(connected - connecting);
+            // exporting every short lived connection would cost more than the connection itself
+            if (packetsPerConnection == 0) {
+                String localAddress = channel instanceof SocketChannel ? String.valueOf(((SocketChannel) channel).getLocalAddress()) : "shm:" + shmFile;
+                objectName = objectName(TransferStats.class, "client", localAddress);
+                jmx.export(objectName, connectionStats);
+            }
+            ProtocolVersion requested = capture == null ? protocol : capture.getVersion();
+            ProtocolVersion version = ProtocolVersion.request(channel, requested);
+            if (capture != null && version != requested) {
+                throw new IllegalStateException(format("Server does not support protocol %s of the capture", requested));
+            }
+            if (version != requested && protocolWarned.compareAndSet(false, true)) {
+                log.warn("Server does not support protocol %s, using %s", requested, version);
+            }
+            PacketFormat format = version == ProtocolVersion.V2 ? new PacketFormat(version, checksumChunkSize, checksum) : PacketFormat.V1;
+            PacketRing ring = packetRing == 0 ? null : packetRings.computeIfAbsent(format, this::newPacketRing);
+            if (capture != null) {
+                replay(channel, capture, packets, connecting, pacer, latencies, connectionStats);
+            }
+            else if (pipeline == 1) {
+                pingPong(channel, format, ring, packets, connecting, pacer, latencies, connectionStats);
+            }
+            else {
+                pipelined(channel, format, ring, packets, connecting, pacer, latencies, connectionStats);
             }
         }
         catch (IOException e) {
+            connectionStats.connectionFailed();
+            throw new RuntimeException(e);
+        }
+        catch (RuntimeException e) {
+            connectionStats.connectionFailed();
+            throw e;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
         }
+        finally {
+            connectionStats.connectionClosed();
+            if (objectName != null) {
+                jmx.unexport(objectName);
+            }
+        }
     }
 
-    private void verifyResponse(byte[] responseBuffer, int responseOffset, int responseLength, byte[] packetBuffer, int packetOffset, int packetLength)
+    private ByteChannel connect(@Nullable InetSocketAddress address)
+            throws IOException
     {
-        checkArgument(responseLength == packetLength, "Lengths off");
+        if (transport == Transport.SHM) {
+            return SharedMemoryTransport.connect(Paths.get(shmFile));
+        }
+        return SocketChannel.open(requireNonNull(address, "address is null"));
+    }
+
+    /**
+     * Sends {@link #packetsPerConnection} datagrams from one channel, on the pacer's schedule, while a separate
+     * receiver verifies the responses and tells lost, reordered and duplicated ones by their sequence numbers.
+     * Once all datagrams are sent, waits {@value #DATAGRAM_DRAIN_MILLIS} ms for the last responses, after which
+     * the missing ones count as lost.
+     */
+    private void runDatagrams(InetSocketAddress address, LatencyHistogram latencies, Pacer pacer, TransferStats groupStats)
+    {
+        TransferStats channelStats = groupStats.connectionOpened();
+        long packets = packetsPerConnection > 0 ? packetsPerConnection : Long.MAX_VALUE;
+        AtomicLong sent = new AtomicLong();
+        try {
+            DatagramChannel channel = DatagramChannel.open();
+            Future<?> receiver;
+            try {
+                channel.setOption(SO_RCVBUF, UdpServer.RECEIVE_BUFFER_SIZE);
+                channel.connect(address);
+                PacketRing ring = packetRing == 0 ? null : packetRings.computeIfAbsent(PacketFormat.V1, this::newPacketRing);
+                receiver = executorService.submit(() -> {
+                    receiveDatagrams(channel, sent, latencies, channelStats);
+                    return null;
+                });
+
+                ByteBuffer header = ByteBuffer.allocate(DATAGRAM_HEADER_LENGTH);
+                byte[] packetBuffer = ring == null ? new byte[packetSizes.getMax()] : null;
+                ByteBuffer[] datagram = new ByteBuffer[2];
+                Random random = ThreadLocalRandom.current();
+                // the sequence number is also the seed of the packet
+                for (long sequence = 0; sequence < packets && !receiver.isDone(); sequence++) {
+                    int length;
+                    if (ring == null) {
+                        long generating = System.nanoTime();
+                        length = packetSizes.next(random);
+                        createPacket(PacketFormat.V1, packetBuffer, 0, length, sequence);
+                        channelStats.addPhaseNanos(GENERATE, System.nanoTime() - generating);
+                    }
+                    else {
+                        packetBuffer = ring.packet(sequence);
+                        length = packetBuffer.length;
+                    }
+
+                    long sendNanos = pacer.awaitNext();
+                    header.clear();
+                    header.putLong(sequence).putLong(sendNanos).flip();
+                    datagram[0] = header;
+                    datagram[1] = ByteBuffer.wrap(packetBuffer, 0, length);
+                    // counted before sending, so that a response never arrives for a datagram not counted
+                    sent.incrementAndGet();
+                    datagramStats.addSent();
+                    long writing = System.nanoTime();
+                    channel.write(datagram);
+                    channelStats.addPhaseNanos(WRITE, System.nanoTime() - writing);
+                    channelStats.addOut(length);
+                }
+                if (!receiver.isDone()) {
+                    MILLISECONDS.sleep(DATAGRAM_DRAIN_MILLIS);
+                    // the next channel starts on schedule
+                    pacer.skipTo(System.nanoTime());
+                }
+            }
+            finally {
+                // also stops the receiver
+                channel.close();
+            }
+            getUnchecked(receiver);
+        }
+        catch (IOException e) {
+            channelStats.connectionFailed();
+            throw new RuntimeException(e);
+        }
+        catch (RuntimeException e) {
+            channelStats.connectionFailed();
+            throw e;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        finally {
+            channelStats.connectionClosed();
+        }
+    }
+
+    /**
+     * Receives and verifies responses to datagrams until the channel is closed, when those not received out of
+     * the {@code sent} ones are counted as lost.
+     */
+    private void receiveDatagrams(DatagramChannel channel, AtomicLong sent, LatencyHistogram latencies, TransferStats stats)
+            throws IOException
+    {
+        SequenceTracker tracker = new SequenceTracker();
+        byte[] responseBuffer = new byte[DATAGRAM_HEADER_LENGTH + packetSizes.getMax()];
+        ByteBuffer response = ByteBuffer.wrap(responseBuffer);
+        long reportedLost = 0;
+        long previousRoundTrip = -1;
+        while (true) {
+            response.clear();
+            long reading = System.nanoTime();
+            try {
+                channel.read(response);
+            }
+            catch (ClosedChannelException e) {
+                tracker.complete(sent.get());
+                datagramStats.addLost(tracker.getLost() - reportedLost);
+                return;
+            }
+            long read = System.nanoTime();
+            stats.addPhaseNanos(READ, read - reading);
+            int length = response.position() - DATAGRAM_HEADER_LENGTH;
+            verify(length >= HASH_LENGTH, "Response too short: %s", response.position());
+            stats.addIn(length);
+
+            long sequence = decodeLong(responseBuffer, 0);
+            long sendNanos = decodeLong(responseBuffer, Long.BYTES);
+            // the packet comes back reversed, reversing it again restores its hash
+            Server.reverse(responseBuffer, DATAGRAM_HEADER_LENGTH, length);
+            try {
+                Packets.verifyPacket(responseBuffer, DATAGRAM_HEADER_LENGTH, length);
+            }
+            catch (IllegalArgumentException e) {
+                stats.checksumFailed();
+                throw e;
+            }
+            long verified = System.nanoTime();
+            stats.addPhaseNanos(VERIFY, verified - read);
+
+            switch (tracker.record(sequence)) {
+                case DUPLICATE:
+                    datagramStats.addDuplicated();
+                    continue;
+                case LATE:
+                    continue;
+                case REORDERED:
+                    datagramStats.addReordered();
+                    break;
+                case IN_ORDER:
+                    break;
+            }
+            if (tracker.getLost() != reportedLost) {
+                datagramStats.addLost(tracker.getLost() - reportedLost);
+                reportedLost = tracker.getLost();
+            }
+
+            long roundTrip = verified - sendNanos;
+            recordLatency(latencies, length, roundTrip);
+            if (previousRoundTrip >= 0) {
+                datagramStats.recordDelayVariation(Math.abs(roundTrip - previousRoundTrip));
+            }
+            previousRoundTrip = roundTrip;
+            throughout.add(length);
+        }
+    }
+
+    private PacketRing newPacketRing(PacketFormat format)
+    {
+        long start = System.nanoTime();
+        PacketRing ring = new PacketRing(format, packetSizes, packetRing);
+        long nanos = System.nanoTime() - start;
+        stats.addPhaseNanos(GENERATE, nanos);
+        log.info("Created %s packets of %s bytes in %s ms", ring.size(), packetSizes, NANOSECONDS.toMillis(nanos));
+        return ring;
+    }
 
-        for (int i = 0; i < responseLength; i++) {
-            if (responseBuffer[responseOffset + i] != packetBuffer[packetOffset + packetLength - 1 - i]) {
-                RuntimeException exception = new RuntimeException(format("Malformed response at position %s", i));
-                exception.addSuppressed(new Exception(format("Sent: %s", base16().encode(packetBuffer, packetOffset, packetLength))));
-                exception.addSuppressed(new Exception(format("Recv: %s", base16().encode(responseBuffer, responseOffset, responseLength))));
-                throw exception;
+    /**
+     * Returns a pacer for one connection if sending is scheduled, {@code null} if every connection
+     * sends as fast as responses arrive.
+     */
+    @Nullable
+    private Pacer newPacer()
+    {
+        double meanPacketLength = capture == null ? packetSizes.getMean() : capture.getMeanPacketLength();
+        double packetsPerSecond = rate > 0 ? rate : byteRate / meanPacketLength;
+        if (packetsPerSecond == 0) {
+            return null;
+        }
+        long intervalNanos = Math.max(1, (long) (SECONDS.toNanos(1) * threads / packetsPerSecond));
+        // spread the connections' schedules over an interval, not to send in bursts
+        long startNanos = System.nanoTime() + ThreadLocalRandom.current().nextLong(intervalNanos);
+        return new Pacer(intervalNanos, startNanos);
+    }
+
+    /**
+     * Sends {@code packets} packets, each after the response to the previous one. The first response is timed
+     * from {@code connectingNanos}.
+     */
+    private void pingPong(ByteChannel channel, PacketFormat format, @Nullable PacketRing ring, long packets, long connectingNanos, @Nullable Pacer pacer, LatencyHistogram latencies, TransferStats stats)
+            throws IOException, InterruptedException
+    {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        byte[] packetBuffer = ring == null ? new byte[packetSizes.getMax()] : null;
+        byte[] responseBuffer = new byte[packetSizes.getMax()];
+        ByteBuffer response = ByteBuffer.wrap(responseBuffer);
+        Random random = ThreadLocalRandom.current();
+
+        for (long round = 0; round < packets; round++) {
+            int length;
+            if (ring == null) {
+                long generating = System.nanoTime();
+                length = packetSizes.next(random);
+                createPacket(format, packetBuffer, 0, length, round);
+                stats.addPhaseNanos(GENERATE, System.nanoTime() - generating);
+            }
+            else {
+                packetBuffer = ring.packet(round);
+                length = packetBuffer.length;
+            }
+
+            long start = pacer == null ? System.nanoTime() : pacer.awaitNext();
+            long writing = System.nanoTime();
+            writePacket(channel, header, ByteBuffer.wrap(packetBuffer, 0, length));
+            long written = System.nanoTime();
+            stats.addPhaseNanos(WRITE, written - writing);
+            stats.addOut(length);
+
+            response.clear().limit(length);
+            readFully(channel, response);
+            long read = System.nanoTime();
+            stats.addPhaseNanos(READ, read - written);
+            stats.addIn(length);
+
+            if (ring == null) {
+                verifyResponse(stats, responseBuffer, 0, length, packetBuffer, 0, length);
+            }
+            else {
+                verifyExpectedResponse(stats, responseBuffer, length, packetBuffer, ring.response(round));
+            }
+            long verified = System.nanoTime();
+            stats.addPhaseNanos(VERIFY, verified - read);
+            recordLatency(latencies, length, verified - start);
+            if (round == 0) {
+                connectStats.recordFirstResponse(verified - connectingNanos);
+            }
+
+            throughout.add(length);
+        }
+    }
+
+    /**
+     * Sends {@code packets} packets, keeping up to {@link #pipeline} in flight. This thread writes packets, while
+     * a separate reader verifies the responses, which the server sends back in order, against the packets sent.
+     * Packets are written in batches of up to {@link #batchSize}: a batch is written once full, or once its first
+     * packet has waited {@link #batchDelayMicros} for more packets to be ready or due. Returns once all responses
+     * are verified.
+     */
+    private void pipelined(ByteChannel channel, PacketFormat format, @Nullable PacketRing ring, long packets, long connectingNanos, @Nullable Pacer pacer, LatencyHistogram latencies, TransferStats stats)
+            throws IOException
+    {
+        BlockingQueue<PendingPacket> free = new ArrayBlockingQueue<>(pipeline);
+        BlockingQueue<PendingPacket> inFlight = new ArrayBlockingQueue<>(pipeline);
+        for (int i = 0; i < pipeline; i++) {
+            free.add(ring == null ? new PendingPacket(new byte[packetSizes.getMax()]) : new PendingPacket());
+        }
+
+        Thread writer = Thread.currentThread();
+        AtomicBoolean readerFailed = new AtomicBoolean();
+        Future<?> reader = executorService.submit(() -> {
+            try {
+                readResponses(channel, free, inFlight, packets, connectingNanos, latencies, stats);
+            }
+            catch (Throwable e) {
+                // unblock the writer, which then reports this failure rather than its own
+                readerFailed.set(true);
+                channel.close();
+                writer.interrupt();
+                throw e;
+            }
+            return null;
+        });
+
+        try {
+            // length headers and packet data, alternately
+            ByteBuffer[] buffers = new ByteBuffer[2 * batchSize];
+            for (int i = 0; i < batchSize; i++) {
+                buffers[2 * i] = ByteBuffer.allocate(4);
+            }
+            long batchDelayNanos = MICROSECONDS.toNanos(batchDelayMicros);
+            Random random = ThreadLocalRandom.current();
+            long round = 0;
+            while (round < packets) {
+                PendingPacket packet = free.take();
+                prepare(packet, format, ring, round++, random, stats);
+                packet.sendNanos = pacer == null ? System.nanoTime() : pacer.awaitNext();
+                inFlight.add(packet);
+                buffers[1] = ByteBuffer.wrap(packet.buffer, 0, packet.length);
+                int batch = 1;
+
+                long deadline = packet.sendNanos + batchDelayNanos;
+                while (batch < batchSize && round < packets && (pacer == null || pacer.peekNext() <= deadline)) {
+                    PendingPacket next = free.poll(Math.max(0, deadline - System.nanoTime()), NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    prepare(next, format, ring, round++, random, stats);
+                    next.sendNanos = pacer == null ? System.nanoTime() : pacer.awaitNext();
+                    inFlight.add(next);
+                    buffers[2 * batch + 1] = ByteBuffer.wrap(next.buffer, 0, next.length);
+                    batch++;
+                }
+
+                long writing = System.nanoTime();
+                writePackets(channel, buffers, batch);
+                stats.addPhaseNanos(WRITE, System.nanoTime() - writing);
+                for (int i = 0; i < batch; i++) {
+                    stats.addOut(buffers[2 * i + 1].limit());
+                    buffers[2 * i + 1] = null;
+                }
+            }
+            getUnchecked(reader);
+        }
+        catch (IOException | InterruptedException e) {
+            if (readerFailed.get()) {
+                // clear the interrupt coming from the reader, which may not have completed yet
+                Thread.interrupted();
+                getUnchecked(reader);
+            }
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new RuntimeException(e);
+        }
+        finally {
+            reader.cancel(true);
+        }
+    }
+
+    /**
+     * Sends {@code packets} packets of the capture, over and over, keeping up to {@link #pipeline} in flight, as
+     * {@link #pipelined} does. Frames go from the capture files to the channel with {@link FileChannel#transferTo},
+     * without being copied through the heap, consecutive frames of a batch in one call, and responses are verified
+     * against the mapped packets.
+     */
+    private void replay(ByteChannel channel, TrafficCapture capture, long packets, long connectingNanos, @Nullable Pacer pacer, LatencyHistogram latencies, TransferStats stats)
+            throws IOException
+    {
+        BlockingQueue<PendingPacket> free = new ArrayBlockingQueue<>(pipeline);
+        BlockingQueue<PendingPacket> inFlight = new ArrayBlockingQueue<>(pipeline);
+        for (int i = 0; i < pipeline; i++) {
+            free.add(new PendingPacket());
+        }
+
+        Thread writer = Thread.currentThread();
+        AtomicBoolean readerFailed = new AtomicBoolean();
+        Future<?> reader = executorService.submit(() -> {
+            try {
+                readResponses(channel, free, inFlight, packets, connectingNanos, latencies, stats);
+            }
+            catch (Throwable e) {
+                // unblock the writer, which then reports this failure rather than its own
+                readerFailed.set(true);
+                channel.close();
+                writer.interrupt();
+                throw e;
+            }
+            return null;
+        });
+
+        try {
+            int[] lengths = new int[batchSize];
+            long batchDelayNanos = MICROSECONDS.toNanos(batchDelayMicros);
+            TrafficCapture.Cursor cursor = capture.newCursor();
+            long round = 0;
+            while (round < packets) {
+                PendingPacket packet = free.take();
+                packet.sendNanos = pacer == null ? System.nanoTime() : pacer.awaitNext();
+                FileChannel file = cursor.file();
+                long start = cursor.frameStart();
+                long end = take(cursor, packet, inFlight);
+                lengths[0] = packet.length;
+                round++;
+                int batch = 1;
+
+                // a batch is a range of frames of one segment
+                long deadline = packet.sendNanos + batchDelayNanos;
+                while (batch < batchSize && round < packets && cursor.file() == file && cursor.frameStart() == end && (pacer == null || pacer.peekNext() <= deadline)) {
+                    PendingPacket next = free.poll(Math.max(0, deadline - System.nanoTime()), NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    next.sendNanos = pacer == null ? System.nanoTime() : pacer.awaitNext();
+                    end = take(cursor, next, inFlight);
+                    lengths[batch] = next.length;
+                    round++;
+                    batch++;
+                }
+
+                long writing = System.nanoTime();
+                transferFully(file, start, end - start, channel);
+                stats.addPhaseNanos(WRITE, System.nanoTime() - writing);
+                for (int i = 0; i < batch; i++) {
+                    stats.addOut(lengths[i]);
+                }
+            }
+            getUnchecked(reader);
+        }
+        catch (IOException | InterruptedException e) {
+            if (readerFailed.get()) {
+                // clear the interrupt coming from the reader, which may not have completed yet
+                Thread.interrupted();
+                getUnchecked(reader);
+            }
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new RuntimeException(e);
+        }
+        finally {
+            reader.cancel(true);
+        }
+    }
+
+    /**
+     * Puts the packet at the cursor in flight and moves the cursor on. Returns the end of the packet's frame.
+     */
+    private static long take(TrafficCapture.Cursor cursor, PendingPacket packet, BlockingQueue<PendingPacket> inFlight)
+    {
+        packet.capturedPacket = cursor.packet();
+        packet.length = packet.capturedPacket.length();
+        long end = cursor.frameEnd();
+        cursor.next();
+        inFlight.add(packet);
+        return end;
+    }
+
+    private void prepare(PendingPacket packet, PacketFormat format, @Nullable PacketRing ring, long round, Random random, TransferStats stats)
+    {
+        if (ring == null) {
+            long generating = System.nanoTime();
+            packet.length = packetSizes.next(random);
+            createPacket(format, packet.buffer, 0, packet.length, round);
+            stats.addPhaseNanos(GENERATE, System.nanoTime() - generating);
+        }
+        else {
+            packet.buffer = ring.packet(round);
+            packet.length = packet.buffer.length;
+            packet.expectedResponse = ring.response(round);
+        }
+    }
+
+    private void readResponses(ByteChannel channel, BlockingQueue<PendingPacket> free, BlockingQueue<PendingPacket> inFlight, long packets, long connectingNanos, LatencyHistogram latencies, TransferStats stats)
+            throws IOException, InterruptedException
+    {
+        byte[] responseBuffer = new byte[maxPacketLength()];
+        ByteBuffer response = ByteBuffer.wrap(responseBuffer);
+        ResponseReader responseReader = batchSize > 1 ? new ResponseReader(channel, RESPONSE_BUFFER_SIZE) : null;
+        for (long round = 0; round < packets; round++) {
+            // the response is as long as the packet
+            PendingPacket packet = inFlight.take();
+            long reading = System.nanoTime();
+            if (responseReader == null) {
+                response.clear().limit(packet.length);
+                readFully(channel, response);
+            }
+            else {
+                responseReader.read(responseBuffer, packet.length);
+            }
+            long read = System.nanoTime();
+            stats.addPhaseNanos(READ, read - reading);
+            stats.addIn(packet.length);
+
+            if (packet.capturedPacket != null) {
+                verifyCapturedResponse(stats, responseBuffer, packet.length, packet.capturedPacket);
+            }
+            else if (packet.expectedResponse == null) {
+                verifyResponse(stats, responseBuffer, 0, packet.length, packet.buffer, 0, packet.length);
+            }
+            else {
+                verifyExpectedResponse(stats, responseBuffer, packet.length, packet.buffer, packet.expectedResponse);
+            }
+            long verified = System.nanoTime();
+            stats.addPhaseNanos(VERIFY, verified - read);
+            recordLatency(latencies, packet.length, verified - packet.sendNanos);
+            if (round == 0) {
+                connectStats.recordFirstResponse(verified - connectingNanos);
             }
+            int length = packet.length;
+            free.add(packet);
+
+            throughout.add(length);
+        }
+    }
+
+    private int minPacketLength()
+    {
+        return capture == null ? packetSizes.getMin() : capture.getMinPacketLength();
+    }
+
+    private int maxPacketLength()
+    {
+        return capture == null ? packetSizes.getMax() : capture.getMaxPacketLength();
+    }
+
+    private void recordLatency(LatencyHistogram latencies, int length, long nanos)
+    {
+        latencies.record(nanos);
+        if (sizeStats != null) {
+            sizeStats.record(length, nanos);
+        }
+    }
+
+    static void verifyResponse(TransferStats stats, byte[] responseBuffer, int responseOffset, int responseLength, byte[] packetBuffer, int packetOffset, int packetLength)
+    {
+        checkArgument(responseLength == packetLength, "Lengths off");
+
+        int position = mismatch(wrappedBuffer(responseBuffer, responseOffset, responseLength), wrappedBuffer(packetBuffer, packetOffset, packetLength));
+        if (position >= 0) {
+            stats.checksumFailed();
+            RuntimeException exception = new RuntimeException(format("Malformed response at position %s", position));
+            exception.addSuppressed(new Exception(format("Sent: %s", base16().encode(packetBuffer, packetOffset, packetLength))));
+            exception.addSuppressed(new Exception(format("Recv: %s", base16().encode(responseBuffer, responseOffset, responseLength))));
+            throw exception;
+        }
+    }
+
+    /**
+     * Verifies a response against the one known in advance, which is a plain comparison. On a mismatch,
+     * reports the error as {@link #verifyResponse} does.
+     */
+    static void verifyExpectedResponse(TransferStats stats, byte[] responseBuffer, int responseLength, byte[] packetBuffer, byte[] expectedResponse)
+    {
+        if (!wrappedBuffer(responseBuffer, 0, responseLength).equals(wrappedBuffer(expectedResponse))) {
+            verifyResponse(stats, responseBuffer, 0, responseLength, packetBuffer, 0, packetBuffer.length);
+            // the expected response is the packet reversed, so the above must have failed
+            throw new IllegalStateException("Response differs from the expected, but mirrors the packet");
+        }
+    }
+
+    /**
+     * Verifies a response against a packet of a capture, as {@link #verifyResponse} does.
+     */
+    static void verifyCapturedResponse(TransferStats stats, byte[] responseBuffer, int responseLength, Slice packet)
+    {
+        if (mismatch(wrappedBuffer(responseBuffer, 0, responseLength), packet) >= 0) {
+            byte[] packetBytes = packet.getBytes();
+            verifyResponse(stats, responseBuffer, 0, responseLength, packetBytes, 0, packetBytes.length);
+            throw new IllegalStateException("Response does not mirror the captured packet, but mirrors its copy");
+        }
+    }
+
+    private static class PendingPacket
+    {
+        byte[] buffer;
+        int length;
+        // set when the packet comes from a ring
+        @Nullable
+        byte[] expectedResponse;
+        // set when the packet comes from a capture, which has no buffer
+        @Nullable
+        Slice capturedPacket;
+        long sendNanos;
+
+        PendingPacket() {}
+
+        PendingPacket(byte[] buffer)
+        {
+            this.buffer = buffer;
         }
     }
 }
@@ -0,0 +1,117 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import io.airlift.log.Logger;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static io.github.findepi.netsum.Throughput.formatPercentiles;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Latencies of opening connections: the time to connect, and the time from connecting until the first response
+ * arrived, which includes the server taking the connection and starting to serve it. Reported every few seconds
+ * while connections come and go; {@link Throughput} counts the connections.
+ */
+public class ConnectStats
+{
+    private static final Logger log = Logger.get(ConnectStats.class);
+
+    private static final int REPORT_INTERVAL_SECONDS = 5;
+
+    private final LatencyHistogram connectLatencies = new LatencyHistogram();
+    private final LatencyHistogram firstResponseLatencies = new LatencyHistogram();
+    private final AtomicBoolean totalReported = new AtomicBoolean();
+
+    public ConnectStats(Executor executor)
+    {
+        requireNonNull(executor, "executor is null").execute(this::report);
+    }
+
+    private void report()
+    {
+        NumberFormat numberFormat = NumberFormat.getInstance(Locale.US);
+        LatencyHistogram reportedConnects = new LatencyHistogram();
+        LatencyHistogram reportedFirstResponses = new LatencyHistogram();
+        try {
+            while (true) {
+                SECONDS.sleep(REPORT_INTERVAL_SECONDS);
+                LatencyHistogram connects = connectLatencies.copy();
+                if (connects.getCount() == reportedConnects.getCount()) {
+                    continue;
+                }
+                LatencyHistogram firstResponses = firstResponseLatencies.copy();
+                LatencyHistogram connectInterval = connects.copy();
+                connectInterval.subtract(reportedConnects);
+                LatencyHistogram firstResponseInterval = firstResponses.copy();
+                firstResponseInterval.subtract(reportedFirstResponses);
+                log.info("Connected: %s%s%s",
+                        numberFormat.format(connectInterval.getCount()),
+                        formatPercentiles("connect", connectInterval),
+                        formatPercentiles("first response", firstResponseInterval));
+                reportedConnects = connects;
+                reportedFirstResponses = firstResponses;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Throwable e) {
+            log.error(e, "Reporting failed");
+        }
+    }
+
+    /**
+     * Logs the latencies since the start, if any connections were opened. Only the first call has effect.
+     */
+    public void reportTotal()
+    {
+        if (!totalReported.compareAndSet(false, true) || connectLatencies.getCount() == 0) {
+            return;
+        }
+        log.info("Total: %s connected%s%s",
+                NumberFormat.getInstance(Locale.US).format(connectLatencies.getCount()),
+                formatPercentiles("connect", connectLatencies),
+                formatPercentiles("first response", firstResponseLatencies));
+    }
+
+    /**
+     * Records a connection opened, which took {@code nanos} to establish.
+     */
+    public void recordConnect(long nanos)
+    {
+        connectLatencies.record(nanos);
+    }
+
+    /**
+     * Records the time from opening a connection until its first response arrived.
+     */
+    public void recordFirstResponse(long nanos)
+    {
+        firstResponseLatencies.record(nanos);
+    }
+
+    /**
+     * Returns a copy of the connect latencies since the start.
+     */
+    public LatencyHistogram getConnectLatencies()
+    {
+        return connectLatencies.copy();
+    }
+}
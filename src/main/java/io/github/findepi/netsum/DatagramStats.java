@@ -0,0 +1,163 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import io.airlift.log.Logger;
+import org.weakref.jmx.Managed;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static io.github.findepi.netsum.Throughput.formatPercentiles;
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Counts datagrams sent, and those of their responses lost, reordered or duplicated on the way, with the variation
+ * of the round trip times of consecutive responses. Reported every few seconds while datagrams are sent.
+ */
+public class DatagramStats
+{
+    private static final Logger log = Logger.get(DatagramStats.class);
+
+    private static final int REPORT_INTERVAL_SECONDS = 5;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder reordered = new LongAdder();
+    private final LongAdder duplicated = new LongAdder();
+    private final LatencyHistogram delayVariations = new LatencyHistogram();
+    private final AtomicBoolean totalReported = new AtomicBoolean();
+
+    public DatagramStats(Executor executor)
+    {
+        requireNonNull(executor, "executor is null").execute(this::report);
+    }
+
+    private void report()
+    {
+        NumberFormat numberFormat = NumberFormat.getInstance(Locale.US);
+        long reportedSent = 0;
+        long reportedLost = 0;
+        long reportedReordered = 0;
+        long reportedDuplicated = 0;
+        LatencyHistogram reportedDelayVariations = new LatencyHistogram();
+        try {
+            while (true) {
+                SECONDS.sleep(REPORT_INTERVAL_SECONDS);
+                long sent = getTotalSent();
+                if (sent == reportedSent) {
+                    continue;
+                }
+                long lost = getTotalLost();
+                long reordered = getTotalReordered();
+                long duplicated = getTotalDuplicated();
+                LatencyHistogram variations = delayVariations.copy();
+                LatencyHistogram interval = variations.copy();
+                interval.subtract(reportedDelayVariations);
+                log.info("Datagrams sent: %s, lost: %s, reordered: %s, duplicated: %s%s",
+                        numberFormat.format(sent - reportedSent),
+                        numberFormat.format(lost - reportedLost),
+                        numberFormat.format(reordered - reportedReordered),
+                        numberFormat.format(duplicated - reportedDuplicated),
+                        formatPercentiles("delay variation", interval));
+                reportedSent = sent;
+                reportedLost = lost;
+                reportedReordered = reordered;
+                reportedDuplicated = duplicated;
+                reportedDelayVariations = variations;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Throwable e) {
+            log.error(e, "Reporting failed");
+        }
+    }
+
+    /**
+     * Logs totals since the start, if any datagrams were sent. Only the first call has effect.
+     */
+    public void reportTotal()
+    {
+        if (!totalReported.compareAndSet(false, true) || getTotalSent() == 0) {
+            return;
+        }
+        NumberFormat numberFormat = NumberFormat.getInstance(Locale.US);
+        log.info("Total: %s datagrams sent, lost: %s (%s), reordered: %s, duplicated: %s%s",
+                numberFormat.format(getTotalSent()),
+                numberFormat.format(getTotalLost()),
+                format(Locale.US, "%.3f%%", 100.0 * getTotalLost() / getTotalSent()),
+                numberFormat.format(getTotalReordered()),
+                numberFormat.format(getTotalDuplicated()),
+                formatPercentiles("delay variation", delayVariations));
+    }
+
+    public void addSent()
+    {
+        sent.increment();
+    }
+
+    public void addLost(long datagrams)
+    {
+        lost.add(datagrams);
+    }
+
+    public void addReordered()
+    {
+        reordered.increment();
+    }
+
+    public void addDuplicated()
+    {
+        duplicated.increment();
+    }
+
+    /**
+     * Records the difference between the round trip times of two datagrams received one after another.
+     */
+    public void recordDelayVariation(long nanos)
+    {
+        delayVariations.record(nanos);
+    }
+
+    @Managed
+    public long getTotalSent()
+    {
+        return sent.sum();
+    }
+
+    @Managed
+    public long getTotalLost()
+    {
+        return lost.sum();
+    }
+
+    @Managed
+    public long getTotalReordered()
+    {
+        return reordered.sum();
+    }
+
+    @Managed
+    public long getTotalDuplicated()
+    {
+        return duplicated.sum();
+    }
+}
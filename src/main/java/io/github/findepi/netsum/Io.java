@@ -14,21 +14,32 @@
 package io.github.findepi.netsum;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.ByteStreams;
 
-import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Verify.verify;
-import static com.google.common.io.ByteStreams.copy;
-import static com.google.common.io.ByteStreams.readFully;
+import static java.lang.String.format;
+import static java.nio.ByteOrder.BIG_ENDIAN;
 
 final class Io
 {
     private Io() {}
 
+    /**
+     * Returned by {@link #readPacketLength} when the stream ends where the next packet would start.
+     */
+    public static final int END_OF_STREAM = -2;
+
     public static void writePacket(OutputStream outputStream, byte[] workBuffer, byte[] data, int offset, int length)
             throws IOException
     {
@@ -41,13 +52,173 @@ final class Io
     public static int readPacket(InputStream inputStream, byte[] buffer)
             throws IOException
     {
-        readFully(inputStream, buffer, 0, 4);
+        ByteStreams.readFully(inputStream, buffer, 0, 4);
         int length = decodeInt(buffer, 0);
         verify(length >= 0, "negative length: %s", length);
-        readFully(inputStream, buffer, 0, length);
+        ByteStreams.readFully(inputStream, buffer, 0, length);
+        return length;
+    }
+
+    /**
+     * Writes the length header followed by the remaining bytes of {@code data}. Both are handed to the channel
+     * in one gathering write, so a packet usually costs a single system call and, for direct buffers, no copying.
+     * Channels not supporting gathering writes get the buffers one after another.
+     *
+     * @param channel a channel in blocking mode
+     * @param header a work buffer with room for the header
+     */
+    public static void writePacket(WritableByteChannel channel, ByteBuffer header, ByteBuffer data)
+            throws IOException
+    {
+        header.clear();
+        header.order(BIG_ENDIAN).putInt(data.remaining()).flip();
+        if (!(channel instanceof GatheringByteChannel)) {
+            writeFully(channel, header);
+            writeFully(channel, data);
+            return;
+        }
+        ByteBuffer[] buffers = {header, data};
+        while (header.hasRemaining() || data.hasRemaining()) {
+            ((GatheringByteChannel) channel).write(buffers);
+        }
+    }
+
+    /**
+     * Writes {@code packets} packets in one gathering write, so that a batch of small packets costs a single
+     * system call. {@code buffers} alternate a work buffer for the length header, with room for 4 bytes, and
+     * the packet data, of which the remaining bytes are written. Channels not supporting gathering writes get the
+     * buffers one after another.
+     *
+     * @param channel a channel in blocking mode
+     */
+    public static void writePackets(WritableByteChannel channel, ByteBuffer[] buffers, int packets)
+            throws IOException
+    {
+        checkArgument(packets >= 0 && 2 * packets <= buffers.length, "Invalid packets: %s", packets);
+        long remaining = 0;
+        for (int i = 0; i < packets; i++) {
+            ByteBuffer header = buffers[2 * i];
+            ByteBuffer data = buffers[2 * i + 1];
+            header.clear();
+            header.order(BIG_ENDIAN).putInt(data.remaining()).flip();
+            remaining += header.remaining() + data.remaining();
+        }
+        if (!(channel instanceof GatheringByteChannel)) {
+            for (int i = 0; i < 2 * packets; i++) {
+                writeFully(channel, buffers[i]);
+            }
+            return;
+        }
+        while (remaining > 0) {
+            remaining -= ((GatheringByteChannel) channel).write(buffers, 0, 2 * packets);
+        }
+    }
+
+    /**
+     * Reads a packet into {@code buffer}, which is left flipped, ready for reading the packet.
+     * The payload is read straight into {@code buffer}. It is not read together with the header, since
+     * the payload length is not known up front and reading ahead could consume bytes of the next packet.
+     *
+     * @param channel a channel in blocking mode
+     * @param header a work buffer with room for the header
+     * @return the packet length
+     */
+    public static int readPacket(ReadableByteChannel channel, ByteBuffer header, ByteBuffer buffer)
+            throws IOException
+    {
+        int length = readPacketLength(channel, header);
+        if (length == END_OF_STREAM) {
+            throw new EOFException("reached end of stream; 4 bytes expected");
+        }
+        verify(length <= buffer.capacity(), "packet too large: %s", length);
+        buffer.clear().limit(length);
+        readFully(channel, buffer);
+        buffer.flip();
+        return length;
+    }
+
+    /**
+     * Reads the length header of the next packet, e.g. to choose a buffer before reading the payload.
+     * Returns {@link ProtocolVersion#HELLO} when the client starts protocol negotiation instead, and
+     * {@link #END_OF_STREAM} when the client closes the connection before sending another packet.
+     *
+     * @param header a work buffer with room for the header
+     */
+    public static int readPacketLength(ReadableByteChannel channel, ByteBuffer header)
+            throws IOException
+    {
+        header.clear().limit(4);
+        if (channel.read(header) < 0) {
+            return END_OF_STREAM;
+        }
+        readFully(channel, header);
+        int length = header.order(BIG_ENDIAN).getInt(0);
+        verify(length >= 0 || length == ProtocolVersion.HELLO, "negative length: %s", length);
         return length;
     }
 
+    public static void readFully(ReadableByteChannel channel, ByteBuffer buffer)
+            throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException(format("reached end of stream; %s bytes expected", buffer.remaining()));
+            }
+        }
+    }
+
+    public static void writeFully(WritableByteChannel channel, ByteBuffer buffer)
+            throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads {@code buffer}'s remaining bytes from {@code file}, starting at {@code position}.
+     */
+    public static void readFully(FileChannel file, ByteBuffer buffer, long position)
+            throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            int read = file.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException(format("reached end of file; %s bytes expected", buffer.remaining()));
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Writes {@code buffer}'s remaining bytes to {@code file}, starting at {@code position}.
+     */
+    public static void writeFully(FileChannel file, ByteBuffer buffer, long position)
+            throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            position += file.write(buffer, position);
+        }
+    }
+
+    /**
+     * Sends {@code count} bytes of {@code file}, starting at {@code position}, to {@code channel}, which the
+     * operating system may do without copying the data through user space.
+     *
+     * @param channel a channel in blocking mode
+     */
+    public static void transferFully(FileChannel file, long position, long count, WritableByteChannel channel)
+            throws IOException
+    {
+        long end = position + count;
+        while (position < end) {
+            long transferred = file.transferTo(position, end - position, channel);
+            // past the end of the file, nothing is transferred
+            verify(transferred > 0, "Nothing transferred at %s of %s, file size: %s", position, end, file.size());
+            position += transferred;
+        }
+    }
+
     @VisibleForTesting
     @SuppressWarnings({"NumericCastThatLosesPrecision", "PointlessArithmeticExpression"})
     static void encodeInt(int value, byte[] bytes, int offset)
@@ -99,6 +270,6 @@ final class Io
     public static void writeFully(OutputStream outputStream, byte[] bytes, int offset, int length)
             throws IOException
     {
-        copy(new ByteArrayInputStream(bytes, offset, length), outputStream);
+        outputStream.write(bytes, offset, length);
     }
 }
@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import io.airlift.log.Logger;
+import org.weakref.jmx.MBeanExporter;
+
+import static java.util.Objects.requireNonNull;
+import static javax.management.ObjectName.quote;
+
+/**
+ * Exports objects with {@link org.weakref.jmx.Managed} attributes to the platform MBean server.
+ * Monitoring is best effort, so failures are logged rather than propagated.
+ */
+final class Jmx
+{
+    private static final Logger log = Logger.get(Jmx.class);
+
+    private static final String DOMAIN = "io.github.findepi.netsum";
+
+    private final MBeanExporter exporter;
+
+    public Jmx()
+    {
+        this(MBeanExporter.withPlatformMBeanServer());
+    }
+
+    public Jmx(MBeanExporter exporter)
+    {
+        this.exporter = requireNonNull(exporter, "exporter is null");
+    }
+
+    public static String objectName(Class<?> type, String name)
+    {
+        return DOMAIN + ":type=" + type.getSimpleName() + ",name=" + quote(name);
+    }
+
+    public static String objectName(Class<?> type, String name, String connection)
+    {
+        return objectName(type, name, "connection", connection);
+    }
+
+    public static String objectName(Class<?> type, String name, String key, String value)
+    {
+        return objectName(type, name) + "," + key + "=" + quote(value);
+    }
+
+    public void export(String objectName, Object object)
+    {
+        try {
+            exporter.export(objectName, object);
+        }
+        catch (RuntimeException e) {
+            log.warn(e, "Failed to export %s", objectName);
+        }
+    }
+
+    public void unexport(String objectName)
+    {
+        try {
+            exporter.unexport(objectName);
+        }
+        catch (RuntimeException e) {
+            log.warn(e, "Failed to unexport %s", objectName);
+        }
+    }
+}
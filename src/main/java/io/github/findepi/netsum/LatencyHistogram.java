@@ -0,0 +1,152 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Log-linear histogram of latencies in nanoseconds, in the spirit of HdrHistogram. Every power of two range
+ * is split into {@value #SUB_BUCKETS} linear sub-buckets, so reported values are within 1/{@value #SUB_BUCKETS}
+ * of the recorded ones. Recording does not allocate or lock, so each connection can own a histogram, and
+ * histograms are merged for reporting.
+ */
+final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos)
+    {
+        counts.incrementAndGet(bucketIndex(Math.max(nanos, 0)));
+    }
+
+    public void add(LatencyHistogram other)
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+    }
+
+    public void subtract(LatencyHistogram other)
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, -count);
+            }
+        }
+    }
+
+    public LatencyHistogram copy()
+    {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.add(this);
+        return copy;
+    }
+
+    public long getCount()
+    {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the mean latency, or 0 if nothing was recorded.
+     */
+    public double getMean()
+    {
+        long total = 0;
+        double sum = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = counts.get(i);
+            if (count != 0) {
+                total += count;
+                sum += count * (double) middleValue(i);
+            }
+        }
+        return total == 0 ? 0 : sum / total;
+    }
+
+    /**
+     * Returns the smallest latency such that {@code percentile} percent of the recorded ones are not greater,
+     * or 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        checkArgument(percentile >= 0 && percentile <= 100, "Invalid percentile: %s", percentile);
+        long total = getCount();
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return highestEquivalentValue(i);
+            }
+        }
+        return 0;
+    }
+
+    public long getMax()
+    {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get(i) != 0) {
+                return highestEquivalentValue(i);
+            }
+        }
+        return 0;
+    }
+
+    static int bucketIndex(long value)
+    {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - 1 - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long lowestEquivalentValue(int index)
+    {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    static long highestEquivalentValue(int index)
+    {
+        if (index == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return lowestEquivalentValue(index + 1) - 1;
+    }
+
+    private static long middleValue(int index)
+    {
+        long lowest = lowestEquivalentValue(index);
+        return lowest + (highestEquivalentValue(index) - lowest) / 2;
+    }
+}
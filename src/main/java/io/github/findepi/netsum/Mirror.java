@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import io.airlift.slice.Slice;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.Long.reverseBytes;
+
+/**
+ * Reversing data and checking it against reversed data, the work of producing and of checking every response.
+ * Both go eight bytes at a time: {@link Long#reverseBytes(long)} mirrors a word, so byte {@code i} of the
+ * data pairs with byte {@code length - 1 - i} as long as whole words are taken from both ends.
+ */
+final class Mirror
+{
+    private Mirror() {}
+
+    /**
+     * Reverses the order of bytes of {@code slice} in place.
+     */
+    public static void reverse(Slice slice)
+    {
+        int left = 0;
+        int right = slice.length();
+        while (right - left >= 2 * Long.BYTES) {
+            right -= Long.BYTES;
+            long leftWord = slice.getLong(left);
+            slice.setLong(left, reverseBytes(slice.getLong(right)));
+            slice.setLong(right, reverseBytes(leftWord));
+            left += Long.BYTES;
+        }
+        for (right--; left < right; left++, right--) {
+            byte b = slice.getByte(left);
+            slice.setByte(left, slice.getByte(right));
+            slice.setByte(right, b);
+        }
+    }
+
+    /**
+     * Returns the first position at which {@code data} is not the mirror image of {@code reversed}, or -1 if it is.
+     */
+    public static int mismatch(Slice data, Slice reversed)
+    {
+        int length = data.length();
+        checkArgument(reversed.length() == length, "Lengths differ: %s and %s", length, reversed.length());
+
+        int position = 0;
+        while (position + Long.BYTES <= length && data.getLong(position) == reverseBytes(reversed.getLong(length - Long.BYTES - position))) {
+            position += Long.BYTES;
+        }
+        // the tail, or the word where the mismatch is
+        for (; position < length; position++) {
+            if (data.getByte(position) != reversed.getByte(length - 1 - position)) {
+                return position;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import io.airlift.log.Logger;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Verify.verify;
+import static io.airlift.concurrent.Threads.daemonThreadsNamed;
+import static io.github.findepi.netsum.Io.decodeInt;
+import static io.github.findepi.netsum.Jmx.objectName;
+import static io.github.findepi.netsum.ProtocolVersion.HELLO;
+import static io.github.findepi.netsum.Server.MAX_PACKET_LENGTH;
+import static io.github.findepi.netsum.Server.reverse;
+import static io.github.findepi.netsum.Server.verifyPacket;
+import static io.github.findepi.netsum.TransferStats.Phase.READ;
+import static io.github.findepi.netsum.TransferStats.Phase.REVERSE;
+import static io.github.findepi.netsum.TransferStats.Phase.VERIFY;
+import static io.github.findepi.netsum.TransferStats.Phase.WRITE;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Server engine multiplexing all connections over a fixed number of selector event loops.
+ * Speaks exactly the same protocol as the blocking engine in {@link Server}.
+ */
+final class NioServer
+{
+    private static final Logger log = Logger.get(NioServer.class);
+
+    private final int port;
+    private final int listenBacklog;
+    private final int eventLoops;
+    private final BufferPool bufferPool;
+    private final Throughput throughput;
+    private final TransferStats stats;
+    private final Jmx jmx;
+    private final boolean connectionMBeans;
+    private volatile boolean stopped;
+
+    public NioServer(int port, int listenBacklog, int eventLoops, BufferPool bufferPool, Throughput throughput, TransferStats stats, Jmx jmx, boolean connectionMBeans)
+    {
+        checkArgument(eventLoops > 0, "Invalid eventLoops: %s", eventLoops);
+        this.port = port;
+        this.listenBacklog = listenBacklog;
+        this.eventLoops = eventLoops;
+        this.bufferPool = requireNonNull(bufferPool, "bufferPool is null");
+        this.throughput = requireNonNull(throughput, "throughput is null");
+        this.stats = requireNonNull(stats, "stats is null");
+        this.jmx = requireNonNull(jmx, "jmx is null");
+        this.connectionMBeans = connectionMBeans;
+    }
+
+    public void run()
+    {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), listenBacklog);
+            serve(serverChannel);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Serves connections accepted on {@code serverChannel} until it is closed.
+     */
+    void serve(ServerSocketChannel serverChannel)
+            throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(eventLoops, daemonThreadsNamed("server-nio-%s"));
+        try {
+            EventLoop[] loops = new EventLoop[eventLoops];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(Selector.open());
+                executor.execute(loops[i]);
+            }
+
+            int next = 0;
+            while (!stopped) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                }
+                catch (ClosedChannelException e) {
+                    return;
+                }
+                throughput.addConnection();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+        finally {
+            stopped = true;
+            executor.shutdownNow();
+        }
+    }
+
+    private class EventLoop
+            implements Runnable
+    {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+
+        EventLoop(Selector selector)
+        {
+            this.selector = requireNonNull(selector, "selector is null");
+        }
+
+        void register(SocketChannel channel)
+        {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run()
+        {
+            try (Selector selector = this.selector) {
+                while (!stopped) {
+                    selector.select();
+                    registerPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ((Connection) key.attachment()).handle(key);
+                    }
+                }
+            }
+            catch (Throwable e) {
+                log.error(e, "Event loop failed");
+            }
+        }
+
+        private void registerPending()
+        {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    String remoteAddress = String.valueOf(channel.getRemoteAddress());
+                    log.info("Client connected: %s", remoteAddress);
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, OP_READ);
+                    // only once registered, the connection is sure to be closed through its key
+                    key.attach(new Connection(channel, remoteAddress));
+                }
+                catch (IOException e) {
+                    log.error(e, "Client registration");
+                    closeQuietly(channel);
+                }
+            }
+        }
+    }
+
+    /**
+     * Per-connection protocol state: read the length header, read the packet, verify and reverse it,
+     * write the response. Each step progresses as far as the socket allows without blocking.
+     */
+    private class Connection
+    {
+        private final SocketChannel channel;
+        @Nullable
+        private final String objectName;
+        private final TransferStats connectionStats = stats.connectionOpened();
+        private final ByteBuffer header = ByteBuffer.allocate(4);
+        private final AdaptiveBuffer packetBuffer = new AdaptiveBuffer(bufferPool);
+        private ByteBuffer packet;
+        private boolean writing;
+        private ProtocolVersion version = ProtocolVersion.V1;
+        // reading the requested version or writing the reply, instead of a packet
+        private boolean negotiating;
+
+        Connection(SocketChannel channel, String remoteAddress)
+        {
+            this.channel = requireNonNull(channel, "channel is null");
+            if (connectionMBeans) {
+                this.objectName = objectName(TransferStats.class, "server", remoteAddress);
+                jmx.export(objectName, connectionStats);
+            }
+            else {
+                this.objectName = null;
+            }
+        }
+
+        void handle(SelectionKey key)
+        {
+            try {
+                if (writing) {
+                    write(key);
+                }
+                else {
+                    read(key);
+                }
+            }
+            catch (Throwable e) {
+                log.error(e, "Client handing");
+                connectionStats.connectionFailed();
+                close(key);
+            }
+        }
+
+        private void read(SelectionKey key)
+                throws IOException
+        {
+            long start = System.nanoTime();
+            if (header.hasRemaining()) {
+                int read = channel.read(header);
+                connectionStats.addPhaseNanos(READ, System.nanoTime() - start);
+                if (read < 0) {
+                    disconnected(key);
+                    return;
+                }
+                if (header.hasRemaining()) {
+                    return;
+                }
+                int length = decodeInt(header.array(), 0);
+                if (length == HELLO) {
+                    negotiating = true;
+                    length = Integer.BYTES;
+                }
+                verify(length >= 0 && length <= MAX_PACKET_LENGTH, "invalid length: %s", length);
+                packet = packetBuffer.get(length);
+            }
+
+            start = System.nanoTime();
+            if (packet.hasRemaining()) {
+                int read = channel.read(packet);
+                connectionStats.addPhaseNanos(READ, System.nanoTime() - start);
+                if (read < 0) {
+                    disconnected(key);
+                    return;
+                }
+            }
+            if (packet.hasRemaining()) {
+                return;
+            }
+
+            packet.flip();
+            if (negotiating) {
+                version = ProtocolVersion.negotiate(packet.getInt(0), ProtocolVersion.V2);
+                log.info("Client %s uses protocol %s", channel.socket().getRemoteSocketAddress(), version);
+                packet.clear();
+                packet.putInt(version.getId()).flip();
+                writing = true;
+                write(key);
+                return;
+            }
+            connectionStats.addIn(packet.limit());
+            long read = System.nanoTime();
+            verifyPacket(version, packet, connectionStats);
+            long verified = System.nanoTime();
+            connectionStats.addPhaseNanos(VERIFY, verified - read);
+            reverse(packet);
+            connectionStats.addPhaseNanos(REVERSE, System.nanoTime() - verified);
+            writing = true;
+            write(key);
+        }
+
+        private void write(SelectionKey key)
+                throws IOException
+        {
+            long start = System.nanoTime();
+            channel.write(packet);
+            connectionStats.addPhaseNanos(WRITE, System.nanoTime() - start);
+            if (packet.hasRemaining()) {
+                key.interestOps(OP_WRITE);
+                return;
+            }
+
+            if (negotiating) {
+                negotiating = false;
+            }
+            else {
+                connectionStats.addOut(packet.limit());
+                throughput.add(packet.limit());
+            }
+            writing = false;
+            header.clear();
+            key.interestOps(OP_READ);
+        }
+
+        private void disconnected(SelectionKey key)
+        {
+            log.info("Client disconnected: %s", channel.socket().getRemoteSocketAddress());
+            close(key);
+        }
+
+        private void close(SelectionKey key)
+        {
+            key.cancel();
+            closeQuietly(channel);
+            packetBuffer.release();
+            packet = null;
+            connectionStats.connectionClosed();
+            if (objectName != null) {
+                jmx.unexport(objectName);
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel)
+    {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            log.debug(e, "Failed to close %s", channel);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Volatile, ordered and compare-and-swap access to longs in native memory, such as memory mapped files shared with
+ * another process, which plain {@link java.nio.ByteBuffer} accesses give no ordering guarantees for. Goes through
+ * {@code sun.misc.Unsafe}, which is not visible when compiling for Java 8, but is available at run time on all Java
+ * versions supported. Addresses must be 8-byte aligned, and the memory must be kept mapped while in use.
+ */
+final class OrderedAccess
+{
+    private OrderedAccess() {}
+
+    private static final Object UNSAFE = unsafe();
+    // Unsafe.getLongVolatile(Object, long), Unsafe.putOrderedLong(Object, long, long), Unsafe.compareAndSwapLong(Object, long, long, long)
+    private static final MethodHandle GET_LONG_VOLATILE = unsafeHandle("getLongVolatile", methodType(long.class, Object.class, long.class));
+    private static final MethodHandle PUT_ORDERED_LONG = unsafeHandle("putOrderedLong", methodType(void.class, Object.class, long.class, long.class));
+    private static final MethodHandle COMPARE_AND_SWAP_LONG = unsafeHandle("compareAndSwapLong", methodType(boolean.class, Object.class, long.class, long.class, long.class));
+
+    public static boolean isSupported()
+    {
+        return GET_LONG_VOLATILE != null && PUT_ORDERED_LONG != null && COMPARE_AND_SWAP_LONG != null;
+    }
+
+    /**
+     * Reads with acquire semantics: later reads and writes are not moved before it.
+     */
+    public static long getLongVolatile(long address)
+    {
+        checkAligned(address);
+        try {
+            return (long) GET_LONG_VOLATILE.invokeExact(UNSAFE, (Object) null, address);
+        }
+        catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    /**
+     * Writes with release semantics: earlier reads and writes are not moved after it.
+     */
+    public static void putLongOrdered(long address, long value)
+    {
+        checkAligned(address);
+        try {
+            PUT_ORDERED_LONG.invokeExact(UNSAFE, (Object) null, address, value);
+        }
+        catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    public static boolean compareAndSwapLong(long address, long expected, long value)
+    {
+        checkAligned(address);
+        try {
+            return (boolean) COMPARE_AND_SWAP_LONG.invokeExact(UNSAFE, (Object) null, address, expected, value);
+        }
+        catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    private static void checkAligned(long address)
+    {
+        checkArgument(address != 0 && address % Long.BYTES == 0, "Invalid address: %s", address);
+    }
+
+    private static RuntimeException propagate(Throwable e)
+    {
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        throw new RuntimeException(e);
+    }
+
+    private static Object unsafe()
+    {
+        try {
+            Field field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return field.get(null);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static MethodHandle unsafeHandle(String name, MethodType type)
+    {
+        if (UNSAFE == null) {
+            return null;
+        }
+        try {
+            MethodHandle handle = MethodHandles.lookup().findVirtual(UNSAFE.getClass(), name, type);
+            // invoked with the receiver as an Object
+            return handle.asType(handle.type().changeParameterType(0, Object.class));
+        }
+        catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
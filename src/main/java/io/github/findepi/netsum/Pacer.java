@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Schedules sends on a fixed timeline, independent of how quickly responses come back (open loop).
+ * When sending falls behind, the late sends go out immediately, but keep their intended send times,
+ * so that latency measured from the intended time also covers the time a request waited to be sent.
+ * This avoids coordinated omission, where a stalled server would otherwise just get fewer requests.
+ */
+final class Pacer
+{
+    private final long intervalNanos;
+    private final Ticker ticker;
+    private long nextNanos;
+
+    public Pacer(long intervalNanos, long startNanos)
+    {
+        this(intervalNanos, startNanos, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    Pacer(long intervalNanos, long startNanos, Ticker ticker)
+    {
+        checkArgument(intervalNanos > 0, "Invalid intervalNanos: %s", intervalNanos);
+        this.intervalNanos = intervalNanos;
+        this.ticker = requireNonNull(ticker, "ticker is null");
+        this.nextNanos = startNanos;
+    }
+
+    /**
+     * Returns the intended time of the next send, without waiting for it.
+     */
+    public long peekNext()
+    {
+        return nextNanos;
+    }
+
+    /**
+     * Drops the sends scheduled before {@code nanos}, after a pause that is part of the workload rather than
+     * a stall, so that it does not show as latency of the following sends.
+     */
+    public void skipTo(long nanos)
+    {
+        if (nanos > nextNanos) {
+            nextNanos += (nanos - nextNanos + intervalNanos - 1) / intervalNanos * intervalNanos;
+        }
+    }
+
+    /**
+     * Waits until the next scheduled send and returns its intended time, in {@link System#nanoTime()} terms, or
+     * those of the ticker when given one.
+     */
+    public long awaitNext()
+            throws InterruptedException
+    {
+        long intended = nextNanos;
+        nextNanos += intervalNanos;
+        long remaining;
+        while ((remaining = intended - ticker.read()) > 0) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return intended;
+    }
+}
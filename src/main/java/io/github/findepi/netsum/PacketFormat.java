@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import java.util.Objects;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * How the client lays out the packets it sends. Chunk size and checksum apply to {@link ProtocolVersion#V2} only;
+ * version 1 packets always carry a single {@link ChecksumType#XXHASH64} hash.
+ */
+public final class PacketFormat
+{
+    public static final PacketFormat V1 = new PacketFormat(ProtocolVersion.V1, ChunkedPackets.MIN_CHUNK_SIZE, ChecksumType.XXHASH64);
+
+    private final ProtocolVersion version;
+    private final int chunkSize;
+    private final ChecksumType checksum;
+
+    public PacketFormat(ProtocolVersion version, int chunkSize, ChecksumType checksum)
+    {
+        this.version = requireNonNull(version, "version is null");
+        this.chunkSize = chunkSize;
+        this.checksum = requireNonNull(checksum, "checksum is null");
+        checkArgument(chunkSize >= ChunkedPackets.MIN_CHUNK_SIZE, "Invalid chunkSize: %s", chunkSize);
+        checkArgument(version == ProtocolVersion.V2 || checksum == ChecksumType.XXHASH64, "Protocol %s supports %s checksums only", version, ChecksumType.XXHASH64);
+    }
+
+    public ProtocolVersion getVersion()
+    {
+        return version;
+    }
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    public ChecksumType getChecksum()
+    {
+        return checksum;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        PacketFormat that = (PacketFormat) o;
+        return version == that.version &&
+                chunkSize == that.chunkSize &&
+                checksum == that.checksum;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(version, chunkSize, checksum);
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("version", version)
+                .add("chunkSize", chunkSize)
+                .add("checksum", checksum)
+                .toString();
+    }
+}
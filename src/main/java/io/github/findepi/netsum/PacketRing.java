@@ -0,0 +1,80 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import java.util.Random;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static io.airlift.slice.Slices.wrappedBuffer;
+import static io.github.findepi.netsum.Packets.createPacket;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Packets created once and sent in turn, together with the responses expected for them, so that sending
+ * costs no generating or hashing and checking a response is a plain comparison. The packets are never
+ * modified after construction, so one ring can be shared by all connections using the same format. With a
+ * distribution of sizes, each packet gets its size once, so the ring only covers as many sizes as it has packets.
+ */
+final class PacketRing
+{
+    // packet payloads are derived from the low byte of the seed only
+    public static final int MAX_SIZE = 256;
+
+    private final byte[][] packets;
+    private final byte[][] responses;
+
+    public PacketRing(PacketFormat format, SizeDistribution packetSizes, int size)
+    {
+        requireNonNull(format, "format is null");
+        requireNonNull(packetSizes, "packetSizes is null");
+        // with a single packet, a repeated stale response would pass as correct
+        checkArgument(size >= 2 && size <= MAX_SIZE, "Invalid size: %s", size);
+        packets = new byte[size][];
+        responses = new byte[size][];
+        // the same sizes in every run
+        Random random = new Random(size);
+        for (int i = 0; i < size; i++) {
+            packets[i] = new byte[packetSizes.next(random)];
+            createPacket(format, packets[i], 0, packets[i].length, i);
+            responses[i] = packets[i].clone();
+            Mirror.reverse(wrappedBuffer(responses[i]));
+        }
+    }
+
+    public int size()
+    {
+        return packets.length;
+    }
+
+    /**
+     * Returns the packet to send in {@code round}. The returned array must not be modified.
+     */
+    public byte[] packet(long round)
+    {
+        return packets[index(round)];
+    }
+
+    /**
+     * Returns the response expected to the packet sent in {@code round}. The returned array must not be modified.
+     */
+    public byte[] response(long round)
+    {
+        return responses[index(round)];
+    }
+
+    private int index(long round)
+    {
+        return (int) Math.floorMod(round, (long) packets.length);
+    }
+}
@@ -13,8 +13,12 @@
  */
 package io.github.findepi.netsum;
 
+import io.airlift.slice.Slice;
 import io.airlift.slice.XxHash64;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.io.BaseEncoding.base16;
 import static io.airlift.slice.Slices.wrappedBuffer;
@@ -26,7 +30,7 @@ final class Packets
 {
     private Packets() {}
 
-    private static final int HASH_LENGTH = 8;
+    static final int HASH_LENGTH = 8;
 
     public static void createPacket(byte[] buffer, int offset, int length, long seed)
     {
@@ -40,6 +44,19 @@ final class Packets
         encodeLong(hash, buffer, offset);
     }
 
+    public static void createPacket(PacketFormat format, byte[] buffer, int offset, int length, long seed)
+    {
+        switch (format.getVersion()) {
+            case V1:
+                createPacket(buffer, offset, length, seed);
+                return;
+            case V2:
+                ChunkedPackets.createPacket(buffer, offset, length, seed, format.getChunkSize(), format.getChecksum());
+                return;
+        }
+        throw new IllegalArgumentException("Unsupported protocol version: " + format.getVersion());
+    }
+
     public static void verifyPacket(byte[] packet, int offset, int length)
     {
         long readHash = decodeLong(packet, offset);
@@ -52,4 +69,39 @@ final class Packets
                     base16().encode(packet, offset, length)));
         }
     }
+
+    /**
+     * Verifies the packet between {@code packet}'s position and limit, without changing the position.
+     * Chunks of {@link ProtocolVersion#V2} packets are verified in parallel on {@code pool}.
+     */
+    public static void verifyPacket(ProtocolVersion version, ByteBuffer packet, ForkJoinPool pool)
+    {
+        switch (version) {
+            case V1:
+                verifyPacket(packet);
+                return;
+            case V2:
+                ChunkedPackets.verifyPacket(packet, pool);
+                return;
+        }
+        throw new IllegalArgumentException("Unsupported protocol version: " + version);
+    }
+
+    /**
+     * Verifies the packet between {@code packet}'s position and limit, without changing the position.
+     */
+    public static void verifyPacket(ByteBuffer packet)
+    {
+        Slice slice = wrappedBuffer(packet);
+        // Slice is little endian
+        long readHash = Long.reverseBytes(slice.getLong(0));
+        long computedHash = XxHash64.hash(slice.slice(HASH_LENGTH, slice.length() - HASH_LENGTH));
+        if (readHash != computedHash) {
+            throw new IllegalArgumentException(format(
+                    "Checksum failed: readHash: %s, computedHash: %s, full packet: %s",
+                    readHash,
+                    computedHash,
+                    base16().encode(slice.getBytes())));
+        }
+    }
 }
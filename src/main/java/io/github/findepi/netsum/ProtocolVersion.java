@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static io.github.findepi.netsum.Io.readFully;
+import static io.github.findepi.netsum.Io.writeFully;
+import static java.lang.String.format;
+import static java.util.Locale.ENGLISH;
+
+/**
+ * Versions of the packet format. Version 1, a single hash of the whole payload (see {@link Packets}), is used
+ * unless the client negotiates another one when it connects. To negotiate, the client sends {@link #HELLO} in place
+ * of a packet length, followed by the version it wants, and the server replies with the version to use, which
+ * is not newer than the requested one. Servers predating negotiation reject the negative length and disconnect.
+ */
+public enum ProtocolVersion
+{
+    V1(1),
+    V2(ChunkedPackets.VERSION);
+
+    public static final int HELLO = -1;
+
+    private final int id;
+
+    ProtocolVersion(int id)
+    {
+        this.id = id;
+    }
+
+    public int getId()
+    {
+        return id;
+    }
+
+    public static ProtocolVersion fromId(int id)
+    {
+        return Arrays.stream(values())
+                .filter(version -> version.id == id)
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Unsupported protocol version: " + id));
+    }
+
+    public static ProtocolVersion fromString(String value)
+    {
+        return valueOf(value.toUpperCase(ENGLISH));
+    }
+
+    /**
+     * Client side of the negotiation, returns the version agreed on.
+     */
+    public static ProtocolVersion request(ByteChannel channel, ProtocolVersion requested)
+            throws IOException
+    {
+        if (requested == V1) {
+            // the default, nothing to negotiate
+            return V1;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putInt(HELLO).putInt(requested.id).flip();
+        writeFully(channel, buffer);
+
+        buffer.clear().limit(4);
+        try {
+            readFully(channel, buffer);
+        }
+        catch (EOFException e) {
+            throw new IOException(format("Server does not support protocol %s", requested), e);
+        }
+        ProtocolVersion accepted = fromId(buffer.getInt(0));
+        checkArgument(accepted.id <= requested.id, "Server chose a newer protocol version: %s", accepted);
+        return accepted;
+    }
+
+    /**
+     * Server side of the negotiation, called after reading {@link #HELLO}. Returns the version agreed on.
+     */
+    public static ProtocolVersion accept(ByteChannel channel, ProtocolVersion supported)
+            throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        readFully(channel, buffer);
+        ProtocolVersion accepted = negotiate(buffer.getInt(0), supported);
+        buffer.clear();
+        buffer.putInt(accepted.id).flip();
+        writeFully(channel, buffer);
+        return accepted;
+    }
+
+    public static ProtocolVersion negotiate(int requested, ProtocolVersion supported)
+    {
+        return requested >= supported.id ? supported : fromId(requested);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static io.github.findepi.netsum.Io.readFully;
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reads responses of known lengths through a buffer, taking in as much as the channel has at hand, so that
+ * a batch of small responses costs one system call rather than one each. Responses too large for the buffer
+ * are read straight into their destination.
+ */
+final class ResponseReader
+{
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+
+    public ResponseReader(ReadableByteChannel channel, int bufferSize)
+    {
+        checkArgument(bufferSize > 0, "Invalid bufferSize: %s", bufferSize);
+        this.channel = requireNonNull(channel, "channel is null");
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        buffer.flip();
+    }
+
+    /**
+     * Reads the next {@code length} bytes into {@code target}, starting at index 0.
+     */
+    public void read(byte[] target, int length)
+            throws IOException
+    {
+        checkArgument(length >= 0 && length <= target.length, "Invalid length: %s", length);
+        int buffered = Math.min(length, buffer.remaining());
+        buffer.get(target, 0, buffered);
+        int missing = length - buffered;
+        if (missing == 0) {
+            return;
+        }
+        if (missing >= buffer.capacity()) {
+            readFully(channel, ByteBuffer.wrap(target, buffered, missing));
+            return;
+        }
+
+        buffer.clear();
+        while (buffer.position() < missing) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException(format("reached end of stream; %s bytes expected", missing - buffer.position()));
+            }
+        }
+        buffer.flip();
+        buffer.get(target, buffered, missing);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+
+/**
+ * Access to {@code SO_REUSEPORT} (Java 9+) while still compiling for older Java versions.
+ */
+final class ReusePort
+{
+    private ReusePort() {}
+
+    private static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
+    /**
+     * Lets several sockets bind the same address and port. On Linux, the kernel then spreads incoming
+     * connections across the listening sockets.
+     */
+    public static void enable(NetworkChannel channel)
+            throws IOException
+    {
+        if (SO_REUSEPORT == null || !channel.supportedOptions().contains(SO_REUSEPORT)) {
+            throw new IllegalStateException("SO_REUSEPORT is not supported on Java " + System.getProperty("java.version") + ", " + System.getProperty("os.name"));
+        }
+        channel.setOption(SO_REUSEPORT, true);
+    }
+
+    // StandardSocketOptions.SO_REUSEPORT
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption()
+    {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import com.google.common.base.CharMatcher;
+import io.airlift.airline.Option;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Locale.ENGLISH;
+import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.joining;
+
+/**
+ * Result of a client or server run, written at its end for tools tracking performance across runs: the
+ * configuration, i.e. the values of all options, and the totals measured after the warm-up. Written as a JSON
+ * object, with the configuration in a nested object, or as CSV, with a header line and a line of values, the
+ * configuration columns prefixed with {@code configuration.}. Rates are per second and latencies in nanoseconds.
+ * The rates over recent windows are left out, as {@code null}, when the window reaches back before the measured
+ * interval, into the warm-up.
+ */
+final class RunResult
+{
+    public enum Format
+    {
+        JSON,
+        CSV;
+
+        public static Format fromString(String value)
+        {
+            return valueOf(value.toUpperCase(ENGLISH));
+        }
+    }
+
+    private final Map<String, Object> configuration = new LinkedHashMap<>();
+    private final Map<String, Object> results = new LinkedHashMap<>();
+
+    /**
+     * Creates the result of {@code command}, whose {@link Option} fields make up the configuration, from the
+     * totals of the measured interval.
+     *
+     * @param throughput the throughput of the run, for the rates over recent windows
+     * @param error what ended the run, {@code null} if it ended normally
+     */
+    public static RunResult create(Object command, Throughput throughput, Totals measured, @Nullable Throwable error)
+    {
+        RunResult result = new RunResult();
+        result.configure(command);
+        result.add("command", command.getClass().getSimpleName().toLowerCase(ENGLISH));
+        result.add("error", error == null ? null : String.valueOf(error));
+        double seconds = measured.getNanos() / 1e9;
+        result.add("seconds", seconds);
+        result.add("bytes", measured.getBytes());
+        result.add("packets", measured.getPackets());
+        result.add("connections", measured.getConnections());
+        result.add("meanByteRate", seconds > 0 ? measured.getBytes() / seconds : 0);
+        result.add("meanPacketRate", seconds > 0 ? measured.getPackets() / seconds : 0);
+        result.add("byteRate1s", windowed(throughput.getByteRate(1), 1, seconds));
+        result.add("byteRate10s", windowed(throughput.getByteRate(10), 10, seconds));
+        result.add("byteRate60s", windowed(throughput.getByteRate(60), 60, seconds));
+        result.add("packetRate1s", windowed(throughput.getPacketRate(1), 1, seconds));
+        result.add("packetRate10s", windowed(throughput.getPacketRate(10), 10, seconds));
+        result.add("packetRate60s", windowed(throughput.getPacketRate(60), 60, seconds));
+        LatencyHistogram latencies = measured.getLatencies();
+        if (latencies != null) {
+            result.addPercentiles("latency", latencies);
+        }
+        if (measured.getConnectLatencies().getCount() > 0) {
+            result.addPercentiles("connect", measured.getConnectLatencies());
+        }
+        if (measured.getDatagramsSent() > 0) {
+            result.add("datagramsSent", measured.getDatagramsSent());
+            result.add("datagramsLost", measured.getDatagramsLost());
+        }
+        result.add("checksumFailures", measured.getChecksumFailures());
+        result.add("connectionFailures", measured.getConnectionFailures());
+        return result;
+    }
+
+    @Nullable
+    private static Double windowed(double rate, int windowSeconds, double measuredSeconds)
+    {
+        // the window ends at the last sample, up to a second before the end of the interval
+        return windowSeconds + 1 <= measuredSeconds ? rate : null;
+    }
+
+    private void configure(Object command)
+    {
+        for (Class<?> type = command.getClass(); type != Object.class; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                if (field.isAnnotationPresent(Option.class) && !Modifier.isStatic(field.getModifiers())) {
+                    field.setAccessible(true);
+                    try {
+                        Object value = field.get(command);
+                        configuration.put(field.getName(), value instanceof Number || value instanceof Boolean || value == null ? value : value.toString());
+                    }
+                    catch (IllegalAccessException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        }
+    }
+
+    public void add(String name, @Nullable Object value)
+    {
+        checkArgument(value == null || value instanceof Number || value instanceof String, "Invalid value of %s: %s", name, value);
+        results.put(requireNonNull(name, "name is null"), value);
+    }
+
+    private void addPercentiles(String name, LatencyHistogram histogram)
+    {
+        add(name + "MeanNanos", histogram.getMean());
+        add(name + "P50Nanos", histogram.getValueAtPercentile(50));
+        add(name + "P90Nanos", histogram.getValueAtPercentile(90));
+        add(name + "P99Nanos", histogram.getValueAtPercentile(99));
+        add(name + "P999Nanos", histogram.getValueAtPercentile(99.9));
+        add(name + "MaxNanos", histogram.getMax());
+    }
+
+    public void write(Path path, Format format)
+            throws IOException
+    {
+        String content = format == Format.JSON ? toJson() : toCsv();
+        Files.write(path, content.getBytes(UTF_8));
+    }
+
+    String toJson()
+    {
+        StringBuilder json = new StringBuilder("{\n  \"configuration\": {");
+        appendJson(json, configuration, "    ");
+        json.append("},");
+        appendJson(json, results, "  ");
+        return json.append("}\n").toString();
+    }
+
+    private static void appendJson(StringBuilder json, Map<String, Object> values, String indent)
+    {
+        String separator = "\n";
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            json.append(separator).append(indent).append(jsonString(entry.getKey())).append(": ").append(jsonValue(entry.getValue()));
+            separator = ",\n";
+        }
+        json.append('\n').append(indent, 0, indent.length() - 2);
+    }
+
+    private static String jsonValue(@Nullable Object value)
+    {
+        if (value == null) {
+            return "null";
+        }
+        if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            // not representable in JSON
+            return Double.isFinite(number) ? format(Locale.US, "%.3f", number) : "null";
+        }
+        if (value instanceof Number || value instanceof Boolean) {
+            return value.toString();
+        }
+        return jsonString(value.toString());
+    }
+
+    private static String jsonString(String value)
+    {
+        StringBuilder escaped = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                escaped.append(format("\\u%04x", (int) c));
+            }
+            else {
+                escaped.append(c);
+            }
+        }
+        return escaped.append('"').toString();
+    }
+
+    String toCsv()
+    {
+        Map<String, Object> columns = new LinkedHashMap<>();
+        configuration.forEach((name, value) -> columns.put("configuration." + name, value));
+        columns.putAll(results);
+        return columns.keySet().stream().map(RunResult::csvValue).collect(joining(",")) + "\n"
+                + columns.values().stream().map(RunResult::csvValue).collect(joining(",")) + "\n";
+    }
+
+    private static String csvValue(@Nullable Object value)
+    {
+        if (value == null) {
+            return "";
+        }
+        if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            return Double.isFinite(number) ? format(Locale.US, "%.3f", number) : "";
+        }
+        String text = value.toString();
+        if (CharMatcher.anyOf(",\"\n\r").matchesAnyOf(text)) {
+            return "\"" + text.replace("\"", "\"\"") + "\"";
+        }
+        return text;
+    }
+
+    /**
+     * Totals of a run: those counted by {@link Throughput}, and by the statistics kept along with it. Those of an
+     * interval, such as a run after a warm-up, are the difference between the totals at its end and at its beginning.
+     */
+    public static final class Totals
+    {
+        private final long nanos;
+        private final long bytes;
+        private final long packets;
+        private final long connections;
+        private final long datagramsSent;
+        private final long datagramsLost;
+        private final long checksumFailures;
+        private final long connectionFailures;
+        @Nullable
+        private final LatencyHistogram latencies;
+        private final LatencyHistogram connectLatencies;
+
+        private Totals(
+                long nanos,
+                long bytes,
+                long packets,
+                long connections,
+                long datagramsSent,
+                long datagramsLost,
+                long checksumFailures,
+                long connectionFailures,
+                @Nullable LatencyHistogram latencies,
+                LatencyHistogram connectLatencies)
+        {
+            this.nanos = nanos;
+            this.bytes = bytes;
+            this.packets = packets;
+            this.connections = connections;
+            this.datagramsSent = datagramsSent;
+            this.datagramsLost = datagramsLost;
+            this.checksumFailures = checksumFailures;
+            this.connectionFailures = connectionFailures;
+            this.latencies = latencies;
+            this.connectLatencies = requireNonNull(connectLatencies, "connectLatencies is null");
+        }
+
+        /**
+         * Returns the totals since the start of a server, which has neither connect latencies nor datagrams.
+         */
+        public static Totals of(Throughput throughput, TransferStats stats)
+        {
+            return of(throughput, stats, new LatencyHistogram(), 0, 0);
+        }
+
+        /**
+         * Returns the totals since the start of a client.
+         */
+        public static Totals of(Throughput throughput, TransferStats stats, ConnectStats connects, DatagramStats datagrams)
+        {
+            return of(throughput, stats, connects.getConnectLatencies(), datagrams.getTotalSent(), datagrams.getTotalLost());
+        }
+
+        private static Totals of(Throughput throughput, TransferStats stats, LatencyHistogram connectLatencies, long datagramsSent, long datagramsLost)
+        {
+            return new Totals(
+                    System.nanoTime(),
+                    throughput.getTotalBytes(),
+                    throughput.getTotalPackets(),
+                    throughput.getTotalConnections(),
+                    datagramsSent,
+                    datagramsLost,
+                    stats.getChecksumFailures(),
+                    stats.getConnectionFailures(),
+                    throughput.getLatencies(),
+                    connectLatencies);
+        }
+
+        /**
+         * Returns the totals from {@code earlier} totals until these.
+         */
+        public Totals since(Totals earlier)
+        {
+            LatencyHistogram latencies = null;
+            if (this.latencies != null) {
+                latencies = this.latencies.copy();
+                if (earlier.latencies != null) {
+                    latencies.subtract(earlier.latencies);
+                }
+            }
+            LatencyHistogram connectLatencies = this.connectLatencies.copy();
+            connectLatencies.subtract(earlier.connectLatencies);
+            return new Totals(
+                    nanos - earlier.nanos,
+                    bytes - earlier.bytes,
+                    packets - earlier.packets,
+                    connections - earlier.connections,
+                    datagramsSent - earlier.datagramsSent,
+                    datagramsLost - earlier.datagramsLost,
+                    checksumFailures - earlier.checksumFailures,
+                    connectionFailures - earlier.connectionFailures,
+                    latencies,
+                    connectLatencies);
+        }
+
+        /**
+         * Returns the time since the start, or the length of the interval for totals of an interval.
+         */
+        public long getNanos()
+        {
+            return nanos;
+        }
+
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        public long getPackets()
+        {
+            return packets;
+        }
+
+        public long getConnections()
+        {
+            return connections;
+        }
+
+        public long getDatagramsSent()
+        {
+            return datagramsSent;
+        }
+
+        public long getDatagramsLost()
+        {
+            return datagramsLost;
+        }
+
+        public long getChecksumFailures()
+        {
+            return checksumFailures;
+        }
+
+        public long getConnectionFailures()
+        {
+            return connectionFailures;
+        }
+
+        /**
+         * Returns the round trip latencies, or {@code null} if none are recorded, as on the server.
+         */
+        @Nullable
+        public LatencyHistogram getLatencies()
+        {
+            return latencies;
+        }
+
+        public LatencyHistogram getConnectLatencies()
+        {
+            return connectLatencies;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Tells lost, reordered and duplicated datagrams apart by their sequence numbers, which start at 0.
+ * Sequence numbers are remembered over a window of the last {@value #WINDOW} ones. A datagram missing once
+ * it falls out of the window is counted as lost, and if it arrives later still, it is counted as {@link Arrival#LATE}
+ * and not otherwise. Not thread safe.
+ */
+final class SequenceTracker
+{
+    static final int WINDOW = 1024;
+
+    public enum Arrival
+    {
+        IN_ORDER,
+        REORDERED,
+        DUPLICATE,
+        LATE,
+    }
+
+    // received flags of sequence numbers [next - WINDOW, next), indexed by sequence number modulo WINDOW
+    private final long[] received = new long[WINDOW / Long.SIZE];
+    private long next;
+    private long lost;
+    private boolean completed;
+
+    public Arrival record(long sequence)
+    {
+        checkArgument(sequence >= 0, "Invalid sequence: %s", sequence);
+        if (sequence >= next) {
+            expire(sequence + 1 - WINDOW);
+            set(sequence);
+            next = sequence + 1;
+            return Arrival.IN_ORDER;
+        }
+        if (sequence < next - WINDOW) {
+            return Arrival.LATE;
+        }
+        if (isSet(sequence)) {
+            return Arrival.DUPLICATE;
+        }
+        set(sequence);
+        return Arrival.REORDERED;
+    }
+
+    /**
+     * Counts the datagrams not received out of the {@code sent} ones as lost.
+     */
+    public void complete(long sent)
+    {
+        checkArgument(sent >= next, "Invalid sent: %s, received sequence up to %s", sent, next - 1);
+        checkArgument(!completed, "Already completed");
+        completed = true;
+        expire(sent);
+        next = sent;
+    }
+
+    /**
+     * Returns the number of datagrams lost so far.
+     */
+    public long getLost()
+    {
+        return lost;
+    }
+
+    /**
+     * Moves the start of the window to {@code start}, counting the sequence numbers moved out without
+     * having been received as lost.
+     */
+    private void expire(long start)
+    {
+        long expiring = Math.max(0, next - WINDOW);
+        if (start <= expiring) {
+            return;
+        }
+        // the flags of sequence numbers not reached yet are all clear
+        for (long sequence = expiring; sequence < Math.min(start, next); sequence++) {
+            if (!isSet(sequence)) {
+                lost++;
+            }
+            clear(sequence);
+        }
+        if (start > next) {
+            lost += start - next;
+        }
+    }
+
+    private boolean isSet(long sequence)
+    {
+        int index = (int) (sequence % WINDOW);
+        return (received[index / Long.SIZE] & (1L << index)) != 0;
+    }
+
+    private void set(long sequence)
+    {
+        int index = (int) (sequence % WINDOW);
+        received[index / Long.SIZE] |= 1L << index;
+    }
+
+    private void clear(long sequence)
+    {
+        int index = (int) (sequence % WINDOW);
+        received[index / Long.SIZE] &= ~(1L << index);
+    }
+}
@@ -17,20 +17,44 @@ import io.airlift.airline.Command;
 import io.airlift.airline.Option;
 import io.airlift.log.Logger;
 
+import javax.annotation.Nullable;
+
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UncheckedIOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ForkJoinPool;
 
+import static com.google.common.base.Verify.verify;
 import static io.airlift.concurrent.Threads.daemonThreadsNamed;
-import static io.github.findepi.netsum.Io.readPacket;
+import static io.airlift.slice.Slices.wrappedBuffer;
+import static io.github.findepi.netsum.Io.END_OF_STREAM;
+import static io.github.findepi.netsum.Io.readFully;
+import static io.github.findepi.netsum.Io.readPacketLength;
 import static io.github.findepi.netsum.Io.writeFully;
-import static io.github.findepi.netsum.Packets.verifyPacket;
+import static io.github.findepi.netsum.Jmx.objectName;
+import static io.github.findepi.netsum.Packets.HASH_LENGTH;
+import static io.github.findepi.netsum.ProtocolVersion.HELLO;
+import static io.github.findepi.netsum.TransferStats.Phase.READ;
+import static io.github.findepi.netsum.TransferStats.Phase.REVERSE;
+import static io.github.findepi.netsum.TransferStats.Phase.VERIFY;
+import static io.github.findepi.netsum.TransferStats.Phase.WRITE;
+import static io.github.findepi.netsum.VirtualThreads.newVirtualThreadPerTaskExecutor;
+import static java.lang.String.format;
+import static java.util.Locale.ENGLISH;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 @Command(name = "server")
 public class Server
@@ -38,66 +62,516 @@ public class Server
 {
     private static final Logger log = Logger.get(Server.class);
 
-    @Option(name = {"-p", "--port"}, required = true)
+    static final int MAX_PACKET_LENGTH = 16 * 1024 * 1024;
+
+    @Option(name = {"-p", "--port"}, description = "port to listen on, required with tcp and udp")
     public int port;
 
+    @Option(name = "--transport", description = "tcp, udp (a datagram per packet, answered on a single thread) or shm (shared memory with clients on the same host, one connection at a time)")
+    public Transport transport = Transport.TCP;
+
+    @Option(name = "--shm-file", description = "file to create for the shm transport, on a memory backed file system such as /dev/shm preferably")
+    public String shmFile;
+
+    @Option(name = "--shm-ring-size", description = "capacity of each direction of the shm transport, a power of two")
+    public int shmRingSize = 4 * 1024 * 1024;
+
+    @Option(name = "--engine", description = "connection handling: blocking (thread per connection) or nio (selector event loops)")
+    public Engine engine = Engine.BLOCKING;
+
+    @Option(name = "--event-loops", description = "number of event loop threads for the nio engine")
+    public int eventLoops = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "--virtual-threads", description = "handle connections on virtual threads (requires Java 21, blocking engine only)")
+    public boolean virtualThreads;
+
+    @Option(name = "--streaming", description = "stream packets larger than a chunk through a spill file, so that packets of any size work (blocking engine only)")
+    public boolean streaming;
+
+    @Option(name = "--chunk-size", description = "chunk size for --streaming")
+    public int chunkSize = 1024 * 1024;
+
+    @Option(name = "--acceptors", description = "number of threads accepting connections, each on its own socket bound with SO_REUSEPORT (requires Java 9, Linux), with its own worker pool (blocking engine only)")
+    public int acceptors = 1;
+
+    @Option(name = "--batching", description = "read packets in batches and write their responses at once, saving system calls on small packets (blocking engine only)")
+    public boolean batching;
+
+    @Option(name = "--batch-buffer-size", description = "buffer size for --batching; larger packets are handled one at a time")
+    public int batchBufferSize = 64 * 1024;
+
+    @Option(name = "--record", description = "record received packets into memory-mapped segment files FILE.000000 onwards, for the client to --replay; fails on an existing capture unless --record-replace (blocking engine only, without streaming or batching)")
+    public String record;
+
+    @Option(name = "--record-segment-size", description = "size of the segment files for --record")
+    public int recordSegmentSize = 256 * 1024 * 1024;
+
+    @Option(name = "--record-replace", description = "let --record replace an existing capture, instead of failing")
+    public boolean recordReplace;
+
+    @Option(name = "--max-connections", description = "maximum number of connections served at once, each on its own thread, with the others handled according to --overload-policy; 0 for no limit, starting a thread for every connection (tcp, blocking engine only: the nio engine serves all connections on its event loops and shm serves one at a time)")
+    public int maxConnections;
+
+    @Option(name = "--overload-policy", description = "what to do with connections over --max-connections: reject (close them), delay (stop accepting, leaving them in the listen backlog) or queue (keep up to --accept-queue of them until a connection ends)")
+    public AdmissionControl.OverloadPolicy overloadPolicy = AdmissionControl.OverloadPolicy.REJECT;
+
+    @Option(name = "--accept-queue", description = "maximum number of accepted connections kept waiting for a worker under --overload-policy queue")
+    public int acceptQueue = 50;
+
+    @Option(name = "--listen-backlog", description = "connections not yet accepted that the kernel keeps waiting on the server socket")
+    public int listenBacklog = 50;
+
+    @Option(name = "--buffer-pool-size", description = "bytes of free direct buffers kept for reuse; buffers released beyond it are left to the garbage collector")
+    public long bufferPoolSize = BufferPool.DEFAULT_MAX_BYTES_POOLED;
+
+    @Option(name = "--connection-mbeans", description = "export the stats of each connection as an MBean, in addition to the totals; costly with many short lived connections")
+    public boolean connectionMBeans;
+
+    @Option(name = "--warmup", description = "seconds to run before measuring the --result")
+    public long warmupSeconds;
+
+    @Option(name = "--result", description = "write the configuration and the totals of the run, after the warm-up, to this file when the server stops")
+    public String result;
+
+    @Option(name = "--result-format", description = "format of the --result: json or csv")
+    public RunResult.Format resultFormat = RunResult.Format.JSON;
+
+    private BufferPool bufferPool;
+    private final TransferStats stats = new TransferStats();
+    private final Jmx jmx = new Jmx();
     private Throughput throughout;
+    private AdmissionControl admissionControl;
+    // the beginning of the measured part of the run
+    private volatile RunResult.Totals measuredFrom;
+    @Nullable
+    private TrafficRecorder recorder;
     private volatile boolean stopped;
 
     @Override
     public void run()
     {
-        ExecutorService executor = Executors.newCachedThreadPool(daemonThreadsNamed("server-%s"));
+        verify(!virtualThreads || engine == Engine.BLOCKING, "Virtual threads are supported with the blocking engine only");
+        verify(!streaming || engine == Engine.BLOCKING, "Streaming is supported with the blocking engine only");
+        verify(chunkSize >= HASH_LENGTH && chunkSize <= MAX_PACKET_LENGTH, "Invalid chunkSize: %s", chunkSize);
+        verify(acceptors > 0, "Invalid acceptors: %s", acceptors);
+        verify(acceptors == 1 || engine == Engine.BLOCKING, "Multiple acceptors are supported with the blocking engine only");
+        verify(!batching || engine == Engine.BLOCKING, "Batching is supported with the blocking engine only");
+        verify(!(batching && streaming), "Batching and streaming cannot be combined");
+        verify(transport == Transport.SHM || port > 0, "port is required with %s", transport);
+        verify(transport != Transport.UDP || (engine == Engine.BLOCKING && !virtualThreads && !streaming && acceptors == 1 && !batching),
+                "UDP does not support the nio engine, virtual threads, streaming, multiple acceptors or batching");
+        verify(transport != Transport.SHM || (shmFile != null && engine == Engine.BLOCKING && acceptors == 1),
+                "Shared memory requires shmFile, and does not support the nio engine or multiple acceptors");
+        verify(Integer.bitCount(shmRingSize) == 1 && shmRingSize >= 4096, "Invalid shmRingSize: %s", shmRingSize);
+        verify(record == null || (transport != Transport.UDP && engine == Engine.BLOCKING && !streaming && !batching),
+                "Recording is supported over TCP and shared memory by the blocking engine only, without streaming or batching");
+        verify(batchBufferSize >= 8 && batchBufferSize <= MAX_PACKET_LENGTH, "Invalid batchBufferSize: %s", batchBufferSize);
+        verify(bufferPoolSize >= 0, "Invalid bufferPoolSize: %s", bufferPoolSize);
+        verify(warmupSeconds >= 0, "Invalid warmupSeconds: %s", warmupSeconds);
+        verify(maxConnections >= 0, "Invalid maxConnections: %s", maxConnections);
+        verify(acceptQueue >= 0, "Invalid acceptQueue: %s", acceptQueue);
+        verify(listenBacklog > 0, "Invalid listenBacklog: %s", listenBacklog);
+        verify(maxConnections == 0 || transport == Transport.TCP, "--max-connections is supported over TCP only: UDP has no connections, and shared memory serves one connection at a time");
+        verify(maxConnections == 0 || engine == Engine.BLOCKING, "--max-connections is not supported by the %s engine, which serves all connections on its event loops", engine);
+
+        if (record != null) {
+            try {
+                recorder = new TrafficRecorder(Paths.get(record), recordSegmentSize, recordReplace);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            // the server usually runs until killed, which should not leave the last segment at its full size
+            Runtime.getRuntime().addShutdownHook(new Thread(this::closeRecorder));
+        }
+        bufferPool = new BufferPool(MAX_PACKET_LENGTH, bufferPoolSize);
+        ExecutorService executor = newWorkerPool("server-");
         throughout = new Throughput(executor);
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            while (!stopped) {
-                Socket socket = serverSocket.accept();
-                try {
-                    executor.submit(() -> handleClient(socket));
-                }
-                catch (RejectedExecutionException e) {
-                    socket.close();
-                    throw e;
-                }
+        measuredFrom = RunResult.Totals.of(throughout, stats);
+        if (warmupSeconds > 0) {
+            executor.execute(this::warmUp);
+        }
+        if (result != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(this::writeResult));
+        }
+        jmx.export(objectName(TransferStats.class, "server"), stats);
+        jmx.export(objectName(Throughput.class, "server"), throughout);
+        jmx.export(objectName(BufferPool.class, "server"), bufferPool);
+        admissionControl = new AdmissionControl(maxConnections, overloadPolicy, acceptQueue);
+        jmx.export(objectName(AdmissionControl.class, "server"), admissionControl);
+
+        if (transport == Transport.UDP) {
+            try {
+                new UdpServer(port, throughout, stats).run();
+            }
+            finally {
+                executor.shutdownNow();
             }
+            return;
+        }
+
+        if (transport == Transport.SHM) {
+            try {
+                serveSharedMemory();
+            }
+            finally {
+                executor.shutdownNow();
+                closeRecorder();
+            }
+            return;
+        }
+
+        if (engine == Engine.NIO) {
+            try {
+                new NioServer(port, listenBacklog, eventLoops, bufferPool, throughout, stats, jmx, connectionMBeans).run();
+            }
+            finally {
+                executor.shutdownNow();
+            }
+            return;
+        }
+
+        if (acceptors > 1) {
+            try {
+                runAcceptors(executor);
+            }
+            finally {
+                executor.shutdownNow();
+            }
+            return;
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), listenBacklog);
+            accept(serverChannel, executor, stats);
         }
         catch (IOException e) {
             throw new UncheckedIOException(e);
         }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
         finally {
             stopped = true;
             executor.shutdownNow();
+            closeRecorder();
+        }
+    }
+
+    private void warmUp()
+    {
+        try {
+            SECONDS.sleep(warmupSeconds);
+            measuredFrom = RunResult.Totals.of(throughout, stats);
+            log.info("Warm-up done");
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the {@link #result} of the run, which goes on until the server is stopped.
+     */
+    private void writeResult()
+    {
+        RunResult.Totals measured = RunResult.Totals.of(throughout, stats).since(measuredFrom);
+        try {
+            RunResult.create(this, throughout, measured, null).write(Paths.get(result), resultFormat);
+            log.info("Result written to %s", result);
+        }
+        catch (IOException e) {
+            log.error(e, "Failed to write result to %s", result);
+        }
+    }
+
+    private void closeRecorder()
+    {
+        if (recorder != null) {
+            try {
+                recorder.close();
+            }
+            catch (IOException e) {
+                log.warn(e, "Failed to close recording");
+            }
+        }
+    }
+
+    /**
+     * Runs {@link #acceptors} accept loops, each on its own socket and with its own workers and statistics,
+     * until the first one fails.
+     */
+    private void runAcceptors(ExecutorService executor)
+    {
+        List<ServerSocketChannel> serverChannels = new ArrayList<>();
+        List<ExecutorService> workerPools = new ArrayList<>();
+        List<String> objectNames = new ArrayList<>();
+        try {
+            for (int i = 0; i < acceptors; i++) {
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                serverChannels.add(serverChannel);
+                ReusePort.enable(serverChannel);
+                serverChannel.bind(new InetSocketAddress(port), listenBacklog);
+            }
+
+            CompletionService<?> acceptorLoops = new ExecutorCompletionService<>(executor);
+            for (int i = 0; i < acceptors; i++) {
+                ServerSocketChannel serverChannel = serverChannels.get(i);
+                ExecutorService workers = newWorkerPool(format("server-%s-", i));
+                workerPools.add(workers);
+                TransferStats acceptorStats = stats.newGroup();
+                String objectName = objectName(TransferStats.class, "server", "acceptor", String.valueOf(i));
+                objectNames.add(objectName);
+                jmx.export(objectName, acceptorStats);
+                acceptorLoops.submit(() -> {
+                    accept(serverChannel, workers, acceptorStats);
+                    return null;
+                });
+            }
+            acceptorLoops.take().get();
         }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException("Acceptor failed", e.getCause());
+        }
+        finally {
+            stopped = true;
+            for (ServerSocketChannel serverChannel : serverChannels) {
+                try {
+                    serverChannel.close();
+                }
+                catch (IOException e) {
+                    log.warn(e, "Failed to close server socket");
+                }
+            }
+            workerPools.forEach(ExecutorService::shutdownNow);
+            objectNames.forEach(jmx::unexport);
+            closeRecorder();
+        }
+    }
+
+    /**
+     * Accepts connections and hands them to {@code workers}, subject to {@link #admissionControl}.
+     */
+    private void accept(ServerSocketChannel serverChannel, ExecutorService workers, TransferStats stats)
+            throws IOException, InterruptedException
+    {
+        while (!stopped) {
+            admissionControl.awaitAccept();
+            SocketChannel channel = serverChannel.accept();
+            throughout.addConnection();
+            try {
+                if (!admissionControl.submit(() -> handleClient(channel, stats), workers)) {
+                    channel.close();
+                }
+            }
+            catch (InterruptedException e) {
+                channel.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Serves shared memory connections one after another on this thread.
+     */
+    private void serveSharedMemory()
+    {
+        String name = "shm:" + shmFile;
+        try (SharedMemoryTransport sharedMemory = SharedMemoryTransport.create(Paths.get(shmFile), shmRingSize)) {
+            log.info("Accepting connections on %s", shmFile);
+            while (!stopped) {
+                SharedMemoryChannel channel = sharedMemory.accept();
+                throughout.addConnection();
+                handleClient(channel, name, stats);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private ExecutorService newWorkerPool(String namePrefix)
+    {
+        return virtualThreads
+                ? newVirtualThreadPerTaskExecutor(namePrefix)
+                : Executors.newCachedThreadPool(daemonThreadsNamed(namePrefix + "%s"));
     }
 
-    private void handleClient(Socket socket)
+    private void handleClient(SocketChannel channel, TransferStats stats)
     {
+        String remoteAddress;
         try {
-            log.info("Client connected: %s", socket.getRemoteSocketAddress());
-            byte[] buffer = new byte[16 * 1024 * 1024];
+            remoteAddress = String.valueOf(channel.getRemoteAddress());
+        }
+        catch (IOException e) {
+            remoteAddress = "unknown";
+        }
+        handleClient(channel, remoteAddress, stats);
+    }
 
-            InputStream inputStream = socket.getInputStream();
-            OutputStream outputStream = socket.getOutputStream();
-            while (socket.isConnected() && !stopped) {
-                int length = readPacket(inputStream, buffer);
-                verifyPacket(buffer, 0, length);
-                reverse(buffer, 0, length);
-                writeFully(outputStream, buffer, 0, length);
+    private void handleClient(ByteChannel clientChannel, String remoteAddress, TransferStats stats)
+    {
+        AdaptiveBuffer packetBuffer = new AdaptiveBuffer(bufferPool);
+        StreamingPacketHandler streamingHandler = null;
+        TransferStats connectionStats = stats.connectionOpened();
+        String objectName = null;
+        try (ByteChannel channel = clientChannel) {
+            log.info("Client connected: %s", remoteAddress);
+            if (connectionMBeans) {
+                objectName = objectName(TransferStats.class, "server", remoteAddress);
+                jmx.export(objectName, connectionStats);
+            }
+            if (batching) {
+                try (BatchingPacketHandler batchingHandler = new BatchingPacketHandler(bufferPool, batchBufferSize, supportedVersion(), connectionStats, throughout)) {
+                    batchingHandler.serve(channel, channel);
+                }
+                log.info("Client disconnected: %s", remoteAddress);
+                return;
+            }
+            ByteBuffer header = ByteBuffer.allocate(4);
+            ProtocolVersion version = ProtocolVersion.V1;
+
+            while (channel.isOpen() && !stopped) {
+                long start = System.nanoTime();
+                int length = readPacketLength(channel, header);
+                if (length == END_OF_STREAM) {
+                    log.info("Client disconnected: %s", remoteAddress);
+                    break;
+                }
+                if (length == HELLO) {
+                    version = ProtocolVersion.accept(channel, supportedVersion());
+                    log.info("Client %s uses protocol %s", remoteAddress, version);
+                    continue;
+                }
+                if (streaming && length > chunkSize) {
+                    if (streamingHandler == null) {
+                        streamingHandler = new StreamingPacketHandler(bufferPool, chunkSize, connectionStats);
+                    }
+                    streamingHandler.handle(channel, channel, length);
+                    throughout.add(length);
+                    continue;
+                }
+                verify(length <= MAX_PACKET_LENGTH, "packet too large: %s", length);
+                ByteBuffer packet = packetBuffer.get(length);
+                long verified;
+                if (version == ProtocolVersion.V2) {
+                    // chunks are verified while the rest of the packet is still being read
+                    readAndVerifyPacket(channel, packet, connectionStats);
+                    verified = System.nanoTime();
+                    connectionStats.addPhaseNanos(READ, verified - start);
+                    connectionStats.addIn(length);
+                }
+                else {
+                    readFully(channel, packet);
+                    packet.flip();
+                    long read = System.nanoTime();
+                    connectionStats.addPhaseNanos(READ, read - start);
+                    connectionStats.addIn(length);
+
+                    verifyPacket(version, packet, connectionStats);
+                    verified = System.nanoTime();
+                    connectionStats.addPhaseNanos(VERIFY, verified - read);
+                }
+
+                if (recorder != null) {
+                    recorder.record(version, packet);
+                }
+                reverse(packet);
+                long reversed = System.nanoTime();
+                connectionStats.addPhaseNanos(REVERSE, reversed - verified);
+
+                writeFully(channel, packet);
+                connectionStats.addPhaseNanos(WRITE, System.nanoTime() - reversed);
+                connectionStats.addOut(length);
 
                 throughout.add(length);
             }
         }
         catch (Throwable e) {
             log.error(e, "Client handing");
+            connectionStats.connectionFailed();
+        }
+        finally {
+            connectionStats.connectionClosed();
+            if (objectName != null) {
+                jmx.unexport(objectName);
+            }
+            packetBuffer.release();
+            if (streamingHandler != null) {
+                try {
+                    streamingHandler.close();
+                }
+                catch (IOException e) {
+                    log.warn(e, "Failed to close spill file");
+                }
+            }
+            log.debug("Buffer pool: %s", bufferPool);
         }
     }
 
-    private static void reverse(byte[] bytes, int offset, int length)
+    /**
+     * Streaming keeps a single hash for the whole packet, so it limits connections to version 1.
+     */
+    private ProtocolVersion supportedVersion()
     {
-        for (int left = offset, right = offset + length - 1; left < right; left++, right--) {
-            byte b = bytes[left];
-            bytes[left] = bytes[right];
-            bytes[right] = b;
+        return streaming ? ProtocolVersion.V1 : ProtocolVersion.V2;
+    }
+
+    private static void readAndVerifyPacket(ReadableByteChannel channel, ByteBuffer packet, TransferStats stats)
+            throws IOException
+    {
+        try {
+            ChunkedPackets.readAndVerifyPacket(channel, packet, ForkJoinPool.commonPool());
+        }
+        catch (IllegalArgumentException e) {
+            stats.checksumFailed();
+            throw e;
+        }
+    }
+
+    static void verifyPacket(ProtocolVersion version, ByteBuffer packet, TransferStats stats)
+    {
+        try {
+            Packets.verifyPacket(version, packet, ForkJoinPool.commonPool());
+        }
+        catch (IllegalArgumentException e) {
+            stats.checksumFailed();
+            throw e;
+        }
+    }
+
+    /**
+     * Reverses the bytes between {@code buffer}'s position and limit.
+     */
+    static void reverse(ByteBuffer buffer)
+    {
+        // a slice cannot wrap empty direct memory
+        if (buffer.hasRemaining()) {
+            Mirror.reverse(wrappedBuffer(buffer));
+        }
+    }
+
+    static void reverse(byte[] bytes, int offset, int length)
+    {
+        Mirror.reverse(wrappedBuffer(bytes, offset, length));
+    }
+
+    public enum Engine
+    {
+        BLOCKING,
+        NIO;
+
+        public static Engine fromString(String value)
+        {
+            return valueOf(value.toUpperCase(ENGLISH));
         }
     }
 }
@@ -0,0 +1,284 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static io.airlift.slice.Slices.wrappedBuffer;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * One end of a connection over shared memory: a pair of single-producer, single-consumer byte rings in a memory
+ * mapped file, one for each direction, laid out by {@link SharedMemoryTransport}. Reads and writes block like those
+ * of a socket channel in blocking mode, waiting by spinning first, then yielding, then parking, so that a busy
+ * connection does not pay for waking up threads. Each direction may be used by one thread at a time. While waiting
+ * longer, the channel checks the peer's lock on the file, so that a peer killed without closing its end reads as closed.
+ * <p>
+ * A ring starts with its control words, each on its own cache line, followed by the data:
+ * <ul>
+ * <li>head: bytes read so far, written by the consumer</li>
+ * <li>tail: bytes written so far, written by the producer</li>
+ * <li>producer closed: non-zero once the producer closed its end, after which the tail no longer changes</li>
+ * <li>consumer closed: non-zero once the consumer closed its end</li>
+ * </ul>
+ */
+final class SharedMemoryChannel
+        implements ByteChannel
+{
+    static final int RING_HEADER_LENGTH = 256;
+    private static final int HEAD_OFFSET = 0;
+    private static final int TAIL_OFFSET = 64;
+    private static final int PRODUCER_CLOSED_OFFSET = 128;
+    private static final int CONSUMER_CLOSED_OFFSET = 192;
+
+    // spinning only delays the peer when it runs on the same processor
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 10_000 : 0;
+    private static final int YIELDS = 1_000;
+    private static final long PARK_NANOS = 50_000;
+    private static final long PEER_CHECK_INTERVAL_NANOS = MILLISECONDS.toNanos(100);
+
+    private final FileChannel file;
+    private final long peerLockPosition;
+    private final boolean ownsFile;
+    private final Ring input;
+    private final Ring output;
+    private volatile boolean open = true;
+    private volatile boolean peerGone;
+
+    /**
+     * @param file the mapped file, on which the peer holds the lock at {@code peerLockPosition}
+     * @param ownsFile whether closing this channel closes {@code file}, releasing this end's lock
+     */
+    SharedMemoryChannel(MappedByteBuffer mapping, int inputOffset, int outputOffset, int capacity, FileChannel file, long peerLockPosition, boolean ownsFile)
+    {
+        requireNonNull(mapping, "mapping is null");
+        this.file = requireNonNull(file, "file is null");
+        this.peerLockPosition = peerLockPosition;
+        this.ownsFile = ownsFile;
+        this.input = new Ring(mapping, inputOffset, capacity);
+        this.output = new Ring(mapping, outputOffset, capacity);
+    }
+
+    /**
+     * Resets the control words of the ring at {@code offset}, for a new connection.
+     */
+    static void initializeRing(MappedByteBuffer mapping, int offset)
+    {
+        long address = wrappedBuffer(mapping).getAddress() + offset;
+        OrderedAccess.putLongOrdered(address + HEAD_OFFSET, 0);
+        OrderedAccess.putLongOrdered(address + TAIL_OFFSET, 0);
+        OrderedAccess.putLongOrdered(address + PRODUCER_CLOSED_OFFSET, 0);
+        OrderedAccess.putLongOrdered(address + CONSUMER_CLOSED_OFFSET, 0);
+    }
+
+    /**
+     * Tells whether the end reading the ring at {@code inputOffset} and writing the ring at {@code outputOffset}
+     * has been closed.
+     */
+    static boolean isClosed(MappedByteBuffer mapping, int inputOffset, int outputOffset)
+    {
+        long address = wrappedBuffer(mapping).getAddress();
+        return OrderedAccess.getLongVolatile(address + inputOffset + CONSUMER_CLOSED_OFFSET) != 0
+                && OrderedAccess.getLongVolatile(address + outputOffset + PRODUCER_CLOSED_OFFSET) != 0;
+    }
+
+    @Override
+    public int read(ByteBuffer target)
+            throws IOException
+    {
+        ensureOpen();
+        if (!target.hasRemaining()) {
+            return 0;
+        }
+        return input.read(target);
+    }
+
+    /**
+     * Writes all of {@code source}, waiting for room as needed.
+     */
+    @Override
+    public int write(ByteBuffer source)
+            throws IOException
+    {
+        ensureOpen();
+        return output.write(source);
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        if (!open) {
+            return;
+        }
+        open = false;
+        OrderedAccess.putLongOrdered(output.address + PRODUCER_CLOSED_OFFSET, 1);
+        OrderedAccess.putLongOrdered(input.address + CONSUMER_CLOSED_OFFSET, 1);
+        if (ownsFile) {
+            file.close();
+        }
+    }
+
+    private void ensureOpen()
+            throws ClosedChannelException
+    {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private final class Ring
+    {
+        private final long address;
+        // a view of the mapping, which also keeps it mapped while the address is in use
+        private final ByteBuffer data;
+        private final int capacity;
+        // head when consuming, tail when producing; only this end changes it
+        private long position;
+        private long peerCheckedNanos = System.nanoTime();
+
+        Ring(MappedByteBuffer mapping, int offset, int capacity)
+        {
+            checkArgument(Integer.bitCount(capacity) == 1, "Capacity not a power of two: %s", capacity);
+            this.address = wrappedBuffer(mapping).getAddress() + offset;
+            ByteBuffer data = mapping.duplicate();
+            data.position(offset + RING_HEADER_LENGTH);
+            data.limit(offset + RING_HEADER_LENGTH + capacity);
+            this.data = data.slice();
+            this.capacity = capacity;
+        }
+
+        int read(ByteBuffer target)
+                throws IOException
+        {
+            long available = OrderedAccess.getLongVolatile(address + TAIL_OFFSET) - position;
+            for (int attempt = 0; available == 0; attempt++) {
+                // the tail is final once the producer closed or died, but may have moved before that
+                if ((OrderedAccess.getLongVolatile(address + PRODUCER_CLOSED_OFFSET) != 0 || peerGone)
+                        && OrderedAccess.getLongVolatile(address + TAIL_OFFSET) == position) {
+                    return -1;
+                }
+                idle(attempt);
+                available = OrderedAccess.getLongVolatile(address + TAIL_OFFSET) - position;
+            }
+
+            int length = (int) Math.min(available, target.remaining());
+            int index = (int) (position & (capacity - 1));
+            int first = Math.min(length, capacity - index);
+            data.clear();
+            data.position(index);
+            data.limit(index + first);
+            target.put(data);
+            if (first < length) {
+                data.clear();
+                data.limit(length - first);
+                target.put(data);
+            }
+            position += length;
+            OrderedAccess.putLongOrdered(address + HEAD_OFFSET, position);
+            return length;
+        }
+
+        int write(ByteBuffer source)
+                throws IOException
+        {
+            int written = 0;
+            while (source.hasRemaining()) {
+                long free = capacity - (position - OrderedAccess.getLongVolatile(address + HEAD_OFFSET));
+                for (int attempt = 0; free == 0; attempt++) {
+                    checkConsumer();
+                    idle(attempt);
+                    free = capacity - (position - OrderedAccess.getLongVolatile(address + HEAD_OFFSET));
+                }
+                checkConsumer();
+
+                int length = (int) Math.min(free, source.remaining());
+                int index = (int) (position & (capacity - 1));
+                int first = Math.min(length, capacity - index);
+                int limit = source.limit();
+                data.clear();
+                data.position(index);
+                source.limit(source.position() + first);
+                data.put(source);
+                if (first < length) {
+                    data.clear();
+                    source.limit(source.position() + length - first);
+                    data.put(source);
+                }
+                source.limit(limit);
+                position += length;
+                OrderedAccess.putLongOrdered(address + TAIL_OFFSET, position);
+                written += length;
+            }
+            return written;
+        }
+
+        private void checkConsumer()
+                throws IOException
+        {
+            if (OrderedAccess.getLongVolatile(address + CONSUMER_CLOSED_OFFSET) != 0) {
+                throw new IOException("Peer closed the connection");
+            }
+            if (peerGone) {
+                throw new IOException("Peer is gone");
+            }
+        }
+
+        /**
+         * Waits a little, longer with each {@code attempt} at finding the ring ready.
+         */
+        private void idle(int attempt)
+                throws IOException
+        {
+            if (Thread.interrupted()) {
+                close();
+                throw new ClosedByInterruptException();
+            }
+            if (!open) {
+                throw new AsynchronousCloseException();
+            }
+            if (attempt < SPINS) {
+                return;
+            }
+            if (attempt < SPINS + YIELDS) {
+                Thread.yield();
+                return;
+            }
+            LockSupport.parkNanos(PARK_NANOS);
+            long now = System.nanoTime();
+            if (now - peerCheckedNanos >= PEER_CHECK_INTERVAL_NANOS) {
+                peerCheckedNanos = now;
+                if (!SharedMemoryTransport.isLocked(file, peerLockPosition)) {
+                    peerGone = true;
+                }
+            }
+        }
+    }
+}
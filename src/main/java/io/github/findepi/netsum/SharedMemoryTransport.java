@@ -0,0 +1,274 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import javax.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Verify.verify;
+import static io.airlift.slice.Slices.wrappedBuffer;
+import static io.github.findepi.netsum.SharedMemoryChannel.RING_HEADER_LENGTH;
+import static java.lang.String.format;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Connections between processes on the same host through a memory mapped file, avoiding the kernel network stack.
+ * The server creates the file and accepts one connection at a time; a client connects by mapping the same file.
+ * Each end holds a lock on a byte of the header page for as long as it is there, which the operating system releases
+ * when the process dies, so that the other end can tell a peer killed without closing its end.
+ * <p>
+ * File layout: a header page with the magic number, format version, ring capacity and connection state, followed by
+ * the client to server ring and the server to client ring (see {@link SharedMemoryChannel}), each page aligned.
+ */
+final class SharedMemoryTransport
+        implements Closeable
+{
+    static final int MAGIC = 0x4e53484d;
+    static final int FORMAT_VERSION = 1;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int FORMAT_VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int STATE_OFFSET = 64;
+    static final long SERVER_LOCK_POSITION = 128;
+    static final long CLIENT_LOCK_POSITION = 129;
+    private static final int PAGE_SIZE = 4096;
+
+    private static final long STATE_CLOSED = 0;
+    private static final long STATE_LISTENING = 1;
+    private static final long STATE_CONNECTED = 2;
+
+    private static final long ACCEPT_POLL_NANOS = MILLISECONDS.toNanos(1);
+    private static final long CONNECT_TIMEOUT_SECONDS = 10;
+
+    private final Path file;
+    // holds the server lock
+    private final FileChannel channel;
+    private final MappedByteBuffer mapping;
+    private final long stateAddress;
+    private final int capacity;
+    // accessed by the accepting thread only
+    private boolean accepted;
+
+    private SharedMemoryTransport(Path file, FileChannel channel, MappedByteBuffer mapping, int capacity)
+    {
+        this.file = requireNonNull(file, "file is null");
+        this.channel = requireNonNull(channel, "channel is null");
+        this.mapping = requireNonNull(mapping, "mapping is null");
+        this.stateAddress = wrappedBuffer(mapping).getAddress() + STATE_OFFSET;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Creates, or replaces, the file for a server to accept connections through.
+     */
+    public static SharedMemoryTransport create(Path file, int capacity)
+            throws IOException
+    {
+        checkArgument(Integer.bitCount(capacity) == 1, "Ring capacity not a power of two: %s", capacity);
+        checkSupported();
+        FileChannel channel = FileChannel.open(file, CREATE, READ, WRITE);
+        try {
+            if (tryLock(channel, SERVER_LOCK_POSITION) == null) {
+                throw new IOException(format("Another server uses %s", file));
+            }
+            channel.truncate(0);
+            MappedByteBuffer mapping = channel.map(READ_WRITE, 0, fileLength(capacity));
+            mapping.order(ByteOrder.LITTLE_ENDIAN);
+            mapping.putInt(MAGIC_OFFSET, MAGIC);
+            mapping.putInt(FORMAT_VERSION_OFFSET, FORMAT_VERSION);
+            mapping.putInt(CAPACITY_OFFSET, capacity);
+            SharedMemoryTransport transport = new SharedMemoryTransport(file, channel, mapping, capacity);
+            OrderedAccess.putLongOrdered(transport.stateAddress, STATE_CLOSED);
+            return transport;
+        }
+        catch (IOException | RuntimeException e) {
+            closeQuietly(channel, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for a client to connect, after the client of the previous connection, if any, closed its end or died.
+     */
+    public SharedMemoryChannel accept()
+            throws IOException
+    {
+        if (accepted) {
+            // the rings must not be reset under a client still using them
+            while (!SharedMemoryChannel.isClosed(mapping, serverRingOffset(capacity), clientRingOffset())
+                    && isLocked(channel, CLIENT_LOCK_POSITION)) {
+                if (Thread.interrupted()) {
+                    throw new IOException("Interrupted while accepting a connection on " + file);
+                }
+                LockSupport.parkNanos(ACCEPT_POLL_NANOS);
+            }
+        }
+        SharedMemoryChannel.initializeRing(mapping, clientRingOffset());
+        SharedMemoryChannel.initializeRing(mapping, serverRingOffset(capacity));
+        OrderedAccess.putLongOrdered(stateAddress, STATE_LISTENING);
+        while (OrderedAccess.getLongVolatile(stateAddress) != STATE_CONNECTED) {
+            if (Thread.interrupted()) {
+                throw new IOException("Interrupted while accepting a connection on " + file);
+            }
+            LockSupport.parkNanos(ACCEPT_POLL_NANOS);
+        }
+        accepted = true;
+        return new SharedMemoryChannel(mapping, clientRingOffset(), serverRingOffset(capacity), capacity, channel, CLIENT_LOCK_POSITION, false);
+    }
+
+    /**
+     * Connects to the server listening on {@code file}, waiting for it to finish with its previous connection.
+     */
+    public static SharedMemoryChannel connect(Path file)
+            throws IOException
+    {
+        checkSupported();
+        FileChannel channel = FileChannel.open(file, READ, WRITE);
+        try {
+            if (channel.size() < PAGE_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(format("Not a shared memory transport file: %s", file));
+            }
+            MappedByteBuffer mapping = channel.map(READ_WRITE, 0, channel.size());
+            mapping.order(ByteOrder.LITTLE_ENDIAN);
+            if (mapping.getInt(MAGIC_OFFSET) != MAGIC) {
+                throw new IOException(format("Not a shared memory transport file: %s", file));
+            }
+            if (mapping.getInt(FORMAT_VERSION_OFFSET) != FORMAT_VERSION) {
+                throw new IOException(format("Unsupported format version %s of %s", mapping.getInt(FORMAT_VERSION_OFFSET), file));
+            }
+            int capacity = mapping.getInt(CAPACITY_OFFSET);
+            if (Integer.bitCount(capacity) != 1 || mapping.capacity() != fileLength(capacity)) {
+                throw new IOException(format("Corrupted shared memory transport file: %s", file));
+            }
+
+            long stateAddress = wrappedBuffer(mapping).getAddress() + STATE_OFFSET;
+            long deadline = System.nanoTime() + SECONDS.toNanos(CONNECT_TIMEOUT_SECONDS);
+            while (true) {
+                if (!isLocked(channel, SERVER_LOCK_POSITION)) {
+                    throw new IOException(format("No server accepting connections on %s", file));
+                }
+                // the client lock keeps out other clients, also while a stale one is still connected
+                FileLock lock = tryLock(channel, CLIENT_LOCK_POSITION);
+                if (lock != null) {
+                    if (OrderedAccess.compareAndSwapLong(stateAddress, STATE_LISTENING, STATE_CONNECTED)) {
+                        return new SharedMemoryChannel(mapping, serverRingOffset(capacity), clientRingOffset(), capacity, channel, SERVER_LOCK_POSITION, true);
+                    }
+                    // let the server tell whether the previous client is still there
+                    lock.release();
+                }
+                if (System.nanoTime() - deadline > 0) {
+                    throw new IOException(format("No server accepting connections on %s within %ss", file, CONNECT_TIMEOUT_SECONDS));
+                }
+                if (Thread.interrupted()) {
+                    throw new IOException("Interrupted while connecting to " + file);
+                }
+                LockSupport.parkNanos(ACCEPT_POLL_NANOS);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            closeQuietly(channel, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Tells whether a process, this or another one, holds the lock at {@code position} of the file.
+     */
+    static boolean isLocked(FileChannel channel, long position)
+            throws IOException
+    {
+        try (FileLock lock = channel.tryLock(position, 1, false)) {
+            return lock == null;
+        }
+        catch (OverlappingFileLockException e) {
+            // held by another channel of this process
+            return true;
+        }
+    }
+
+    @Nullable
+    private static FileLock tryLock(FileChannel channel, long position)
+            throws IOException
+    {
+        try {
+            // released when the channel is closed, including when the process dies
+            return channel.tryLock(position, 1, false);
+        }
+        catch (OverlappingFileLockException e) {
+            // held by another channel of this process
+            return null;
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel, Throwable failure)
+    {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        OrderedAccess.putLongOrdered(stateAddress, STATE_CLOSED);
+        channel.close();
+    }
+
+    private static void checkSupported()
+    {
+        verify(OrderedAccess.isSupported(), "Shared memory transport is not supported on this JVM");
+    }
+
+    private static int clientRingOffset()
+    {
+        return PAGE_SIZE;
+    }
+
+    private static int serverRingOffset(int capacity)
+    {
+        return PAGE_SIZE + ringLength(capacity);
+    }
+
+    private static int fileLength(int capacity)
+    {
+        return PAGE_SIZE + 2 * ringLength(capacity);
+    }
+
+    private static int ringLength(int capacity)
+    {
+        // page aligned
+        return (RING_HEADER_LENGTH + capacity + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+}
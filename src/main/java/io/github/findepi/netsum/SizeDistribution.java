@@ -0,0 +1,215 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Distribution of the sizes of packets sent. Written as one of
+ * <ul>
+ * <li>{@code SIZE}: always the same size</li>
+ * <li>{@code uniform:MIN-MAX}: any size from {@code MIN} to {@code MAX}, inclusive, equally likely</li>
+ * <li>{@code weighted:SIZE=WEIGHT,...}: the listed sizes, each with probability proportional to its weight</li>
+ * <li>{@code histogram:FILE}: like weighted, read from a file with a size and a count on each line, e.g. recorded
+ * from production traffic; empty lines and lines starting with {@code #} are ignored</li>
+ * </ul>
+ */
+public final class SizeDistribution
+{
+    private final String description;
+    private final int min;
+    private final int max;
+    // null for a uniform distribution
+    @Nullable
+    private final int[] sizes;
+    @Nullable
+    private final long[] cumulativeWeights;
+
+    private SizeDistribution(String description, int min, int max, @Nullable int[] sizes, @Nullable long[] cumulativeWeights)
+    {
+        this.description = description;
+        this.min = min;
+        this.max = max;
+        this.sizes = sizes;
+        this.cumulativeWeights = cumulativeWeights;
+    }
+
+    public static SizeDistribution fixed(int size)
+    {
+        checkArgument(size >= 0, "Invalid size: %s", size);
+        return new SizeDistribution(String.valueOf(size), size, size, new int[] {size}, new long[] {1});
+    }
+
+    public static SizeDistribution uniform(int min, int max)
+    {
+        checkArgument(min >= 0 && min <= max, "Invalid range: %s-%s", min, max);
+        return new SizeDistribution(format("uniform:%s-%s", min, max), min, max, null, null);
+    }
+
+    public static SizeDistribution weighted(Map<Integer, Long> weights)
+    {
+        return weighted(weights, "weighted:" + Joiner.on(',').withKeyValueSeparator("=").join(new TreeMap<>(weights)));
+    }
+
+    private static SizeDistribution weighted(Map<Integer, Long> weights, String description)
+    {
+        TreeMap<Integer, Long> sorted = new TreeMap<>();
+        weights.forEach((size, weight) -> {
+            checkArgument(size >= 0, "Invalid size: %s", size);
+            checkArgument(weight >= 0, "Invalid weight of size %s: %s", size, weight);
+            // sizes never seen are allowed, e.g. in a recorded histogram
+            if (weight > 0) {
+                sorted.put(size, weight);
+            }
+        });
+        checkArgument(!sorted.isEmpty(), "No sizes");
+        int[] sizes = new int[sorted.size()];
+        long[] cumulativeWeights = new long[sorted.size()];
+        long total = 0;
+        int i = 0;
+        for (Map.Entry<Integer, Long> entry : sorted.entrySet()) {
+            total = Math.addExact(total, entry.getValue());
+            sizes[i] = entry.getKey();
+            cumulativeWeights[i] = total;
+            i++;
+        }
+        return new SizeDistribution(description, sizes[0], sizes[sizes.length - 1], sizes, cumulativeWeights);
+    }
+
+    public static SizeDistribution fromString(String value)
+    {
+        int separator = value.indexOf(':');
+        if (separator < 0) {
+            return fixed(parseInt(value));
+        }
+        String type = value.substring(0, separator);
+        String arguments = value.substring(separator + 1);
+        switch (type) {
+            case "uniform": {
+                List<String> range = Splitter.on('-').trimResults().splitToList(arguments);
+                checkArgument(range.size() == 2, "Invalid range: %s", arguments);
+                return uniform(parseInt(range.get(0)), parseInt(range.get(1)));
+            }
+            case "weighted": {
+                Map<Integer, Long> weights = new TreeMap<>();
+                Splitter.on(',').trimResults().omitEmptyStrings().withKeyValueSeparator('=').split(arguments)
+                        .forEach((size, weight) -> weights.merge(parseInt(size), parseLong(weight), Long::sum));
+                return weighted(weights, value);
+            }
+            case "histogram":
+                return weighted(readHistogram(arguments), value);
+            default:
+                throw new IllegalArgumentException("Unknown size distribution: " + value);
+        }
+    }
+
+    private static Map<Integer, Long> readHistogram(String path)
+    {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Paths.get(path), UTF_8);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Map<Integer, Long> weights = new TreeMap<>();
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            List<String> fields = Splitter.onPattern("[\\s,]+").splitToList(line);
+            checkArgument(fields.size() == 2, "Expected size and count, got: %s", line);
+            weights.merge(parseInt(fields.get(0)), parseLong(fields.get(1)), Long::sum);
+        }
+        return weights;
+    }
+
+    private static int parseInt(String value)
+    {
+        Integer parsed = Ints.tryParse(value.trim());
+        checkArgument(parsed != null, "Invalid size: %s", value);
+        return parsed;
+    }
+
+    private static long parseLong(String value)
+    {
+        Long parsed = Longs.tryParse(value.trim());
+        checkArgument(parsed != null, "Invalid number: %s", value);
+        return parsed;
+    }
+
+    public int next(Random random)
+    {
+        if (sizes == null) {
+            return (int) (min + Math.floorMod(random.nextLong(), max - (long) min + 1));
+        }
+        if (sizes.length == 1) {
+            return sizes[0];
+        }
+        long total = cumulativeWeights[cumulativeWeights.length - 1];
+        long point = Math.floorMod(random.nextLong(), total);
+        int index = Arrays.binarySearch(cumulativeWeights, point + 1);
+        return sizes[index >= 0 ? index : -index - 1];
+    }
+
+    public int getMin()
+    {
+        return min;
+    }
+
+    public int getMax()
+    {
+        return max;
+    }
+
+    public double getMean()
+    {
+        if (sizes == null) {
+            return (min + (double) max) / 2;
+        }
+        double sum = 0;
+        long previous = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sum += (double) sizes[i] * (cumulativeWeights[i] - previous);
+            previous = cumulativeWeights[i];
+        }
+        return sum / previous;
+    }
+
+    @Override
+    public String toString()
+    {
+        return description;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import io.airlift.log.Logger;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static io.github.findepi.netsum.Throughput.formatPercentiles;
+
+/**
+ * Counts packets by size, in power of two buckets, with their round trip latencies, to tell how each size fares
+ * in a mix of sizes. Reported in total only, and only for packets of more than one bucket.
+ */
+public class SizeStats
+{
+    private static final Logger log = Logger.get(SizeStats.class);
+
+    private static final int SIZE_BUCKETS = Long.SIZE;
+
+    private final LongAdder[] bucketBytes = new LongAdder[SIZE_BUCKETS];
+    private final LongAdder[] bucketPackets = new LongAdder[SIZE_BUCKETS];
+    // created on first use, a histogram is not small
+    private final AtomicReferenceArray<LatencyHistogram> bucketLatencies = new AtomicReferenceArray<>(SIZE_BUCKETS);
+    private final long startNanos = System.nanoTime();
+    private final AtomicBoolean totalReported = new AtomicBoolean();
+
+    public SizeStats()
+    {
+        for (int i = 0; i < SIZE_BUCKETS; i++) {
+            bucketBytes[i] = new LongAdder();
+            bucketPackets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Returns the bucket of packets of {@code bytes}: 0 up to 1 byte, otherwise {@code b} for sizes
+     * greater than {@code 2^(b-1)} and at most {@code 2^b}.
+     */
+    static int sizeBucket(long bytes)
+    {
+        checkArgument(bytes >= 0, "Invalid bytes: %s", bytes);
+        if (bytes <= 1) {
+            return 0;
+        }
+        return Long.SIZE - Long.numberOfLeadingZeros(bytes - 1);
+    }
+
+    /**
+     * Records a packet of {@code bytes}, which made the round trip in {@code nanos}.
+     */
+    public void record(long bytes, long nanos)
+    {
+        int bucket = sizeBucket(bytes);
+        bucketBytes[bucket].add(bytes);
+        bucketPackets[bucket].increment();
+        LatencyHistogram histogram = bucketLatencies.get(bucket);
+        if (histogram == null) {
+            bucketLatencies.compareAndSet(bucket, null, new LatencyHistogram());
+            histogram = bucketLatencies.get(bucket);
+        }
+        histogram.record(nanos);
+    }
+
+    public long getTotalBytes(int sizeBucket)
+    {
+        return bucketBytes[sizeBucket].sum();
+    }
+
+    public long getTotalPackets(int sizeBucket)
+    {
+        return bucketPackets[sizeBucket].sum();
+    }
+
+    /**
+     * Logs totals of each bucket since the start. Only the first call has effect.
+     */
+    public void reportTotal()
+    {
+        if (!totalReported.compareAndSet(false, true)) {
+            return;
+        }
+        int buckets = 0;
+        for (int bucket = 0; bucket < SIZE_BUCKETS; bucket++) {
+            if (getTotalPackets(bucket) > 0) {
+                buckets++;
+            }
+        }
+        if (buckets < 2) {
+            return;
+        }
+        NumberFormat numberFormat = NumberFormat.getInstance(Locale.US);
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        for (int bucket = 0; bucket < SIZE_BUCKETS; bucket++) {
+            long packets = getTotalPackets(bucket);
+            if (packets == 0) {
+                continue;
+            }
+            log.info("Total for %s to %s bytes: %s bytes, %s packets, mean rate: %s%s",
+                    numberFormat.format(bucket == 0 ? 0 : (1L << (bucket - 1)) + 1),
+                    numberFormat.format(1L << bucket),
+                    numberFormat.format(getTotalBytes(bucket)),
+                    numberFormat.format(packets),
+                    numberFormat.format((long) (getTotalBytes(bucket) / seconds)),
+                    formatPercentiles("latency", bucketLatencies.get(bucket)));
+        }
+    }
+}
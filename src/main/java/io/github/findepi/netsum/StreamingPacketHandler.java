@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import io.airlift.slice.Slice;
+import io.airlift.slice.XxHash64;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static io.airlift.slice.Slices.wrappedBuffer;
+import static io.github.findepi.netsum.Io.readFully;
+import static io.github.findepi.netsum.Io.writeFully;
+import static io.github.findepi.netsum.Packets.HASH_LENGTH;
+import static io.github.findepi.netsum.Server.reverse;
+import static io.github.findepi.netsum.TransferStats.Phase.READ;
+import static io.github.findepi.netsum.TransferStats.Phase.REVERSE;
+import static io.github.findepi.netsum.TransferStats.Phase.VERIFY;
+import static io.github.findepi.netsum.TransferStats.Phase.WRITE;
+import static java.lang.String.format;
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Handles a packet of any size with memory for one chunk. The packet is hashed as it arrives and spilled
+ * to a temporary file, and once verified, the response is written from the end of the file backwards,
+ * reversing one chunk at a time. The spill file is accounted to the {@code READ} phase, both ways.
+ */
+final class StreamingPacketHandler
+        implements Closeable
+{
+    private final BufferPool bufferPool;
+    private final int chunkSize;
+    private final ByteBuffer chunk;
+    private final FileChannel spill;
+    private final TransferStats stats;
+
+    public StreamingPacketHandler(BufferPool bufferPool, int chunkSize, TransferStats stats)
+            throws IOException
+    {
+        checkArgument(chunkSize >= HASH_LENGTH, "Invalid chunkSize: %s", chunkSize);
+        this.bufferPool = requireNonNull(bufferPool, "bufferPool is null");
+        this.stats = requireNonNull(stats, "stats is null");
+        this.chunkSize = chunkSize;
+        Path file = Files.createTempFile("netsum-spill-", ".bin");
+        this.spill = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, DELETE_ON_CLOSE);
+        this.chunk = bufferPool.borrow(chunkSize);
+    }
+
+    /**
+     * Reads a packet of {@code length} bytes, following its length header, from {@code input},
+     * and writes the reversed packet to {@code output}.
+     */
+    public void handle(ReadableByteChannel input, WritableByteChannel output, int length)
+            throws IOException
+    {
+        checkArgument(length >= HASH_LENGTH, "Invalid length: %s", length);
+
+        XxHash64 hasher = new XxHash64();
+        long readHash = 0;
+        for (long position = 0; position < length; position += chunk.limit()) {
+            long start = System.nanoTime();
+            chunk.clear();
+            chunk.limit((int) Math.min(chunkSize, length - position));
+            readFully(input, chunk);
+            chunk.flip();
+            writeFully(spill, chunk.duplicate(), position);
+            long read = System.nanoTime();
+            stats.addPhaseNanos(READ, read - start);
+
+            Slice slice = wrappedBuffer(chunk);
+            int offset = 0;
+            if (position == 0) {
+                // Slice is little endian
+                readHash = Long.reverseBytes(slice.getLong(0));
+                offset = HASH_LENGTH;
+            }
+            hasher.update(slice, offset, slice.length() - offset);
+            stats.addPhaseNanos(VERIFY, System.nanoTime() - read);
+        }
+        stats.addIn(length);
+
+        long computedHash = hasher.hash();
+        if (readHash != computedHash) {
+            stats.checksumFailed();
+            throw new IllegalArgumentException(format("Checksum failed: readHash: %s, computedHash: %s, packet length: %s", readHash, computedHash, length));
+        }
+
+        for (long end = length; end > 0; end -= chunk.limit()) {
+            long start = System.nanoTime();
+            chunk.clear();
+            chunk.limit((int) Math.min(chunkSize, end));
+            readFully(spill, chunk, end - chunk.limit());
+            chunk.flip();
+            long read = System.nanoTime();
+            stats.addPhaseNanos(READ, read - start);
+            reverse(chunk);
+            long reversed = System.nanoTime();
+            stats.addPhaseNanos(REVERSE, reversed - read);
+            writeFully(output, chunk);
+            stats.addPhaseNanos(WRITE, System.nanoTime() - reversed);
+        }
+        stats.addOut(length);
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        try {
+            spill.close();
+        }
+        finally {
+            bufferPool.release(chunk);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import com.google.common.annotations.VisibleForTesting;
+import io.airlift.log.Logger;
+
+import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static io.github.findepi.netsum.Throughput.formatNanos;
+import static io.github.findepi.netsum.Throughput.formatPercentiles;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Reports throughput and latency of each target of a client spreading its connections over several servers,
+ * while {@link Throughput} reports them all together. Warns of a slow target, one with a median latency or a
+ * packet rate per connection {@value #SLOW_FACTOR} times worse than the median of the other targets, which
+ * would otherwise only show as a lower aggregate rate.
+ */
+final class TargetMonitor
+{
+    private static final Logger log = Logger.get(TargetMonitor.class);
+
+    private static final int REPORT_INTERVAL_SECONDS = 5;
+    @VisibleForTesting
+    static final double SLOW_FACTOR = 2;
+
+    private final List<TargetGroup> groups;
+    private final long startNanos = System.nanoTime();
+    private final AtomicBoolean totalReported = new AtomicBoolean();
+
+    public TargetMonitor(Targets targets, TransferStats stats, Executor executor)
+    {
+        requireNonNull(stats, "stats is null");
+        this.groups = targets.getTargets().stream()
+                .map(target -> new TargetGroup(target, stats.newGroup()))
+                .collect(toImmutableList());
+        requireNonNull(executor, "executor is null").execute(this::report);
+    }
+
+    public List<TargetGroup> getGroups()
+    {
+        return groups;
+    }
+
+    public TargetGroup getGroup(Targets.Target target)
+    {
+        for (TargetGroup group : groups) {
+            if (group.getTarget() == target) {
+                return group;
+            }
+        }
+        throw new IllegalArgumentException("Unknown target: " + target);
+    }
+
+    private void report()
+    {
+        NumberFormat numberFormat = NumberFormat.getInstance(Locale.US);
+        int targets = groups.size();
+        long[] reportedBytes = new long[targets];
+        long[] reportedPackets = new long[targets];
+        LatencyHistogram[] reportedLatencies = new LatencyHistogram[targets];
+        Arrays.setAll(reportedLatencies, i -> new LatencyHistogram());
+        long reportedNanos = System.nanoTime();
+        try {
+            while (true) {
+                SECONDS.sleep(REPORT_INTERVAL_SECONDS);
+                long now = System.nanoTime();
+                double seconds = (now - reportedNanos) / 1e9;
+                reportedNanos = now;
+
+                long[] medianLatencies = new long[targets];
+                double[] packetRates = new double[targets];
+                for (int i = 0; i < targets; i++) {
+                    TargetGroup group = groups.get(i);
+                    long bytes = group.getStats().getBytesIn();
+                    long packets = group.getStats().getPacketsIn();
+                    LatencyHistogram latencies = group.mergedLatencies();
+                    LatencyHistogram interval = latencies.copy();
+                    interval.subtract(reportedLatencies[i]);
+
+                    log.info("Target %s: connections: %s, rate: %s, packets/s: %s%s",
+                            group.getTarget(),
+                            group.getStats().getActiveConnections(),
+                            numberFormat.format((long) ((bytes - reportedBytes[i]) / seconds)),
+                            numberFormat.format((long) ((packets - reportedPackets[i]) / seconds)),
+                            formatPercentiles("latency", interval));
+                    medianLatencies[i] = interval.getValueAtPercentile(50);
+                    packetRates[i] = (packets - reportedPackets[i]) / seconds / Math.max(1, group.getConnections());
+                    reportedBytes[i] = bytes;
+                    reportedPackets[i] = packets;
+                    reportedLatencies[i] = latencies;
+                }
+
+                // a target without connections has no packets to tell it slow by
+                int[] compared = IntStream.range(0, targets)
+                        .filter(i -> groups.get(i).getConnections() > 0)
+                        .toArray();
+                long[] comparedLatencies = Arrays.stream(compared).mapToLong(i -> medianLatencies[i]).toArray();
+                double[] comparedRates = Arrays.stream(compared).mapToDouble(i -> packetRates[i]).toArray();
+                for (int i = 0; i < compared.length; i++) {
+                    if (isSlow(i, comparedLatencies, comparedRates)) {
+                        log.warn("Slow target %s: latency p50: %s, packets/s per connection: %s, while the other targets have p50: %s, packets/s per connection: %s",
+                                groups.get(compared[i]).getTarget(),
+                                formatNanos(comparedLatencies[i]),
+                                numberFormat.format((long) comparedRates[i]),
+                                formatNanos(otherMedian(i, comparedLatencies)),
+                                numberFormat.format((long) otherMedian(i, comparedRates)));
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Throwable e) {
+            log.error(e, "Reporting failed");
+        }
+    }
+
+    /**
+     * Logs totals of each target since the start. Only the first call has effect.
+     */
+    public void reportTotal()
+    {
+        if (!totalReported.compareAndSet(false, true)) {
+            return;
+        }
+        NumberFormat numberFormat = NumberFormat.getInstance(Locale.US);
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        for (TargetGroup group : groups) {
+            TransferStats stats = group.getStats();
+            log.info("Total for target %s: %s connections, %s bytes, %s packets, mean rate: %s%s",
+                    group.getTarget(),
+                    numberFormat.format(stats.getTotalConnections()),
+                    numberFormat.format(stats.getBytesIn()),
+                    numberFormat.format(stats.getPacketsIn()),
+                    numberFormat.format((long) (stats.getBytesIn() / seconds)),
+                    formatPercentiles("latency", group.mergedLatencies()));
+        }
+    }
+
+    /**
+     * Tells whether target {@code index} is slow compared to the others. It is compared with the median of the
+     * others rather than of all targets, so that one slow target out of two is told as well. Targets without
+     * packets have no latency to compare.
+     */
+    @VisibleForTesting
+    static boolean isSlow(int index, long[] medianLatencies, double[] packetRates)
+    {
+        checkArgument(medianLatencies.length == packetRates.length, "Lengths differ");
+        if (packetRates.length < 2) {
+            return false;
+        }
+        if (packetRates[index] * SLOW_FACTOR < otherMedian(index, packetRates)) {
+            return true;
+        }
+        long otherLatency = otherMedian(index, medianLatencies);
+        return packetRates[index] > 0 && otherLatency > 0 && medianLatencies[index] > SLOW_FACTOR * otherLatency;
+    }
+
+    private static double otherMedian(int index, double[] values)
+    {
+        double[] others = IntStream.range(0, values.length)
+                .filter(i -> i != index)
+                .mapToDouble(i -> values[i])
+                .sorted()
+                .toArray();
+        return others[others.length / 2];
+    }
+
+    /**
+     * Returns the median of the positive values other than {@code index}, 0 if there are none.
+     */
+    private static long otherMedian(int index, long[] values)
+    {
+        long[] others = IntStream.range(0, values.length)
+                .filter(i -> i != index && values[i] > 0)
+                .mapToLong(i -> values[i])
+                .sorted()
+                .toArray();
+        return others.length == 0 ? 0 : others[others.length / 2];
+    }
+
+    public static final class TargetGroup
+    {
+        private final Targets.Target target;
+        private final TransferStats stats;
+        // one for each connection, i.e. client thread, to this target
+        private final List<LatencyHistogram> latencies = new CopyOnWriteArrayList<>();
+
+        private TargetGroup(Targets.Target target, TransferStats stats)
+        {
+            this.target = requireNonNull(target, "target is null");
+            this.stats = requireNonNull(stats, "stats is null");
+        }
+
+        public Targets.Target getTarget()
+        {
+            return target;
+        }
+
+        /**
+         * Returns statistics of the connections to the target, adding up into the client's.
+         */
+        public TransferStats getStats()
+        {
+            return stats;
+        }
+
+        /**
+         * Includes the latencies of a client thread connecting to the target in the target's reports.
+         */
+        public void addLatencies(LatencyHistogram histogram)
+        {
+            latencies.add(requireNonNull(histogram, "histogram is null"));
+        }
+
+        int getConnections()
+        {
+            return latencies.size();
+        }
+
+        LatencyHistogram mergedLatencies()
+        {
+            LatencyHistogram merged = new LatencyHistogram();
+            for (LatencyHistogram histogram : latencies) {
+                merged.add(histogram);
+            }
+            return merged;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Ints;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Servers for a client to spread its connections over, written as {@code HOST:PORT[=WEIGHT],...}. Each target
+ * gets connections in proportion to its weight, 1 unless given.
+ */
+public final class Targets
+{
+    private final String description;
+    private final List<Target> targets;
+
+    private Targets(String description, List<Target> targets)
+    {
+        this.description = requireNonNull(description, "description is null");
+        this.targets = ImmutableList.copyOf(requireNonNull(targets, "targets is null"));
+        checkArgument(!targets.isEmpty(), "No targets");
+    }
+
+    public static Targets fromString(String value)
+    {
+        ImmutableList.Builder<Target> targets = ImmutableList.builder();
+        for (String target : Splitter.on(',').trimResults().omitEmptyStrings().split(value)) {
+            int weight = 1;
+            int weightSeparator = target.lastIndexOf('=');
+            if (weightSeparator >= 0) {
+                weight = parseInt("weight", target.substring(weightSeparator + 1));
+                target = target.substring(0, weightSeparator);
+            }
+            // the last colon, so that IPv6 addresses work
+            int portSeparator = target.lastIndexOf(':');
+            checkArgument(portSeparator > 0, "Invalid target, HOST:PORT expected: %s", target);
+            String host = target.substring(0, portSeparator);
+            if (host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
+            }
+            targets.add(new Target(host, parseInt("port", target.substring(portSeparator + 1)), weight));
+        }
+        return new Targets(value, targets.build());
+    }
+
+    public List<Target> getTargets()
+    {
+        return targets;
+    }
+
+    /**
+     * Returns the target of each of {@code connections} connections, at least one for each target. Targets are
+     * interleaved by smooth weighted round-robin, so that connections opened in order spread over all targets
+     * instead of filling one at a time.
+     */
+    public List<Target> assign(int connections)
+    {
+        checkArgument(connections >= targets.size(), "Fewer connections than targets: %s", connections);
+        int[] counts = new int[targets.size()];
+        for (int selected : interleave(targets.stream().mapToInt(Target::getWeight).toArray(), connections)) {
+            counts[selected]++;
+        }
+        // a target of a weight too small for a connection of its own takes one from the target with the most
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) {
+                int most = 0;
+                for (int j = 1; j < counts.length; j++) {
+                    if (counts[j] > counts[most]) {
+                        most = j;
+                    }
+                }
+                counts[most]--;
+                counts[i]++;
+            }
+        }
+
+        ImmutableList.Builder<Target> assignment = ImmutableList.builder();
+        for (int selected : interleave(counts, connections)) {
+            assignment.add(targets.get(selected));
+        }
+        return assignment.build();
+    }
+
+    /**
+     * Returns {@code count} indexes of {@code weights}, each in proportion to its weight, by smooth weighted
+     * round-robin.
+     */
+    private static int[] interleave(int[] weights, int count)
+    {
+        long totalWeight = 0;
+        for (int weight : weights) {
+            totalWeight += weight;
+        }
+        long[] current = new long[weights.length];
+        int[] selection = new int[count];
+        for (int n = 0; n < count; n++) {
+            int selected = 0;
+            for (int i = 0; i < weights.length; i++) {
+                current[i] += weights[i];
+                if (current[i] > current[selected]) {
+                    selected = i;
+                }
+            }
+            current[selected] -= totalWeight;
+            selection[n] = selected;
+        }
+        return selection;
+    }
+
+    private static int parseInt(String name, String value)
+    {
+        Integer parsed = Ints.tryParse(value.trim());
+        checkArgument(parsed != null && parsed > 0, "Invalid %s: %s", name, value);
+        return parsed;
+    }
+
+    @Override
+    public String toString()
+    {
+        return description;
+    }
+
+    public static final class Target
+    {
+        private final String host;
+        private final int port;
+        private final int weight;
+
+        public Target(String host, int port, int weight)
+        {
+            this.host = requireNonNull(host, "host is null");
+            checkArgument(!host.isEmpty(), "Empty host");
+            checkArgument(port > 0 && port <= 0xFFFF, "Invalid port: %s", port);
+            checkArgument(weight > 0, "Invalid weight: %s", weight);
+            this.port = port;
+            this.weight = weight;
+        }
+
+        public InetSocketAddress getAddress()
+        {
+            return new InetSocketAddress(host, port);
+        }
+
+        public int getWeight()
+        {
+            return weight;
+        }
+
+        @Override
+        public String toString()
+        {
+            return host.indexOf(':') >= 0 ? "[" + host + "]:" + port : host + ":" + port;
+        }
+    }
+}
@@ -13,36 +13,99 @@
  */
 package io.github.findepi.netsum;
 
+import com.google.common.annotations.VisibleForTesting;
 import io.airlift.log.Logger;
-import io.airlift.stats.DecayCounter;
-import io.airlift.stats.ExponentialDecay;
+import org.weakref.jmx.Managed;
+
+import javax.annotation.Nullable;
 
 import java.text.NumberFormat;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
 import static java.util.Objects.requireNonNull;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+/**
+ * Counts bytes and packets transferred, as well as connections opened, and periodically logs the rates, with the
+ * round trip latencies. Counting is lock free, so that it does not become a point of contention between connections.
+ * The counters are sampled every second to provide rates over the last 1 to {@value #MAX_WINDOW_SECONDS} seconds,
+ * as well as a rate decayed exponentially over one minute. The statistics of particular features are kept apart,
+ * in {@link ConnectStats}, {@link DatagramStats} and {@link SizeStats}.
+ */
 public class Throughput
 {
     private static final Logger log = Logger.get(Throughput.class);
 
-    // TODO is this the way?
-    private DecayCounter counter = new DecayCounter(ExponentialDecay.oneMinute());
+    private static final int MAX_WINDOW_SECONDS = 60;
+    private static final int REPORT_INTERVAL_SECONDS = 5;
+
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder packets = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    private final long startNanos;
+
+    // ring of samples, one per second, guarded by this
+    private final long[] sampleNanos = new long[MAX_WINDOW_SECONDS + 1];
+    private final long[] sampleBytes = new long[MAX_WINDOW_SECONDS + 1];
+    private final long[] samplePackets = new long[MAX_WINDOW_SECONDS + 1];
+    private final long[] sampleConnections = new long[MAX_WINDOW_SECONDS + 1];
+    private long samples;
+    private double decayedByteRate;
+
+    private final List<LatencyHistogram> latencies = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean totalReported = new AtomicBoolean();
 
     public Throughput(Executor executor)
     {
+        this(executor, System.nanoTime());
+    }
+
+    @VisibleForTesting
+    Throughput(Executor executor, long startNanos)
+    {
+        this.startNanos = startNanos;
+        sample(startNanos);
         requireNonNull(executor, "executor is null").execute(this::report);
     }
 
     private void report()
     {
         NumberFormat numberFormat = NumberFormat.getInstance(Locale.US);
+        LatencyHistogram reported = new LatencyHistogram();
+        long reportedConnections = 0;
         try {
-            while (true) {
-                SECONDS.sleep(5);
-                log.info("Rate: %s", numberFormat.format((long) counter.getRate()));
+            for (long tick = 1; ; tick++) {
+                SECONDS.sleep(1);
+                sample(System.nanoTime());
+                if (tick % REPORT_INTERVAL_SECONDS != 0) {
+                    continue;
+                }
+
+                LatencyHistogram current = mergedLatencies();
+                LatencyHistogram interval = current.copy();
+                interval.subtract(reported);
+                reported = current;
+                log.info("Rate: %s (1s: %s, 10s: %s, 60s: %s), packets/s: %s%s",
+                        numberFormat.format((long) getDecayedByteRate()),
+                        numberFormat.format((long) getByteRate(1)),
+                        numberFormat.format((long) getByteRate(10)),
+                        numberFormat.format((long) getByteRate(60)),
+                        numberFormat.format((long) getPacketRate(10)),
+                        formatLatencies(interval));
+
+                // only when connections come and go
+                long connections = getTotalConnections();
+                if (connections != reportedConnections) {
+                    log.info("Connections/s: %s", numberFormat.format((long) getConnectionRate(REPORT_INTERVAL_SECONDS)));
+                    reportedConnections = connections;
+                }
             }
         }
         catch (Throwable e) {
@@ -50,8 +113,247 @@ public class Throughput
         }
     }
 
+    /**
+     * Logs totals since the start. Only the first call has effect, so that it can be called both
+     * on normal completion and from a shutdown hook.
+     */
+    public void reportTotal()
+    {
+        if (!totalReported.compareAndSet(false, true)) {
+            return;
+        }
+        NumberFormat numberFormat = NumberFormat.getInstance(Locale.US);
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        log.info("Total: %s bytes, %s packets, mean rate: %s%s",
+                numberFormat.format(getTotalBytes()),
+                numberFormat.format(getTotalPackets()),
+                numberFormat.format((long) (getTotalBytes() / seconds)),
+                formatLatencies(mergedLatencies()));
+        if (getTotalConnections() > 0) {
+            log.info("Total: %s connections, mean rate: %s",
+                    numberFormat.format(getTotalConnections()),
+                    numberFormat.format((long) (getTotalConnections() / seconds)));
+        }
+    }
+
+    /**
+     * Records a packet of {@code bytes} transferred.
+     */
     public void add(long bytes)
     {
-        counter.add(bytes);
+        this.bytes.add(bytes);
+        packets.increment();
+    }
+
+    /**
+     * Records a connection opened.
+     */
+    public void addConnection()
+    {
+        connections.increment();
+    }
+
+    @Managed
+    public long getTotalBytes()
+    {
+        return bytes.sum();
+    }
+
+    @Managed
+    public long getTotalPackets()
+    {
+        return packets.sum();
+    }
+
+    /**
+     * Returns bytes per second over the last {@code windowSeconds} seconds, as of the latest sample.
+     */
+    public synchronized double getByteRate(int windowSeconds)
+    {
+        return rate(sampleBytes, windowSeconds);
+    }
+
+    /**
+     * Returns packets per second over the last {@code windowSeconds} seconds, as of the latest sample.
+     */
+    public synchronized double getPacketRate(int windowSeconds)
+    {
+        return rate(samplePackets, windowSeconds);
+    }
+
+    /**
+     * Returns connections opened per second over the last {@code windowSeconds} seconds, as of the latest sample.
+     */
+    public synchronized double getConnectionRate(int windowSeconds)
+    {
+        return rate(sampleConnections, windowSeconds);
+    }
+
+    /**
+     * Returns bytes per second, exponentially decayed over one minute.
+     */
+    @Managed
+    public synchronized double getDecayedByteRate()
+    {
+        return decayedByteRate;
+    }
+
+    @Managed
+    public double getOneSecondByteRate()
+    {
+        return getByteRate(1);
+    }
+
+    @Managed
+    public double getTenSecondByteRate()
+    {
+        return getByteRate(10);
+    }
+
+    @Managed
+    public double getOneMinuteByteRate()
+    {
+        return getByteRate(60);
+    }
+
+    @Managed
+    public double getOneSecondPacketRate()
+    {
+        return getPacketRate(1);
+    }
+
+    @Managed
+    public double getTenSecondPacketRate()
+    {
+        return getPacketRate(10);
+    }
+
+    @Managed
+    public double getOneMinutePacketRate()
+    {
+        return getPacketRate(60);
+    }
+
+    @Managed
+    public long getTotalConnections()
+    {
+        return connections.sum();
+    }
+
+    @Managed
+    public double getTenSecondConnectionRate()
+    {
+        return getConnectionRate(10);
+    }
+
+    @VisibleForTesting
+    synchronized void sample(long nowNanos)
+    {
+        int index = (int) (samples % sampleNanos.length);
+        sampleNanos[index] = nowNanos;
+        sampleBytes[index] = bytes.sum();
+        samplePackets[index] = packets.sum();
+        sampleConnections[index] = connections.sum();
+
+        if (samples > 0) {
+            int previous = (int) ((samples - 1) % sampleNanos.length);
+            double elapsedSeconds = (nowNanos - sampleNanos[previous]) / 1e9;
+            if (elapsedSeconds > 0) {
+                double instantRate = (sampleBytes[index] - sampleBytes[previous]) / elapsedSeconds;
+                if (samples == 1) {
+                    decayedByteRate = instantRate;
+                }
+                else {
+                    double alpha = 1 - Math.exp(-elapsedSeconds / MAX_WINDOW_SECONDS);
+                    decayedByteRate += alpha * (instantRate - decayedByteRate);
+                }
+            }
+        }
+        samples++;
+    }
+
+    private double rate(long[] values, int windowSeconds)
+    {
+        checkArgument(windowSeconds > 0 && windowSeconds <= MAX_WINDOW_SECONDS, "Invalid windowSeconds: %s", windowSeconds);
+        long latest = samples - 1;
+        long oldest = Math.max(0, latest - windowSeconds);
+        int latestIndex = (int) (latest % sampleNanos.length);
+        int oldestIndex = (int) (oldest % sampleNanos.length);
+        long elapsedNanos = sampleNanos[latestIndex] - sampleNanos[oldestIndex];
+        if (elapsedNanos <= 0) {
+            return 0;
+        }
+        return (values[latestIndex] - values[oldestIndex]) * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * Returns a new histogram for recording round trip latencies, included in reports. Histograms are kept
+     * for the final report, so they should not be created per connection when connections are short lived.
+     */
+    public LatencyHistogram newLatencyHistogram()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        latencies.add(histogram);
+        return histogram;
+    }
+
+    /**
+     * Returns the round trip latencies recorded in all {@link #newLatencyHistogram() histograms}, or {@code null}
+     * if there are none, as on the server.
+     */
+    @Nullable
+    public LatencyHistogram getLatencies()
+    {
+        return latencies.isEmpty() ? null : mergedLatencies();
+    }
+
+    private LatencyHistogram mergedLatencies()
+    {
+        LatencyHistogram merged = new LatencyHistogram();
+        for (LatencyHistogram histogram : latencies) {
+            merged.add(histogram);
+        }
+        return merged;
+    }
+
+    private String formatLatencies(LatencyHistogram histogram)
+    {
+        if (latencies.isEmpty()) {
+            return "";
+        }
+        return percentiles("latency", histogram);
+    }
+
+    static String formatPercentiles(String name, LatencyHistogram histogram)
+    {
+        if (histogram.getCount() == 0) {
+            return "";
+        }
+        return percentiles(name, histogram);
+    }
+
+    private static String percentiles(String name, LatencyHistogram histogram)
+    {
+        return format(", %s p50: %s, p90: %s, p99: %s, p99.9: %s, max: %s",
+                name,
+                formatNanos(histogram.getValueAtPercentile(50)),
+                formatNanos(histogram.getValueAtPercentile(90)),
+                formatNanos(histogram.getValueAtPercentile(99)),
+                formatNanos(histogram.getValueAtPercentile(99.9)),
+                formatNanos(histogram.getMax()));
+    }
+
+    static String formatNanos(long nanos)
+    {
+        if (nanos < 1_000) {
+            return nanos + "ns";
+        }
+        if (nanos < 1_000_000) {
+            return format(Locale.US, "%.1fus", nanos / 1e3);
+        }
+        if (nanos < 1_000_000_000) {
+            return format(Locale.US, "%.2fms", nanos / 1e6);
+        }
+        return format(Locale.US, "%.2fs", nanos / 1e9);
     }
 }
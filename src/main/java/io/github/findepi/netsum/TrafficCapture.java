@@ -0,0 +1,296 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import com.google.common.collect.ImmutableList;
+import io.airlift.slice.Slice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static io.airlift.slice.Slices.wrappedBuffer;
+import static java.lang.String.format;
+import static java.nio.ByteOrder.BIG_ENDIAN;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Packets recorded by {@link TrafficRecorder}, mapped into memory for replay. A capture is a sequence of segment
+ * files, {@code FILE.000000}, {@code FILE.000001} and so on, each
+ * <ul>
+ * <li>magic: 4 bytes, {@code NSUM}</li>
+ * <li>format version: 4 bytes, big endian, 1</li>
+ * <li>protocol version: 4 bytes, big endian, of all packets in the segment</li>
+ * <li>reserved: 4 bytes, zero</li>
+ * <li>frames, as sent over TCP: a packet length of 4 bytes, big endian, followed by the packet</li>
+ * </ul>
+ * A zero length ends the frames, which is where a segment left behind by a crash, not truncated to its frames,
+ * ends. The last segment may have no frames at all, if the crash came right after it was started. Since frames are stored as sent, consecutive frames can be sent straight from the files.
+ */
+final class TrafficCapture
+        implements Closeable
+{
+    public static final int MAGIC = 0x4e53554d;
+    public static final int FORMAT_VERSION = 1;
+    public static final int HEADER_LENGTH = 16;
+
+    private final List<Segment> segments;
+    private final ProtocolVersion version;
+    private final long packets;
+    private final long bytes;
+    private final int minPacketLength;
+    private final int maxPacketLength;
+
+    private TrafficCapture(List<Segment> segments)
+    {
+        checkArgument(!segments.isEmpty(), "No segments");
+        this.segments = ImmutableList.copyOf(segments);
+        this.version = segments.get(0).version;
+        long packets = 0;
+        long bytes = 0;
+        int minPacketLength = Integer.MAX_VALUE;
+        int maxPacketLength = 0;
+        for (Segment segment : segments) {
+            checkArgument(segment.version == version, "Segments of protocol %s and %s, replaying mixed protocols is not supported", version, segment.version);
+            for (int frame = 0; frame < segment.frames; frame++) {
+                int length = segment.packetLength(frame);
+                packets++;
+                bytes += length;
+                minPacketLength = Math.min(minPacketLength, length);
+                maxPacketLength = Math.max(maxPacketLength, length);
+            }
+        }
+        checkArgument(packets > 0, "No packets");
+        this.packets = packets;
+        this.bytes = bytes;
+        this.minPacketLength = minPacketLength;
+        this.maxPacketLength = maxPacketLength;
+    }
+
+    /**
+     * Opens the capture of segments {@code FILE.000000} onwards.
+     */
+    public static TrafficCapture open(Path file)
+            throws IOException
+    {
+        List<Segment> segments = new ArrayList<>();
+        boolean success = false;
+        try {
+            for (int index = 0; Files.exists(segmentPath(file, index)); index++) {
+                Path path = segmentPath(file, index);
+                Segment segment = Segment.open(path);
+                segments.add(segment);
+                if (segment.frames == 0) {
+                    // a segment is started for a packet, and only a crash before the packet's frame is complete
+                    // leaves it empty, which can only happen to the last one
+                    checkArgument(index > 0 && !Files.exists(segmentPath(file, index + 1)), "No packets in %s", path);
+                    segments.remove(segments.size() - 1);
+                    segment.channel.close();
+                }
+            }
+            if (segments.isEmpty()) {
+                throw new IllegalArgumentException(format("No capture found: %s", segmentPath(file, 0)));
+            }
+            TrafficCapture capture = new TrafficCapture(segments);
+            success = true;
+            return capture;
+        }
+        finally {
+            if (!success) {
+                for (Segment segment : segments) {
+                    segment.channel.close();
+                }
+            }
+        }
+    }
+
+    static Path segmentPath(Path file, int index)
+    {
+        return file.resolveSibling(format("%s.%06d", file.getFileName(), index));
+    }
+
+    public ProtocolVersion getVersion()
+    {
+        return version;
+    }
+
+    public long getPackets()
+    {
+        return packets;
+    }
+
+    public int getSegments()
+    {
+        return segments.size();
+    }
+
+    public int getMinPacketLength()
+    {
+        return minPacketLength;
+    }
+
+    public int getMaxPacketLength()
+    {
+        return maxPacketLength;
+    }
+
+    public double getMeanPacketLength()
+    {
+        return (double) bytes / packets;
+    }
+
+    /**
+     * Returns a cursor at the first packet. Cursors are not thread safe, but any number of them can be used at once.
+     */
+    public Cursor newCursor()
+    {
+        return new Cursor();
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        // the mappings go away with the buffers, once garbage collected
+        for (Segment segment : segments) {
+            segment.channel.close();
+        }
+    }
+
+    /**
+     * Goes over the packets in order, starting over after the last one.
+     */
+    public final class Cursor
+    {
+        private int segment;
+        private int frame;
+
+        private Cursor() {}
+
+        /**
+         * Returns the current packet, read-only.
+         */
+        public Slice packet()
+        {
+            Segment current = segments.get(segment);
+            return current.data.slice(current.frameOffset(frame) + Integer.BYTES, current.packetLength(frame));
+        }
+
+        /**
+         * Returns the file of the current frame, for reading frames with the positional methods only.
+         */
+        public FileChannel file()
+        {
+            return segments.get(segment).channel;
+        }
+
+        /**
+         * Returns the position of the current frame, including its length, in {@link #file()}.
+         */
+        public long frameStart()
+        {
+            return segments.get(segment).frameOffset(frame);
+        }
+
+        public long frameEnd()
+        {
+            Segment current = segments.get(segment);
+            return current.frameOffset(frame) + Integer.BYTES + current.packetLength(frame);
+        }
+
+        public void next()
+        {
+            frame++;
+            if (frame == segments.get(segment).frames) {
+                frame = 0;
+                segment = (segment + 1) % segments.size();
+            }
+        }
+    }
+
+    private static final class Segment
+    {
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final Slice data;
+        private final ProtocolVersion version;
+        private final int[] frameOffsets;
+        private final int frames;
+
+        private Segment(FileChannel channel, MappedByteBuffer buffer, ProtocolVersion version, int[] frameOffsets, int frames)
+        {
+            this.channel = requireNonNull(channel, "channel is null");
+            this.buffer = requireNonNull(buffer, "buffer is null");
+            this.data = wrappedBuffer(buffer);
+            this.version = requireNonNull(version, "version is null");
+            this.frameOffsets = requireNonNull(frameOffsets, "frameOffsets is null");
+            this.frames = frames;
+        }
+
+        static Segment open(Path path)
+                throws IOException
+        {
+            FileChannel channel = FileChannel.open(path, READ);
+            try {
+                long size = channel.size();
+                checkArgument(size >= HEADER_LENGTH && size <= Integer.MAX_VALUE, "Invalid size of %s: %s", path, size);
+                MappedByteBuffer buffer = channel.map(READ_ONLY, 0, size);
+                buffer.order(BIG_ENDIAN);
+                checkArgument(buffer.getInt(0) == MAGIC, "Not a capture segment: %s", path);
+                checkArgument(buffer.getInt(4) == FORMAT_VERSION, "Unsupported format version of %s: %s", path, buffer.getInt(4));
+                ProtocolVersion version = ProtocolVersion.fromId(buffer.getInt(8));
+
+                int[] frameOffsets = new int[1024];
+                int frames = 0;
+                int position = HEADER_LENGTH;
+                while (position + Integer.BYTES <= size) {
+                    int length = buffer.getInt(position);
+                    if (length == 0) {
+                        break;
+                    }
+                    checkArgument(length > 0 && length <= size - position - Integer.BYTES, "Invalid frame in %s at %s, length: %s", path, position, length);
+                    if (frames == frameOffsets.length) {
+                        frameOffsets = Arrays.copyOf(frameOffsets, 2 * frames);
+                    }
+                    frameOffsets[frames++] = position;
+                    position += Integer.BYTES + length;
+                }
+                return new Segment(channel, buffer, version, frameOffsets, frames);
+            }
+            catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        int frameOffset(int frame)
+        {
+            return frameOffsets[frame];
+        }
+
+        int packetLength(int frame)
+        {
+            return buffer.getInt(frameOffsets[frame]);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import io.airlift.log.Logger;
+
+import javax.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static io.github.findepi.netsum.TrafficCapture.FORMAT_VERSION;
+import static io.github.findepi.netsum.TrafficCapture.HEADER_LENGTH;
+import static io.github.findepi.netsum.TrafficCapture.MAGIC;
+import static io.github.findepi.netsum.TrafficCapture.segmentPath;
+import static java.nio.ByteOrder.BIG_ENDIAN;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Appends packets to a capture, in the format described in {@link TrafficCapture}, through memory-mapped segments
+ * of a fixed size. A new segment is started when the current one is full, or for a packet of another protocol version.
+ * Thread safe; packets of all connections go to one capture, in the order recorded.
+ */
+final class TrafficRecorder
+        implements Closeable
+{
+    private static final Logger log = Logger.get(TrafficRecorder.class);
+
+    private final Path file;
+    private final int segmentSize;
+    // not a monitor, which would pin the carrier thread of a virtual thread writing to the segment
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // guarded by lock
+    private boolean closed;
+    private int segments;
+    @Nullable
+    private FileChannel channel;
+    @Nullable
+    private MappedByteBuffer segment;
+    @Nullable
+    private ProtocolVersion version;
+
+    /**
+     * Starts a capture in {@code FILE.000000} onwards. The segments of a previous capture in {@code file} are
+     * deleted if {@code replace} is set, otherwise they fail the recorder.
+     */
+    public TrafficRecorder(Path file, int segmentSize, boolean replace)
+            throws IOException
+    {
+        checkArgument(segmentSize >= HEADER_LENGTH + Integer.BYTES, "Invalid segmentSize: %s", segmentSize);
+        this.file = requireNonNull(file, "file is null");
+        this.segmentSize = segmentSize;
+        if (!replace && Files.exists(segmentPath(file, 0))) {
+            throw new FileAlreadyExistsException(segmentPath(file, 0).toString(), null, "A capture exists already");
+        }
+        int deleted = 0;
+        while (Files.deleteIfExists(segmentPath(file, deleted))) {
+            deleted++;
+        }
+        if (deleted > 0) {
+            log.info("Deleted %s segments of a previous capture in %s", deleted, file);
+        }
+    }
+
+    /**
+     * Records the packet between {@code packet}'s position and limit, without changing the position. Fails once
+     * the recorder is closed.
+     */
+    public void record(ProtocolVersion version, ByteBuffer packet)
+            throws IOException
+    {
+        int length = packet.remaining();
+        lock.lock();
+        try {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (segment == null || version != this.version || segment.remaining() < Integer.BYTES + length) {
+                finishSegment();
+                // a packet larger than a segment gets a segment of its own
+                startSegment(version, Math.max(segmentSize, HEADER_LENGTH + Integer.BYTES + length));
+            }
+            // the length, zero until set, publishes the frame, so that a crash while copying the packet
+            // leaves the end of the frames where it was
+            int frame = segment.position();
+            segment.position(frame + Integer.BYTES);
+            segment.put(packet.duplicate());
+            segment.putInt(frame, length);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void startSegment(ProtocolVersion version, int size)
+            throws IOException
+    {
+        Path path = segmentPath(file, segments);
+        channel = FileChannel.open(path, CREATE_NEW, READ, WRITE);
+        segment = channel.map(READ_WRITE, 0, size);
+        segment.order(BIG_ENDIAN);
+        segment.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(version.getId()).putInt(0);
+        this.version = version;
+        segments++;
+    }
+
+    private void finishSegment()
+            throws IOException
+    {
+        if (segment == null) {
+            return;
+        }
+        try {
+            // the mapping shares the page cache with the file, the data needs no flushing to be read back,
+            // and the mapping past the end is not accessed anymore
+            channel.truncate(segment.position());
+        }
+        finally {
+            channel.close();
+            channel = null;
+            segment = null;
+        }
+    }
+
+    /**
+     * Truncates the last segment to its frames. Can be called more than once, e.g. by a shutdown hook too.
+     */
+    @Override
+    public void close()
+            throws IOException
+    {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            finishSegment();
+            if (segments > 0) {
+                log.info("Recorded %s segments in %s", segments, file);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.weakref.jmx.Managed;
+
+import javax.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the data transferred and of the time spent in each phase of packet handling, exported over JMX.
+ * There is one instance for the client or server as a whole and one for each connection, possibly with
+ * groups of connections, like those of one acceptor, in between; statistics add up into the enclosing ones.
+ */
+public final class TransferStats
+{
+    public enum Phase
+    {
+        GENERATE,
+        READ,
+        VERIFY,
+        REVERSE,
+        WRITE,
+    }
+
+    @Nullable
+    private final TransferStats parent;
+
+    private final AtomicLong activeConnections = new AtomicLong();
+    private final LongAdder totalConnections = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder packetsIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder packetsOut = new LongAdder();
+    private final LongAdder checksumFailures = new LongAdder();
+    private final LongAdder connectionFailures = new LongAdder();
+    private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+
+    public TransferStats()
+    {
+        this(null);
+    }
+
+    private TransferStats(@Nullable TransferStats parent)
+    {
+        this.parent = parent;
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Returns statistics for a group of connections, adding up into these.
+     */
+    public TransferStats newGroup()
+    {
+        return new TransferStats(this);
+    }
+
+    /**
+     * Returns statistics for a new connection, counted as active until {@link #connectionClosed()}.
+     */
+    public TransferStats connectionOpened()
+    {
+        for (TransferStats stats = this; stats != null; stats = stats.parent) {
+            stats.activeConnections.incrementAndGet();
+            stats.totalConnections.increment();
+        }
+        return new TransferStats(this);
+    }
+
+    /**
+     * Called on the statistics returned from {@link #connectionOpened()}.
+     */
+    public void connectionClosed()
+    {
+        for (TransferStats stats = parent; stats != null; stats = stats.parent) {
+            stats.activeConnections.decrementAndGet();
+        }
+    }
+
+    public void addIn(long bytes)
+    {
+        bytesIn.add(bytes);
+        packetsIn.increment();
+        if (parent != null) {
+            parent.addIn(bytes);
+        }
+    }
+
+    public void addOut(long bytes)
+    {
+        bytesOut.add(bytes);
+        packetsOut.increment();
+        if (parent != null) {
+            parent.addOut(bytes);
+        }
+    }
+
+    public void checksumFailed()
+    {
+        checksumFailures.increment();
+        if (parent != null) {
+            parent.checksumFailed();
+        }
+    }
+
+    /**
+     * Records a connection ended by an error.
+     */
+    public void connectionFailed()
+    {
+        connectionFailures.increment();
+        if (parent != null) {
+            parent.connectionFailed();
+        }
+    }
+
+    public void addPhaseNanos(Phase phase, long nanos)
+    {
+        phaseNanos[phase.ordinal()].add(nanos);
+        if (parent != null) {
+            parent.addPhaseNanos(phase, nanos);
+        }
+    }
+
+    @Managed
+    public long getActiveConnections()
+    {
+        return activeConnections.get();
+    }
+
+    @Managed
+    public long getTotalConnections()
+    {
+        return totalConnections.sum();
+    }
+
+    @Managed
+    public long getBytesIn()
+    {
+        return bytesIn.sum();
+    }
+
+    @Managed
+    public long getPacketsIn()
+    {
+        return packetsIn.sum();
+    }
+
+    @Managed
+    public long getBytesOut()
+    {
+        return bytesOut.sum();
+    }
+
+    @Managed
+    public long getPacketsOut()
+    {
+        return packetsOut.sum();
+    }
+
+    @Managed
+    public long getChecksumFailures()
+    {
+        return checksumFailures.sum();
+    }
+
+    @Managed
+    public long getConnectionFailures()
+    {
+        return connectionFailures.sum();
+    }
+
+    @Managed(description = "Nanoseconds spent generating packets")
+    public long getGenerateNanos()
+    {
+        return getPhaseNanos(Phase.GENERATE);
+    }
+
+    @Managed(description = "Nanoseconds spent reading, including waiting for data")
+    public long getReadNanos()
+    {
+        return getPhaseNanos(Phase.READ);
+    }
+
+    @Managed(description = "Nanoseconds spent verifying packets or responses")
+    public long getVerifyNanos()
+    {
+        return getPhaseNanos(Phase.VERIFY);
+    }
+
+    @Managed(description = "Nanoseconds spent reversing packets")
+    public long getReverseNanos()
+    {
+        return getPhaseNanos(Phase.REVERSE);
+    }
+
+    @Managed(description = "Nanoseconds spent writing")
+    public long getWriteNanos()
+    {
+        return getPhaseNanos(Phase.WRITE);
+    }
+
+    public long getPhaseNanos(Phase phase)
+    {
+        return phaseNanos[phase.ordinal()].sum();
+    }
+}
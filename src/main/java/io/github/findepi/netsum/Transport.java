@@ -0,0 +1,33 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import static java.util.Locale.ENGLISH;
+
+/**
+ * Transport carrying packets: TCP, with length prefixed packets on a stream, UDP, with a packet per
+ * datagram, see {@link UdpServer}, or shared memory between processes on one host, with the same framing
+ * as TCP, see {@link SharedMemoryTransport}.
+ */
+public enum Transport
+{
+    TCP,
+    UDP,
+    SHM;
+
+    public static Transport fromString(String value)
+    {
+        return valueOf(value.toUpperCase(ENGLISH));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import io.airlift.log.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+import static io.github.findepi.netsum.Packets.HASH_LENGTH;
+import static io.github.findepi.netsum.Server.reverse;
+import static io.github.findepi.netsum.Server.verifyPacket;
+import static io.github.findepi.netsum.TransferStats.Phase.READ;
+import static io.github.findepi.netsum.TransferStats.Phase.REVERSE;
+import static io.github.findepi.netsum.TransferStats.Phase.VERIFY;
+import static io.github.findepi.netsum.TransferStats.Phase.WRITE;
+import static java.net.StandardSocketOptions.SO_RCVBUF;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Server for the UDP transport, answering each datagram on a single thread. A datagram is
+ * <ul>
+ * <li>sequence number: 8 bytes, big endian, counting datagrams sent by the client from 0</li>
+ * <li>send time: 8 bytes, big endian, {@link System#nanoTime()} of the client</li>
+ * <li>packet: protocol version 1</li>
+ * </ul>
+ * The response is the same datagram with the packet reversed, so that the client can tell lost, reordered and
+ * duplicated datagrams, and time the round trip, without keeping track of each datagram. Invalid datagrams
+ * are dropped, which the client sees as loss.
+ */
+final class UdpServer
+{
+    private static final Logger log = Logger.get(UdpServer.class);
+
+    public static final int DATAGRAM_HEADER_LENGTH = 16;
+    // the largest UDP payload over IPv4
+    public static final int MAX_DATAGRAM_LENGTH = 65_507;
+    // room for bursts and pauses of either side, so that the tool itself loses few datagrams; capped by the OS
+    static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final int port;
+    private final Throughput throughput;
+    private final TransferStats stats;
+
+    public UdpServer(int port, Throughput throughput, TransferStats stats)
+    {
+        this.port = port;
+        this.throughput = requireNonNull(throughput, "throughput is null");
+        this.stats = requireNonNull(stats, "stats is null");
+    }
+
+    public void run()
+    {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.setOption(SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            channel.bind(new InetSocketAddress(port));
+            serve(channel);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Answers datagrams received on {@code channel} until it is closed.
+     */
+    void serve(DatagramChannel channel)
+            throws IOException
+    {
+        ByteBuffer datagram = ByteBuffer.allocateDirect(MAX_DATAGRAM_LENGTH);
+        while (true) {
+            datagram.clear();
+            long start = System.nanoTime();
+            SocketAddress client;
+            try {
+                client = channel.receive(datagram);
+            }
+            catch (ClosedChannelException e) {
+                return;
+            }
+            datagram.flip();
+            long read = System.nanoTime();
+            stats.addPhaseNanos(READ, read - start);
+            int length = datagram.remaining();
+            // the packet only, as on the client
+            stats.addIn(Math.max(0, length - DATAGRAM_HEADER_LENGTH));
+
+            if (length < DATAGRAM_HEADER_LENGTH + HASH_LENGTH) {
+                log.debug("Dropping datagram of %s bytes from %s", length, client);
+                continue;
+            }
+            ByteBuffer packet = datagram.duplicate();
+            packet.position(DATAGRAM_HEADER_LENGTH);
+            try {
+                verifyPacket(ProtocolVersion.V1, packet, stats);
+            }
+            catch (IllegalArgumentException e) {
+                log.debug(e, "Dropping invalid datagram from %s", client);
+                continue;
+            }
+            long verified = System.nanoTime();
+            stats.addPhaseNanos(VERIFY, verified - read);
+
+            reverse(packet);
+            long reversed = System.nanoTime();
+            stats.addPhaseNanos(REVERSE, reversed - verified);
+
+            // a datagram is sent whole or not at all
+            channel.send(datagram, client);
+            stats.addPhaseNanos(WRITE, System.nanoTime() - reversed);
+            stats.addOut(length - DATAGRAM_HEADER_LENGTH);
+            throughput.add(length - DATAGRAM_HEADER_LENGTH);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Access to virtual threads (Java 21+) while still compiling for older Java versions.
+ */
+final class VirtualThreads
+{
+    private VirtualThreads() {}
+
+    private static final MethodHandle VIRTUAL_THREAD_FACTORY = virtualThreadFactoryHandle();
+    private static final MethodHandle THREAD_PER_TASK_EXECUTOR = threadPerTaskExecutorHandle();
+
+    public static boolean isSupported()
+    {
+        return VIRTUAL_THREAD_FACTORY != null && THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * Returns an executor starting a new virtual thread, named {@code namePrefix} followed by a sequence number, for each task.
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor(String namePrefix)
+    {
+        if (!isSupported()) {
+            throw new IllegalStateException("Virtual threads require Java 21 or newer, running on " + System.getProperty("java.version"));
+        }
+        try {
+            ThreadFactory threadFactory = (ThreadFactory) VIRTUAL_THREAD_FACTORY.invoke(namePrefix, 0L);
+            return (ExecutorService) THREAD_PER_TASK_EXECUTOR.invoke(threadFactory);
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Thread.ofVirtual().name(prefix, start).factory()
+    private static MethodHandle virtualThreadFactoryHandle()
+    {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Class<?> virtualBuilderClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            MethodHandle ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", methodType(virtualBuilderClass));
+            MethodHandle name = lookup.findVirtual(virtualBuilderClass, "name", methodType(virtualBuilderClass, String.class, long.class));
+            MethodHandle factory = lookup.findVirtual(builderClass, "factory", methodType(ThreadFactory.class));
+            MethodHandle namedBuilder = MethodHandles.foldArguments(name, ofVirtual);
+            return MethodHandles.filterReturnValue(
+                    namedBuilder.asType(methodType(builderClass, String.class, long.class)),
+                    factory);
+        }
+        catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // Executors.newThreadPerTaskExecutor(threadFactory)
+    private static MethodHandle threadPerTaskExecutorHandle()
+    {
+        try {
+            return MethodHandles.publicLookup().findStatic(Executors.class, "newThreadPerTaskExecutor", methodType(ExecutorService.class, ThreadFactory.class));
+        }
+        catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static io.github.findepi.netsum.AdaptiveBuffer.SHRINK_AFTER_PACKETS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AdaptiveBufferTest
+{
+    @Test
+    public void testResizing()
+    {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        AdaptiveBuffer buffer = new AdaptiveBuffer(pool);
+
+        ByteBuffer packet = buffer.get(10_000);
+        assertEquals(0, packet.position());
+        assertEquals(10_000, packet.limit());
+        assertEquals(16384, buffer.capacity());
+
+        // grows at once
+        buffer.get(1_000_000);
+        assertEquals(1024 * 1024, buffer.capacity());
+
+        // shrinks after a run of small packets
+        for (int i = 1; i < SHRINK_AFTER_PACKETS; i++) {
+            buffer.get(i % 2 == 0 ? 100 : 20_000);
+            assertEquals(1024 * 1024, buffer.capacity());
+        }
+        buffer.get(100);
+        assertEquals(32768, buffer.capacity());
+
+        // a large packet interrupts the run
+        for (int i = 1; i < SHRINK_AFTER_PACKETS; i++) {
+            buffer.get(100);
+        }
+        buffer.get(30_000);
+        buffer.get(100);
+        assertEquals(32768, buffer.capacity());
+
+        buffer.release();
+        assertEquals(0, buffer.capacity());
+        assertEquals(0, pool.getBytesOutstanding());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static io.github.findepi.netsum.AdmissionControl.OverloadPolicy.DELAY;
+import static io.github.findepi.netsum.AdmissionControl.OverloadPolicy.QUEUE;
+import static io.github.findepi.netsum.AdmissionControl.OverloadPolicy.REJECT;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdmissionControlTest
+{
+    @Test
+    public void testReject()
+            throws Exception
+    {
+        AdmissionControl admission = new AdmissionControl(2, REJECT, 10);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(2);
+            assertTrue(admission.submit(() -> await(release, done), executor));
+            assertTrue(admission.submit(() -> await(release, done), executor));
+            assertFalse(admission.submit(() -> {}, executor));
+            assertEquals(2, admission.getRunningConnections());
+            assertEquals(1, admission.getTotalRejected());
+
+            release.countDown();
+            assertTrue(done.await(10, SECONDS));
+            awaitRunning(admission, 0);
+            assertTrue(admission.submit(() -> {}, executor));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testQueue()
+            throws Exception
+    {
+        AdmissionControl admission = new AdmissionControl(1, QUEUE, 2);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(3);
+            for (int i = 0; i < 3; i++) {
+                assertTrue(admission.submit(() -> await(release, done), executor));
+            }
+            assertFalse(admission.submit(() -> {}, executor));
+            assertEquals(1, admission.getRunningConnections());
+            assertEquals(2, admission.getQueueDepth());
+            assertEquals(2, admission.getTotalQueued());
+            assertEquals(1, admission.getTotalRejected());
+
+            // the queued connections run one after another, on the worker of the first
+            release.countDown();
+            assertTrue(done.await(10, SECONDS));
+            awaitRunning(admission, 0);
+            assertEquals(0, admission.getQueueDepth());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDelay()
+            throws Exception
+    {
+        AdmissionControl admission = new AdmissionControl(1, DELAY, 10);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(1);
+            admission.awaitAccept();
+            assertTrue(admission.submit(() -> await(release, done), executor));
+
+            Future<?> acceptor = executor.submit(() -> {
+                admission.awaitAccept();
+                return null;
+            });
+            MILLISECONDS.sleep(100);
+            assertFalse(acceptor.isDone());
+
+            release.countDown();
+            acceptor.get(10, SECONDS);
+            assertEquals(1, admission.getTotalDelayedAccepts());
+            assertEquals(0, admission.getTotalRejected());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testExecutorRejection()
+            throws Exception
+    {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        executor.shutdown();
+        for (AdmissionControl admission : new AdmissionControl[] {new AdmissionControl(0, REJECT, 0), new AdmissionControl(2, QUEUE, 2)}) {
+            assertFalse(admission.submit(() -> {}, executor));
+            assertFalse(admission.submit(() -> {}, executor));
+            assertEquals(2, admission.getTotalRejected());
+            assertEquals(0, admission.getRunningConnections());
+        }
+    }
+
+    private static void await(CountDownLatch release, CountDownLatch done)
+    {
+        try {
+            release.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        done.countDown();
+    }
+
+    private static void awaitRunning(AdmissionControl admission, int running)
+            throws InterruptedException
+    {
+        // a worker is done only after its connection
+        for (int i = 0; i < 1000 && admission.getRunningConnections() != running; i++) {
+            MILLISECONDS.sleep(10);
+        }
+        assertEquals(running, admission.getRunningConnections());
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+import static io.github.findepi.netsum.Io.encodeInt;
+import static io.github.findepi.netsum.Packets.createPacket;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BatchingPacketHandlerTest
+{
+    private static final int BUFFER_SIZE = 4096;
+
+    @Test
+    public void testReverse()
+            throws IOException
+    {
+        testReverse(BUFFER_SIZE, 8, 100, BUFFER_SIZE - 4, BUFFER_SIZE, 3 * BUFFER_SIZE + 17, 50, 1000, 1000, 1000, 8);
+    }
+
+    @Test
+    public void testBufferSizeNotPowerOfTwo()
+            throws IOException
+    {
+        // the pool hands out buffers of 8192 bytes, of which only 5000 are used
+        testReverse(5000, 6000, 4996, 4997, 1000, 1000, 1000, 1000, 1000, 6000, 8);
+    }
+
+    private static void testReverse(int bufferSize, int... lengths)
+            throws IOException
+    {
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int length : lengths) {
+            byte[] packet = new byte[length];
+            createPacket(packet, 0, length, length);
+            writeInt(input, length);
+            input.write(packet);
+
+            Server.reverse(packet, 0, length);
+            expected.write(packet);
+        }
+
+        BufferPool bufferPool = new BufferPool(Server.MAX_PACKET_LENGTH);
+        TransferStats stats = new TransferStats();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (BatchingPacketHandler handler = new BatchingPacketHandler(bufferPool, bufferSize, ProtocolVersion.V2, stats, new Throughput(command -> {}))) {
+            handler.serve(Channels.newChannel(new ByteArrayInputStream(input.toByteArray())), Channels.newChannel(output));
+        }
+        assertArrayEquals(expected.toByteArray(), output.toByteArray());
+        assertEquals(lengths.length, stats.getPacketsIn());
+        assertEquals(lengths.length, stats.getPacketsOut());
+        assertEquals(0, bufferPool.getBytesOutstanding());
+    }
+
+    @Test
+    public void testNegotiation()
+            throws IOException
+    {
+        PacketFormat format = new PacketFormat(ProtocolVersion.V2, ChunkedPackets.MIN_CHUNK_SIZE, ChecksumType.CRC32C);
+        int length = 3 * ChunkedPackets.MIN_CHUNK_SIZE;
+        byte[] packet = new byte[length];
+        createPacket(format, packet, 0, length, 42);
+
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        writeInt(input, ProtocolVersion.HELLO);
+        writeInt(input, ProtocolVersion.V2.getId());
+        writeInt(input, length);
+        input.write(packet);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        writeInt(expected, ProtocolVersion.V2.getId());
+        Server.reverse(packet, 0, length);
+        expected.write(packet);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (BatchingPacketHandler handler = newHandler(new BufferPool(Server.MAX_PACKET_LENGTH), new TransferStats())) {
+            handler.serve(Channels.newChannel(new ByteArrayInputStream(input.toByteArray())), Channels.newChannel(output));
+        }
+        assertArrayEquals(expected.toByteArray(), output.toByteArray());
+    }
+
+    @Test
+    public void testChecksumFailure()
+            throws IOException
+    {
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            byte[] packet = new byte[100];
+            createPacket(packet, 0, packet.length, i);
+            if (i == 1) {
+                packet[50]++;
+            }
+            writeInt(input, packet.length);
+            input.write(packet);
+        }
+
+        TransferStats stats = new TransferStats();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (BatchingPacketHandler handler = newHandler(new BufferPool(Server.MAX_PACKET_LENGTH), stats)) {
+            assertThatThrownBy(() -> handler.serve(Channels.newChannel(new ByteArrayInputStream(input.toByteArray())), Channels.newChannel(output)))
+                    .isInstanceOf(IllegalArgumentException.class)
+                    .hasMessageStartingWith("Checksum failed");
+        }
+        assertEquals(1, stats.getChecksumFailures());
+        assertEquals(2, stats.getPacketsIn());
+        // responses are written after the whole batch is handled
+        assertEquals(0, stats.getPacketsOut());
+        assertEquals(0, output.size());
+    }
+
+    private static BatchingPacketHandler newHandler(BufferPool bufferPool, TransferStats stats)
+    {
+        return new BatchingPacketHandler(bufferPool, BUFFER_SIZE, ProtocolVersion.V2, stats, new Throughput(command -> {}));
+    }
+
+    private static void writeInt(ByteArrayOutputStream output, int value)
+    {
+        byte[] bytes = new byte[Integer.BYTES];
+        encodeInt(value, bytes, 0);
+        output.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static io.github.findepi.netsum.Io.writeFully;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+@OutputTimeUnit(NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BenchmarkIo
+{
+    @Benchmark
+    public byte[] encodeInt(Encoding encoding)
+    {
+        Io.encodeInt(encoding.value++, encoding.bytes, 0);
+        return encoding.bytes;
+    }
+
+    @Benchmark
+    public long decodeLong(Encoding encoding)
+    {
+        return Io.decodeLong(encoding.bytes, 0);
+    }
+
+    @Benchmark
+    public void writeFullyStream(Data data)
+            throws IOException
+    {
+        writeFully(data.outputStream, data.bytes, 0, data.size);
+    }
+
+    @Benchmark
+    public void writeFullyChannel(Data data)
+            throws IOException
+    {
+        data.buffer.clear();
+        writeFully(data.channel, data.buffer);
+    }
+
+    @State(Scope.Thread)
+    public static class Encoding
+    {
+        private final byte[] bytes = new byte[8];
+        private int value;
+    }
+
+    @State(Scope.Thread)
+    public static class Data
+    {
+        @Param({"64", "4096", "65536", "1048576", "16777216"})
+        public int size;
+
+        private final OutputStream outputStream = ByteStreams.nullOutputStream();
+        private final WritableByteChannel channel = new NullChannel();
+        private byte[] bytes;
+        private ByteBuffer buffer;
+
+        @Setup
+        public void setup()
+        {
+            bytes = new byte[size];
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    /**
+     * Discards the data, so that only the cost of the write loop is measured.
+     */
+    private static class NullChannel
+            implements WritableByteChannel
+    {
+        @Override
+        public int write(ByteBuffer source)
+        {
+            int length = source.remaining();
+            source.position(source.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    public static void main(String[] args)
+            throws RunnerException
+    {
+        Options options = new OptionsBuilder()
+                .include(".*\\." + BenchmarkIo.class.getSimpleName() + "\\..*")
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import static io.github.findepi.netsum.Client.verifyResponse;
+import static io.github.findepi.netsum.Io.readFully;
+import static io.github.findepi.netsum.Io.writePacket;
+import static io.github.findepi.netsum.Packets.createPacket;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Round trip of a single packet through a server over loopback, as the client does it. Compared with
+ * {@link BenchmarkPackets} and {@link BenchmarkReverse}, this tells how much of a round trip is netsum's
+ * own CPU cost rather than the network.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BenchmarkLoopback
+{
+    @Param({"BLOCKING", "NIO"})
+    public Server.Engine engine;
+
+    @Param({"64", "65536", "1048576", "16777216"})
+    public int size;
+
+    private final TransferStats stats = new TransferStats();
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    private SocketChannel channel;
+    private byte[] packetBuffer;
+    private byte[] responseBuffer;
+    private ByteBuffer packet;
+    private ByteBuffer response;
+
+    @Setup
+    public void setup()
+            throws IOException, InterruptedException
+    {
+        Server server = new Server();
+        server.port = freePort();
+        server.engine = engine;
+        Thread serverThread = new Thread(server, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        channel = connect(new InetSocketAddress("127.0.0.1", server.port));
+
+        packetBuffer = new byte[size];
+        responseBuffer = new byte[size];
+        createPacket(packetBuffer, 0, size, 42);
+        packet = ByteBuffer.wrap(packetBuffer);
+        response = ByteBuffer.wrap(responseBuffer);
+    }
+
+    @TearDown
+    public void tearDown()
+            throws IOException
+    {
+        channel.close();
+    }
+
+    @Benchmark
+    public void roundTrip()
+            throws IOException
+    {
+        packet.clear();
+        writePacket(channel, header, packet);
+        response.clear();
+        readFully(channel, response);
+        verifyResponse(stats, responseBuffer, 0, size, packetBuffer, 0, size);
+    }
+
+    private static int freePort()
+            throws IOException
+    {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static SocketChannel connect(InetSocketAddress address)
+            throws IOException, InterruptedException
+    {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return SocketChannel.open(address);
+            }
+            catch (ConnectException e) {
+                // the server is still starting up
+                if (attempt == 100) {
+                    throw e;
+                }
+                MILLISECONDS.sleep(10);
+            }
+        }
+    }
+
+    public static void main(String[] args)
+            throws RunnerException
+    {
+        Options options = new OptionsBuilder()
+                .include(".*\\." + BenchmarkLoopback.class.getSimpleName() + "\\..*")
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import static io.github.findepi.netsum.Packets.verifyPacket;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+@State(Scope.Thread)
+@OutputTimeUnit(NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BenchmarkPackets
+{
+    @Param({"64", "4096", "65536", "1048576", "16777216"})
+    public int size;
+
+    private byte[] packet;
+    private ByteBuffer directPacket;
+    private ByteBuffer chunkedPacket;
+    private long round;
+
+    @Setup
+    public void setup()
+    {
+        packet = new byte[size];
+        Packets.createPacket(packet, 0, size, 42);
+        directPacket = ByteBuffer.allocateDirect(size);
+        directPacket.put(packet);
+        directPacket.flip();
+
+        byte[] chunked = new byte[size];
+        ChunkedPackets.createPacket(chunked, 0, size, 42, 64 * 1024, ChecksumType.XXHASH64);
+        chunkedPacket = ByteBuffer.allocateDirect(size);
+        chunkedPacket.put(chunked);
+        chunkedPacket.flip();
+    }
+
+    @Benchmark
+    public byte[] createPacket()
+    {
+        Packets.createPacket(packet, 0, size, round++);
+        return packet;
+    }
+
+    @Benchmark
+    public void verifyHeapPacket()
+    {
+        verifyPacket(packet, 0, size);
+    }
+
+    @Benchmark
+    public void verifyDirectPacket()
+    {
+        verifyPacket(directPacket);
+    }
+
+    @Benchmark
+    public void verifyChunkedPacket()
+    {
+        ChunkedPackets.verifyPacket(chunkedPacket, ForkJoinPool.commonPool());
+    }
+
+    public static void main(String[] args)
+            throws RunnerException
+    {
+        Options options = new OptionsBuilder()
+                .include(".*\\." + BenchmarkPackets.class.getSimpleName() + "\\..*")
+                .build();
+        new Runner(options).run();
+    }
+}
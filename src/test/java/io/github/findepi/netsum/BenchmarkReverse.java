@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+
+import static io.github.findepi.netsum.Packets.createPacket;
+import static io.github.findepi.netsum.Server.reverse;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Cost of producing the response on the server and of checking it on the client.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BenchmarkReverse
+{
+    @Param({"64", "4096", "65536", "1048576", "16777216"})
+    public int size;
+
+    private final TransferStats stats = new TransferStats();
+    private byte[] packet;
+    private byte[] response;
+    private ByteBuffer directPacket;
+
+    @Setup
+    public void setup()
+    {
+        packet = new byte[size];
+        createPacket(packet, 0, size, 42);
+        response = packet.clone();
+        reverse(response, 0, size);
+        directPacket = ByteBuffer.allocateDirect(size);
+        directPacket.put(packet);
+        directPacket.flip();
+    }
+
+    @Benchmark
+    public byte[] reverseHeap()
+    {
+        reverse(packet, 0, size);
+        return packet;
+    }
+
+    @Benchmark
+    public ByteBuffer reverseDirect()
+    {
+        reverse(directPacket);
+        return directPacket;
+    }
+
+    @Benchmark
+    public void verifyResponse()
+    {
+        Client.verifyResponse(stats, response, 0, size, packet, 0, size);
+    }
+
+    public static void main(String[] args)
+            throws RunnerException
+    {
+        Options options = new OptionsBuilder()
+                .include(".*\\." + BenchmarkReverse.class.getSimpleName() + "\\..*")
+                .build();
+        new Runner(options).run();
+    }
+}
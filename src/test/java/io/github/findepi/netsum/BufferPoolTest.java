@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BufferPoolTest
+{
+    @Test
+    public void testSizeClasses()
+    {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        assertEquals(4096, pool.borrow(0).capacity());
+        assertEquals(4096, pool.borrow(1).capacity());
+        assertEquals(4096, pool.borrow(4096).capacity());
+        assertEquals(8192, pool.borrow(4097).capacity());
+        assertEquals(1024 * 1024, pool.borrow(1024 * 1024).capacity());
+        assertEquals(3 * 4096 + 8192 + 1024 * 1024, pool.getBytesOutstanding());
+
+        assertThatThrownBy(() -> pool.borrow(1024 * 1024 + 1))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Invalid size: 1048577");
+    }
+
+    @Test
+    public void testReuse()
+    {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        ByteBuffer buffer = pool.borrow(5000);
+        assertTrue(buffer.isDirect());
+        assertEquals(0, pool.getHits());
+        assertEquals(1, pool.getMisses());
+        assertEquals(8192, pool.getBytesOutstanding());
+
+        buffer.position(42);
+        pool.release(buffer);
+        assertEquals(0, pool.getBytesOutstanding());
+        assertEquals(8192, pool.getBytesPooled());
+
+        ByteBuffer reused = pool.borrow(8000);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(8192, reused.limit());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+        assertEquals(8192, pool.getBytesOutstanding());
+        assertEquals(0, pool.getBytesPooled());
+
+        // different size class
+        pool.borrow(100);
+        assertEquals(2, pool.getMisses());
+    }
+
+    @Test
+    public void testMaxBytesPooled()
+    {
+        BufferPool pool = new BufferPool(1024 * 1024, 2 * 8192);
+        ByteBuffer first = pool.borrow(8192);
+        ByteBuffer second = pool.borrow(8192);
+        ByteBuffer third = pool.borrow(8192);
+        pool.release(first);
+        pool.release(second);
+        // over the limit, dropped
+        pool.release(third);
+        assertEquals(0, pool.getBytesOutstanding());
+        assertEquals(2 * 8192, pool.getBytesPooled());
+        assertEquals(1, pool.getDropped());
+
+        pool.borrow(8192);
+        pool.borrow(8192);
+        pool.borrow(8192);
+        assertEquals(2, pool.getHits());
+        assertEquals(4, pool.getMisses());
+        assertEquals(0, pool.getBytesPooled());
+
+        // room again
+        pool.release(third);
+        assertEquals(8192, pool.getBytesPooled());
+        assertEquals(1, pool.getDropped());
+    }
+
+    @Test
+    public void testReleaseForeignBuffer()
+    {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        assertThatThrownBy(() -> pool.release(ByteBuffer.allocate(8192)))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Buffer not from the pool");
+        assertThatThrownBy(() -> pool.release(ByteBuffer.allocateDirect(5000)))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Buffer not from the pool");
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static io.airlift.slice.Slices.wrappedBuffer;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class ChecksumTypeTest
+{
+    private static final byte[] CHECK = "123456789".getBytes(US_ASCII);
+
+    @Test
+    public void testCrc32c()
+    {
+        assertEquals(0xE3069283L, ChecksumType.crc32c(ByteBuffer.wrap(CHECK)));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(CHECK.length);
+        direct.put(CHECK);
+        direct.flip();
+        assertEquals(0xE3069283L, ChecksumType.crc32c(direct));
+
+        assertEquals(0xE3069283L, ChecksumType.CRC32C.checksum(0, wrappedBuffer(CHECK), 0, CHECK.length));
+        assertEquals(0xE3069283L ^ (3L << 32), ChecksumType.CRC32C.checksum(3, wrappedBuffer(CHECK), 0, CHECK.length));
+    }
+
+    @Test
+    public void testSeed()
+    {
+        for (ChecksumType type : ChecksumType.values()) {
+            if (type != ChecksumType.NONE) {
+                assertNotEquals(type.checksum(0, wrappedBuffer(CHECK), 0, CHECK.length), type.checksum(1, wrappedBuffer(CHECK), 0, CHECK.length));
+            }
+        }
+        assertEquals(0, ChecksumType.NONE.checksum(1, wrappedBuffer(CHECK), 0, CHECK.length));
+    }
+
+    @Test
+    public void testIds()
+    {
+        for (ChecksumType type : ChecksumType.values()) {
+            assertEquals(type, ChecksumType.fromId(type.getId()));
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.concurrent.ForkJoinPool;
+
+import static io.github.findepi.netsum.ChunkedPackets.MIN_CHUNK_SIZE;
+import static io.github.findepi.netsum.ChunkedPackets.chunkCount;
+import static io.github.findepi.netsum.ChunkedPackets.createPacket;
+import static io.github.findepi.netsum.ChunkedPackets.readAndVerifyPacket;
+import static io.github.findepi.netsum.ChunkedPackets.verifyPacket;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ChunkedPacketsTest
+{
+    private static final ForkJoinPool POOL = ForkJoinPool.commonPool();
+    private static final int CHUNK_SIZE = MIN_CHUNK_SIZE;
+
+    @Test
+    public void testChunkCount()
+    {
+        assertEquals(0, chunkCount(8, CHUNK_SIZE));
+        assertEquals(1, chunkCount(16, CHUNK_SIZE));
+        assertEquals(1, chunkCount(16 + CHUNK_SIZE, CHUNK_SIZE));
+        assertEquals(2, chunkCount(17 + CHUNK_SIZE, CHUNK_SIZE));
+        // the second chunk is empty
+        assertEquals(2, chunkCount(24 + CHUNK_SIZE, CHUNK_SIZE));
+        assertEquals(3, chunkCount(8 + 3 * (CHUNK_SIZE + 8), CHUNK_SIZE));
+
+        for (int length = 9; length < 16; length++) {
+            int invalid = length;
+            assertThatThrownBy(() -> chunkCount(invalid, CHUNK_SIZE))
+                    .isInstanceOf(IllegalArgumentException.class)
+                    .hasMessage("Invalid packet length: " + invalid);
+        }
+    }
+
+    @Test
+    public void testPacketRoundTrip()
+            throws IOException
+    {
+        for (ChecksumType checksum : ChecksumType.values()) {
+            for (int length : new int[] {8, 16, 100, 16 + CHUNK_SIZE, 17 + CHUNK_SIZE, 24 + CHUNK_SIZE, 8 + 3 * (CHUNK_SIZE + 8), 100_000}) {
+                testPacketRoundTrip(checksum, length);
+            }
+        }
+    }
+
+    private void testPacketRoundTrip(ChecksumType checksum, int length)
+            throws IOException
+    {
+        byte[] packet = new byte[length];
+        createPacket(packet, 0, length, length, CHUNK_SIZE, checksum);
+
+        verifyPacket(ByteBuffer.wrap(packet), POOL);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(length);
+        direct.put(packet);
+        direct.flip();
+        verifyPacket(direct, POOL);
+
+        ByteBuffer read = ByteBuffer.allocateDirect(length);
+        readAndVerifyPacket(Channels.newChannel(new ByteArrayInputStream(packet)), read, POOL);
+        assertEquals(0, read.position());
+        byte[] actual = new byte[length];
+        read.get(actual);
+        assertArrayEquals(packet, actual);
+    }
+
+    @Test
+    public void testCorruption()
+    {
+        testCorruption(ChecksumType.XXHASH64);
+        testCorruption(ChecksumType.CRC32C);
+    }
+
+    private void testCorruption(ChecksumType checksum)
+    {
+        int length = 8 + 3 * (CHUNK_SIZE + 8);
+        byte[] packet = new byte[length];
+        createPacket(packet, 0, length, 42, CHUNK_SIZE, checksum);
+
+        byte[] corrupted = packet.clone();
+        corrupted[length - CHUNK_SIZE - 1]++;
+        assertThatThrownBy(() -> verifyPacket(ByteBuffer.wrap(corrupted), POOL))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Checksum failed: chunk 1 of 3, " + checksum);
+        assertThatThrownBy(() -> readAndVerifyPacket(Channels.newChannel(new ByteArrayInputStream(corrupted)), ByteBuffer.allocate(length), POOL))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Checksum failed: chunk 1 of 3, " + checksum);
+
+        byte[] wrongVersion = packet.clone();
+        wrongVersion[0] = 1;
+        assertThatThrownBy(() -> verifyPacket(ByteBuffer.wrap(wrongVersion), POOL))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Invalid packet version: 1");
+    }
+
+    @Test
+    public void testNoChecksum()
+    {
+        int length = 8 + 3 * (CHUNK_SIZE + 8);
+        byte[] packet = new byte[length];
+        createPacket(packet, 0, length, 42, CHUNK_SIZE, ChecksumType.NONE);
+        packet[length - 1]++;
+        verifyPacket(ByteBuffer.wrap(packet), POOL);
+
+        packet[1] = 42;
+        assertThatThrownBy(() -> verifyPacket(ByteBuffer.wrap(packet), POOL))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Unsupported checksum: 42");
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import com.google.common.io.MoreFiles;
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.common.io.RecursiveDeleteOption.ALLOW_INSECURE;
+import static io.github.findepi.netsum.Io.readFully;
+import static io.github.findepi.netsum.Io.writeFully;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ClientTest
+{
+    @Test
+    public void testPipelined()
+            throws Exception
+    {
+        String result = runPipelined(false);
+        assertThat(result)
+                .contains("\n  \"error\": null,\n")
+                .contains("\n  \"checksumFailures\": 0,\n")
+                .contains("\n  \"connectionFailures\": 0\n")
+                .doesNotContain("\n  \"packets\": 0,\n");
+    }
+
+    @Test
+    public void testPipelinedResponsesOutOfOrder()
+            throws Exception
+    {
+        // responses are matched to the packets in flight in the order sent
+        String result = runPipelined(true);
+        assertThat(result)
+                .contains("Malformed response")
+                .contains("\n  \"checksumFailures\": 1,\n")
+                .contains("\n  \"connectionFailures\": 1\n");
+    }
+
+    /**
+     * Runs a pipelined client for a second against a server answering on this process, and returns its result.
+     */
+    private static String runPipelined(boolean swapFirstResponses)
+            throws Exception
+    {
+        Path directory = Files.createTempDirectory("client");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            executor.submit(() -> {
+                serve(serverChannel, swapFirstResponses);
+                return null;
+            });
+
+            Client client = new Client();
+            client.host = InetAddress.getLoopbackAddress().getHostAddress();
+            client.port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+            client.pipeline = 8;
+            client.batchSize = 4;
+            client.durationSeconds = 1;
+            client.result = directory.resolve("result.json").toString();
+            if (swapFirstResponses) {
+                assertThatThrownBy(client::run)
+                        .hasMessage("Execution failed");
+            }
+            else {
+                client.run();
+            }
+            return new String(Files.readAllBytes(directory.resolve("result.json")), UTF_8);
+        }
+        finally {
+            executor.shutdownNow();
+            MoreFiles.deleteRecursively(directory, ALLOW_INSECURE);
+        }
+    }
+
+    /**
+     * Answers the packets of one connection in order, or with the first two responses swapped.
+     */
+    private static void serve(ServerSocketChannel serverChannel, boolean swapFirstResponses)
+            throws Exception
+    {
+        try (SocketChannel channel = serverChannel.accept()) {
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+            ByteBuffer held = null;
+            while (true) {
+                header.clear();
+                readFully(channel, header);
+                ByteBuffer packet = ByteBuffer.allocate(header.getInt(0));
+                readFully(channel, packet);
+                Server.reverse(packet.array(), 0, packet.capacity());
+                packet.flip();
+                if (swapFirstResponses && held == null) {
+                    held = packet;
+                    continue;
+                }
+                writeFully(channel, packet);
+                if (held != null && held.hasRemaining()) {
+                    writeFully(channel, held);
+                }
+            }
+        }
+        catch (EOFException e) {
+            // the client is done
+        }
+    }
+}
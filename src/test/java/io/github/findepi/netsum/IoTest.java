@@ -17,15 +17,23 @@ import org.junit.jupiter.api.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
 
+import static io.github.findepi.netsum.Io.END_OF_STREAM;
 import static io.github.findepi.netsum.Io.decodeInt;
 import static io.github.findepi.netsum.Io.decodeLong;
 import static io.github.findepi.netsum.Io.encodeInt;
 import static io.github.findepi.netsum.Io.encodeLong;
+import static io.github.findepi.netsum.Io.readFully;
 import static io.github.findepi.netsum.Io.readPacket;
+import static io.github.findepi.netsum.Io.readPacketLength;
 import static io.github.findepi.netsum.Io.writePacket;
+import static io.github.findepi.netsum.Io.writePackets;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.copyOfRange;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
@@ -107,4 +115,68 @@ class IoTest
         assertEquals(4, readPacket(inputStream, buffer));
         assertArrayEquals(new byte[] {0, 42, 127, -125}, copyOfRange(buffer, 0, 4));
     }
+
+    @Test
+    public void testChannelPacket()
+            throws Exception
+    {
+        Pipe pipe = Pipe.open();
+        ByteBuffer header = ByteBuffer.allocate(4);
+        writePacket(pipe.sink(), header, ByteBuffer.wrap(new byte[] {1, 2, 3}, 1, 0));
+        writePacket(pipe.sink(), header, ByteBuffer.wrap("xABC".getBytes(UTF_8), 1, 3));
+        ByteBuffer direct = ByteBuffer.allocateDirect(4);
+        direct.put(new byte[] {0, 42, 127, -125}).flip();
+        writePacket(pipe.sink(), header, direct);
+        pipe.sink().write(ByteBuffer.wrap("garbage".getBytes(UTF_8)));
+        pipe.sink().close();
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+
+        assertEquals(0, readPacket(pipe.source(), header, buffer));
+        assertEquals(0, buffer.remaining());
+
+        assertEquals(3, readPacket(pipe.source(), header, buffer));
+        assertEquals("ABC", UTF_8.decode(buffer).toString());
+
+        assertEquals(4, readPacket(pipe.source(), header, buffer));
+        byte[] bytes = new byte[4];
+        buffer.get(bytes);
+        assertArrayEquals(new byte[] {0, 42, 127, -125}, bytes);
+
+        ByteBuffer garbage = ByteBuffer.allocate(7);
+        readFully(pipe.source(), garbage);
+        assertEquals("garbage", new String(garbage.array(), UTF_8));
+
+        assertEquals(END_OF_STREAM, readPacketLength(pipe.source(), header));
+        assertThatThrownBy(() -> readPacket(pipe.source(), header, buffer))
+                .isInstanceOf(EOFException.class);
+    }
+
+    @Test
+    public void testWritePackets()
+            throws Exception
+    {
+        Pipe pipe = Pipe.open();
+        ByteBuffer[] buffers = new ByteBuffer[8];
+        for (int i = 0; i < buffers.length; i += 2) {
+            buffers[i] = ByteBuffer.allocate(4);
+        }
+        buffers[1] = ByteBuffer.wrap("xABC".getBytes(UTF_8), 1, 3);
+        buffers[3] = ByteBuffer.allocate(0);
+        buffers[5] = ByteBuffer.wrap(new byte[] {0, 42, 127, -125});
+        buffers[7] = ByteBuffer.wrap("not written".getBytes(UTF_8));
+        writePackets(pipe.sink(), buffers, 3);
+        pipe.sink().close();
+
+        ByteBuffer header = ByteBuffer.allocate(4);
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        assertEquals(3, readPacket(pipe.source(), header, buffer));
+        assertEquals("ABC", UTF_8.decode(buffer).toString());
+        assertEquals(0, readPacket(pipe.source(), header, buffer));
+        assertEquals(4, readPacket(pipe.source(), header, buffer));
+        byte[] bytes = new byte[4];
+        buffer.get(bytes);
+        assertArrayEquals(new byte[] {0, 42, 127, -125}, bytes);
+        assertEquals(END_OF_STREAM, readPacketLength(pipe.source(), header));
+    }
 }
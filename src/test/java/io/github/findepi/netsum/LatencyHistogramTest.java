@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.junit.jupiter.api.Test;
+
+import static io.github.findepi.netsum.LatencyHistogram.bucketIndex;
+import static io.github.findepi.netsum.LatencyHistogram.highestEquivalentValue;
+import static io.github.findepi.netsum.LatencyHistogram.lowestEquivalentValue;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest
+{
+    @Test
+    public void testBuckets()
+    {
+        long[] values = {0, 1, 63, 64, 65, 127, 128, 129, 1_000, 123_456_789, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+        for (long value : values) {
+            int index = bucketIndex(value);
+            assertTrue(lowestEquivalentValue(index) <= value, "lowest for " + value);
+            assertTrue(highestEquivalentValue(index) >= value, "highest for " + value);
+            assertTrue(highestEquivalentValue(index) - lowestEquivalentValue(index) <= value / 64, "precision for " + value);
+        }
+        assertEquals(63, bucketIndex(63));
+        assertEquals(64, bucketIndex(64));
+        assertEquals(65, bucketIndex(65));
+        assertEquals(127, bucketIndex(127));
+        assertEquals(128, bucketIndex(128));
+        assertEquals(128, bucketIndex(129));
+        assertEquals(129, bucketIndex(130));
+        assertEquals(192, bucketIndex(256));
+        assertEquals(192, bucketIndex(259));
+        assertEquals(193, bucketIndex(260));
+    }
+
+    @Test
+    public void testPercentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(0, histogram.getMax());
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertWithinPrecision(500_000, histogram.getValueAtPercentile(50));
+        assertWithinPrecision(990_000, histogram.getValueAtPercentile(99));
+        assertWithinPrecision(999_000, histogram.getValueAtPercentile(99.9));
+        assertWithinPrecision(1_000_000, histogram.getValueAtPercentile(100));
+        assertWithinPrecision(1_000_000, histogram.getMax());
+        assertWithinPrecision(500_500, (long) histogram.getMean());
+    }
+
+    @Test
+    public void testMerge()
+    {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        for (int i = 0; i < 100; i++) {
+            first.record(1_000);
+            second.record(1_000_000);
+        }
+
+        LatencyHistogram merged = first.copy();
+        merged.add(second);
+        assertEquals(200, merged.getCount());
+        assertWithinPrecision(1_000, merged.getValueAtPercentile(50));
+        assertWithinPrecision(1_000_000, merged.getValueAtPercentile(51));
+
+        merged.subtract(first);
+        assertEquals(100, merged.getCount());
+        assertWithinPrecision(1_000_000, merged.getValueAtPercentile(1));
+        assertEquals(100, first.getCount());
+    }
+
+    private static void assertWithinPrecision(long expected, long actual)
+    {
+        assertTrue(Math.abs(expected - actual) <= expected / 64, "expected " + expected + " but got " + actual);
+    }
+}
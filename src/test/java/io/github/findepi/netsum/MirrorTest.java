@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static io.airlift.slice.Slices.wrappedBuffer;
+import static io.github.findepi.netsum.Mirror.mismatch;
+import static io.github.findepi.netsum.Mirror.reverse;
+import static java.util.Arrays.copyOfRange;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MirrorTest
+{
+    @Test
+    public void testReverse()
+    {
+        Random random = new Random(42);
+        for (int length = 0; length < 100; length++) {
+            byte[] data = new byte[length + 6];
+            random.nextBytes(data);
+            byte[] expected = data.clone();
+            for (int i = 0; i < length; i++) {
+                expected[3 + i] = data[3 + length - 1 - i];
+            }
+
+            byte[] heap = data.clone();
+            reverse(wrappedBuffer(heap, 3, length));
+            assertArrayEquals(expected, heap);
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data);
+            direct.position(3);
+            direct.limit(3 + length);
+            Server.reverse(direct);
+            byte[] actual = new byte[data.length];
+            direct.clear();
+            direct.get(actual);
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testMismatch()
+    {
+        Random random = new Random(42);
+        for (int length = 0; length < 100; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            byte[] reversed = data.clone();
+            reverse(wrappedBuffer(reversed));
+            assertEquals(-1, mismatch(wrappedBuffer(data), wrappedBuffer(reversed)));
+
+            for (int position = 0; position < length; position++) {
+                byte[] corrupted = copyOfRange(data, 0, length);
+                corrupted[position]++;
+                assertEquals(position, mismatch(wrappedBuffer(corrupted), wrappedBuffer(reversed)));
+                if (position + 1 < length) {
+                    // the first mismatch is reported
+                    corrupted[length - 1]++;
+                    assertEquals(position, mismatch(wrappedBuffer(corrupted), wrappedBuffer(reversed)));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.junit.jupiter.api.Test;
+import org.weakref.jmx.MBeanExporter;
+
+import javax.management.MBeanServerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static io.github.findepi.netsum.Io.readFully;
+import static io.github.findepi.netsum.Io.writeFully;
+import static io.github.findepi.netsum.Packets.createPacket;
+import static java.net.StandardSocketOptions.SO_RCVBUF;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class NioServerTest
+{
+    @Test
+    public void testLoopback()
+            throws Exception
+    {
+        TransferStats stats = new TransferStats();
+        // a single event loop, shared by all connections
+        NioServer server = new NioServer(
+                0,
+                50,
+                1,
+                new BufferPool(Server.MAX_PACKET_LENGTH),
+                new Throughput(command -> {}),
+                stats,
+                new Jmx(new MBeanExporter(MBeanServerFactory.newMBeanServer())),
+                true);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Future<?> serving = executor.submit(() -> {
+                server.serve(serverChannel);
+                return null;
+            });
+            InetSocketAddress address = (InetSocketAddress) serverChannel.getLocalAddress();
+
+            try (SocketChannel first = SocketChannel.open(address);
+                    SocketChannel second = SocketChannel.open(address);
+                    SocketChannel third = SocketChannel.open()) {
+                // the header and the packet arrive in pieces, so that each is read partially
+                byte[] packet = packet(1000, 1);
+                ByteBuffer frame = frame(packet);
+                for (int end : new int[] {2, 500, frame.limit()}) {
+                    frame.limit(end);
+                    writeFully(first, frame);
+                    MILLISECONDS.sleep(50);
+                }
+                assertResponse(first, packet);
+
+                assertEquals(ProtocolVersion.V2, ProtocolVersion.request(second, ProtocolVersion.V2));
+                byte[] v2Packet = new byte[3 * ChunkedPackets.MIN_CHUNK_SIZE];
+                createPacket(new PacketFormat(ProtocolVersion.V2, ChunkedPackets.MIN_CHUNK_SIZE, ChecksumType.CRC32C), v2Packet, 0, v2Packet.length, 2);
+                writeFully(second, frame(v2Packet));
+                assertResponse(second, v2Packet);
+
+                // a response far larger than the socket buffers, which the server writes as the client makes room
+                third.setOption(SO_RCVBUF, 4096);
+                third.connect(address);
+                byte[] large = packet(8 * 1024 * 1024, 3);
+                writeFully(third, frame(large));
+                MILLISECONDS.sleep(100);
+                // the other connections are served meanwhile
+                writeFully(first, frame(packet));
+                assertResponse(first, packet);
+                assertResponse(third, large);
+            }
+
+            // the connections are closed as the clients disconnect
+            for (int attempt = 0; stats.getActiveConnections() > 0 && attempt < 100; attempt++) {
+                MILLISECONDS.sleep(100);
+            }
+            assertEquals(0, stats.getActiveConnections());
+            assertEquals(3, stats.getTotalConnections());
+            assertEquals(4, stats.getPacketsIn());
+            assertEquals(4, stats.getPacketsOut());
+            assertEquals(0, stats.getChecksumFailures());
+
+            serverChannel.close();
+            serving.get(10, SECONDS);
+        }
+        finally {
+            serverChannel.close();
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] packet(int length, long seed)
+    {
+        byte[] packet = new byte[length];
+        createPacket(packet, 0, length, seed);
+        return packet;
+    }
+
+    private static ByteBuffer frame(byte[] packet)
+    {
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + packet.length);
+        frame.putInt(packet.length).put(packet).flip();
+        return frame;
+    }
+
+    private static void assertResponse(SocketChannel channel, byte[] packet)
+            throws Exception
+    {
+        ByteBuffer response = ByteBuffer.allocate(packet.length);
+        readFully(channel, response);
+        byte[] expected = packet.clone();
+        Server.reverse(expected, 0, expected.length);
+        assertArrayEquals(expected, response.array());
+    }
+}
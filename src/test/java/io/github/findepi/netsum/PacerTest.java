@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import com.google.common.base.Ticker;
+import org.junit.jupiter.api.Test;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PacerTest
+{
+    private static final long INTERVAL = MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testIntendedTimes()
+            throws Exception
+    {
+        // time passes only as it is read, so that waiting takes a few reads
+        TestingTicker ticker = new TestingTicker(MICROSECONDS.toNanos(100));
+        Pacer pacer = new Pacer(INTERVAL, 0, ticker);
+        assertEquals(0, pacer.peekNext());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i * INTERVAL, pacer.awaitNext());
+            assertThat(ticker.time).isGreaterThanOrEqualTo(i * INTERVAL);
+            assertEquals((i + 1) * INTERVAL, pacer.peekNext());
+        }
+
+        assertThatThrownBy(() -> new Pacer(0, 0))
+                .hasMessage("Invalid intervalNanos: 0");
+    }
+
+    @Test
+    public void testCatchUp()
+            throws Exception
+    {
+        TestingTicker ticker = new TestingTicker(0);
+        Pacer pacer = new Pacer(INTERVAL, 0, ticker);
+        assertEquals(0, pacer.awaitNext());
+
+        // after a stall, the late sends go out at once, with the times they were due at
+        ticker.time = 10 * INTERVAL + INTERVAL / 2;
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(i * INTERVAL, pacer.awaitNext());
+        }
+        assertEquals(11 * INTERVAL, pacer.peekNext());
+    }
+
+    @Test
+    public void testSkipTo()
+    {
+        Pacer pacer = new Pacer(INTERVAL, 0, new TestingTicker(0));
+
+        // rounded up to the schedule, which keeps its phase
+        pacer.skipTo(2 * INTERVAL + 1);
+        assertEquals(3 * INTERVAL, pacer.peekNext());
+        pacer.skipTo(3 * INTERVAL);
+        assertEquals(3 * INTERVAL, pacer.peekNext());
+        pacer.skipTo(4 * INTERVAL);
+        assertEquals(4 * INTERVAL, pacer.peekNext());
+
+        // never back
+        pacer.skipTo(INTERVAL);
+        assertEquals(4 * INTERVAL, pacer.peekNext());
+    }
+
+    private static class TestingTicker
+            extends Ticker
+    {
+        private final long step;
+        private long time;
+
+        TestingTicker(long step)
+        {
+            this.step = step;
+        }
+
+        @Override
+        public long read()
+        {
+            long now = time;
+            time += step;
+            return now;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static io.github.findepi.netsum.Client.verifyExpectedResponse;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class PacketRingTest
+{
+    @Test
+    public void testRing()
+    {
+        PacketFormat format = new PacketFormat(ProtocolVersion.V2, 1024, ChecksumType.CRC32C);
+        PacketRing ring = new PacketRing(format, SizeDistribution.fixed(5000), 3);
+        assertEquals(3, ring.size());
+        assertSame(ring.packet(1), ring.packet(4));
+        assertSame(ring.response(2), ring.response(-1));
+        assertFalse(ring.packet(0) == ring.packet(1));
+
+        for (int round = 0; round < ring.size(); round++) {
+            byte[] packet = ring.packet(round);
+            Packets.verifyPacket(format.getVersion(), ByteBuffer.wrap(packet), ForkJoinPool.commonPool());
+
+            byte[] reversed = packet.clone();
+            Server.reverse(reversed, 0, reversed.length);
+            assertArrayEquals(reversed, ring.response(round));
+            verifyExpectedResponse(new TransferStats(), reversed, reversed.length, packet, ring.response(round));
+        }
+        assertFalse(ByteBuffer.wrap(ring.packet(0)).equals(ByteBuffer.wrap(ring.packet(1))));
+    }
+
+    @Test
+    public void testVerifyExpectedResponse()
+    {
+        PacketRing ring = new PacketRing(PacketFormat.V1, SizeDistribution.fixed(100), 2);
+        TransferStats stats = new TransferStats();
+        byte[] response = ring.response(0).clone();
+        response[42]++;
+        assertThatThrownBy(() -> verifyExpectedResponse(stats, response, response.length, ring.packet(0), ring.response(0)))
+                .hasMessage("Malformed response at position 42");
+        assertEquals(1, stats.getChecksumFailures());
+
+        // the response to another packet of the ring
+        assertThatThrownBy(() -> verifyExpectedResponse(stats, ring.response(1), 100, ring.packet(0), ring.response(0)))
+                .hasMessageStartingWith("Malformed response at position ");
+    }
+
+    @Test
+    public void testSizeDistribution()
+    {
+        PacketRing ring = new PacketRing(PacketFormat.V1, SizeDistribution.uniform(100, 200), 100);
+        Set<Integer> lengths = new HashSet<>();
+        for (int round = 0; round < ring.size(); round++) {
+            byte[] packet = ring.packet(round);
+            assertThat(packet.length).isBetween(100, 200);
+            assertEquals(packet.length, ring.response(round).length);
+            Packets.verifyPacket(packet, 0, packet.length);
+            lengths.add(packet.length);
+        }
+        assertThat(lengths.size()).isGreaterThan(10);
+    }
+
+    @Test
+    public void testInvalidSize()
+    {
+        assertThatThrownBy(() -> new PacketRing(PacketFormat.V1, SizeDistribution.fixed(100), 1))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Invalid size: 1");
+        assertThatThrownBy(() -> new PacketRing(PacketFormat.V1, SizeDistribution.fixed(100), PacketRing.MAX_SIZE + 1))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Invalid size: 257");
+    }
+}
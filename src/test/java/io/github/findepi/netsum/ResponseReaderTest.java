@@ -0,0 +1,50 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.nio.channels.Channels;
+
+import static java.util.Arrays.copyOfRange;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+class ResponseReaderTest
+{
+    @Test
+    public void testRead()
+            throws Exception
+    {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ResponseReader reader = new ResponseReader(Channels.newChannel(new ByteArrayInputStream(data)), 64);
+
+        byte[] target = new byte[500];
+        int offset = 0;
+        // small reads are served from the buffer, large ones read directly
+        for (int length : new int[] {10, 0, 30, 40, 64, 200, 1, 63, 100}) {
+            reader.read(target, length);
+            assertArrayEquals(copyOfRange(data, offset, offset + length), copyOfRange(target, 0, length));
+            offset += length;
+        }
+
+        assertThatThrownBy(() -> reader.read(target, 500))
+                .isInstanceOf(EOFException.class);
+    }
+}
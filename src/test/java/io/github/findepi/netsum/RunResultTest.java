@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import io.airlift.airline.Option;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RunResultTest
+{
+    @Test
+    public void testResult()
+    {
+        Throughput throughput = new Throughput(command -> {}, 0);
+        LatencyHistogram latencies = throughput.newLatencyHistogram();
+        throughput.add(1000);
+        latencies.record(5_000);
+        TransferStats stats = new TransferStats();
+        stats.connectionFailed();
+        RunResult.Totals warmedUp = RunResult.Totals.of(throughput, stats);
+
+        throughput.add(100);
+        throughput.add(100);
+        latencies.record(1_000);
+        latencies.record(1_000);
+        stats.checksumFailed();
+        RunResult.Totals measured = RunResult.Totals.of(throughput, stats).since(warmedUp);
+        assertEquals(200, measured.getBytes());
+        assertEquals(2, measured.getPackets());
+
+        // as recorded, within the histogram's precision
+        LatencyHistogram expected = new LatencyHistogram();
+        expected.record(1_000);
+
+        RunResult result = RunResult.create(new Command(), throughput, measured, new IllegalStateException("failed \"badly\""));
+        String json = result.toJson();
+        assertThat(json)
+                .startsWith("{\n  \"configuration\": {\n    \"threads\": 4,\n    \"host\": null,\n    \"size\": \"uniform:1-10\"\n  },\n  \"command\": \"command\",\n")
+                .contains("\n  \"error\": \"java.lang.IllegalStateException: failed \\\"badly\\\"\",\n")
+                .contains("\n  \"bytes\": 200,\n  \"packets\": 2,\n")
+                .contains("\n  \"latencyP50Nanos\": " + expected.getValueAtPercentile(50) + ",\n")
+                // within a second, too short for any of the windows
+                .contains("\n  \"byteRate1s\": null,\n")
+                .contains("\n  \"packetRate1s\": null,\n  \"packetRate10s\": null,\n  \"packetRate60s\": null,\n")
+                .contains("\n  \"checksumFailures\": 1,\n")
+                // the warm-up's failure left out
+                .endsWith("\n  \"connectionFailures\": 0\n}\n")
+                .doesNotContain("connectP50Nanos");
+
+        String[] csv = result.toCsv().split("\n");
+        assertEquals(2, csv.length);
+        assertThat(csv[0]).startsWith("configuration.threads,configuration.host,configuration.size,command,error,seconds,bytes,packets,");
+        assertThat(csv[1]).startsWith("4,,uniform:1-10,command,\"java.lang.IllegalStateException: failed \"\"badly\"\"\",");
+        assertEquals(csv[0].split(",").length, csv[1].replace("\"\"", "").replaceAll("\"[^\"]*\"", "x").split(",", -1).length);
+    }
+
+    public static class Command
+    {
+        @Option(name = "--threads")
+        public int threads = 4;
+
+        @Option(name = "--host")
+        public String host;
+
+        @Option(name = "--size")
+        private SizeDistribution size = SizeDistribution.uniform(1, 10);
+
+        private int notAnOption;
+    }
+}
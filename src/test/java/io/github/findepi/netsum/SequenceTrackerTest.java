@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.junit.jupiter.api.Test;
+
+import static io.github.findepi.netsum.SequenceTracker.Arrival.DUPLICATE;
+import static io.github.findepi.netsum.SequenceTracker.Arrival.IN_ORDER;
+import static io.github.findepi.netsum.SequenceTracker.Arrival.LATE;
+import static io.github.findepi.netsum.SequenceTracker.Arrival.REORDERED;
+import static io.github.findepi.netsum.SequenceTracker.WINDOW;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SequenceTrackerTest
+{
+    @Test
+    public void testArrivals()
+    {
+        SequenceTracker tracker = new SequenceTracker();
+        assertEquals(IN_ORDER, tracker.record(0));
+        assertEquals(IN_ORDER, tracker.record(1));
+        assertEquals(IN_ORDER, tracker.record(3));
+        assertEquals(REORDERED, tracker.record(2));
+        assertEquals(DUPLICATE, tracker.record(2));
+        assertEquals(DUPLICATE, tracker.record(3));
+        assertEquals(IN_ORDER, tracker.record(10));
+        assertEquals(0, tracker.getLost());
+
+        tracker.complete(12);
+        // 4 to 9 and 11
+        assertEquals(7, tracker.getLost());
+    }
+
+    @Test
+    public void testWindow()
+    {
+        SequenceTracker tracker = new SequenceTracker();
+        tracker.record(1);
+        tracker.record(WINDOW - 1);
+        assertEquals(0, tracker.getLost());
+        tracker.record(WINDOW);
+        // 0 left the window
+        assertEquals(1, tracker.getLost());
+        assertEquals(LATE, tracker.record(0));
+        assertEquals(REORDERED, tracker.record(2));
+
+        tracker.record(10 * WINDOW);
+        // below 9 * WINDOW + 1, all but 1, 2, WINDOW - 1 and WINDOW
+        assertEquals(9 * WINDOW - 3, tracker.getLost());
+        assertEquals(DUPLICATE, tracker.record(10 * WINDOW));
+        assertEquals(REORDERED, tracker.record(9 * WINDOW + 1));
+
+        tracker.complete(10 * WINDOW + 1);
+        assertEquals(10 * WINDOW + 1 - 6, tracker.getLost());
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import com.google.common.io.MoreFiles;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.io.RecursiveDeleteOption.ALLOW_INSECURE;
+import static io.github.findepi.netsum.Io.readFully;
+import static io.github.findepi.netsum.Io.writeFully;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SharedMemoryTransportTest
+{
+    private static final int RING_SIZE = 4096;
+
+    @Test
+    public void testEcho()
+            throws Exception
+    {
+        Path directory = Files.createTempDirectory("shm");
+        Path file = directory.resolve("transport");
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try (SharedMemoryTransport transport = SharedMemoryTransport.create(file, RING_SIZE)) {
+            Future<Long> serving = executor.submit(() -> {
+                long echoed = 0;
+                // connections are served one after another
+                for (int connection = 0; connection < 2; connection++) {
+                    try (SharedMemoryChannel channel = transport.accept()) {
+                        ByteBuffer buffer = ByteBuffer.allocate(1000);
+                        while (channel.read(buffer) >= 0) {
+                            buffer.flip();
+                            echoed += channel.write(buffer);
+                            buffer.clear();
+                        }
+                    }
+                }
+                return echoed;
+            });
+
+            for (int connection = 0; connection < 2; connection++) {
+                // many times the ring size, with writes wrapping around the ring at varying offsets
+                byte[] data = new byte[100 * RING_SIZE + 17];
+                new Random(connection).nextBytes(data);
+                try (SharedMemoryChannel channel = SharedMemoryTransport.connect(file)) {
+                    Future<byte[]> reading = executor.submit(() -> {
+                        ByteBuffer response = ByteBuffer.allocate(data.length);
+                        readFully(channel, response);
+                        return response.array();
+                    });
+                    for (int offset = 0; offset < data.length; offset += 777) {
+                        writeFully(channel, ByteBuffer.wrap(data, offset, Math.min(777, data.length - offset)));
+                    }
+                    assertArrayEquals(data, reading.get(10, SECONDS));
+                }
+            }
+            assertEquals(2 * (100 * RING_SIZE + 17), (long) serving.get(10, SECONDS));
+        }
+        finally {
+            executor.shutdownNow();
+            MoreFiles.deleteRecursively(directory, ALLOW_INSECURE);
+        }
+    }
+
+    @Test
+    public void testPeerClosed()
+            throws Exception
+    {
+        Path directory = Files.createTempDirectory("shm");
+        Path file = directory.resolve("transport");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (SharedMemoryTransport transport = SharedMemoryTransport.create(file, RING_SIZE)) {
+            Future<SharedMemoryChannel> accepted = executor.submit(transport::accept);
+            try (SharedMemoryChannel channel = SharedMemoryTransport.connect(file)) {
+                SharedMemoryChannel serverChannel = accepted.get(10, SECONDS);
+                serverChannel.write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+                serverChannel.close();
+                // the server going on with the next connection does not disturb this one
+                accepted = executor.submit(transport::accept);
+
+                // the data written before closing is still read
+                ByteBuffer buffer = ByteBuffer.allocate(10);
+                assertEquals(3, channel.read(buffer));
+                assertEquals(-1, channel.read(buffer));
+                assertThatThrownBy(() -> channel.write(ByteBuffer.wrap(new byte[10])))
+                        .isInstanceOf(IOException.class)
+                        .hasMessage("Peer closed the connection");
+            }
+            try (SharedMemoryChannel channel = SharedMemoryTransport.connect(file)) {
+                accepted.get(10, SECONDS).close();
+                assertEquals(-1, channel.read(ByteBuffer.allocate(10)));
+            }
+
+            Files.write(directory.resolve("other"), new byte[8192]);
+            assertThatThrownBy(() -> SharedMemoryTransport.connect(directory.resolve("other")))
+                    .isInstanceOf(IOException.class)
+                    .hasMessageStartingWith("Not a shared memory transport file");
+        }
+        finally {
+            executor.shutdownNow();
+            MoreFiles.deleteRecursively(directory, ALLOW_INSECURE);
+        }
+    }
+
+    @Test
+    public void testPeerGone()
+            throws Exception
+    {
+        Path directory = Files.createTempDirectory("shm");
+        Path file = directory.resolve("transport");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Process client = null;
+        try (SharedMemoryTransport transport = SharedMemoryTransport.create(file, RING_SIZE)) {
+            Future<SharedMemoryChannel> accepted = executor.submit(transport::accept);
+            // locks on a file are per process, so the client abandoning its end runs in another one
+            client = new ProcessBuilder(
+                    Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp",
+                    System.getProperty("java.class.path"),
+                    AbandoningClient.class.getName(),
+                    file.toString())
+                    .inheritIO()
+                    .start();
+            try (SharedMemoryChannel channel = accepted.get(10, SECONDS)) {
+                ByteBuffer buffer = ByteBuffer.allocate(10);
+                assertEquals(1, channel.read(buffer));
+
+                client.destroyForcibly().waitFor();
+                buffer.clear();
+                assertEquals(-1, (int) executor.submit(() -> channel.read(buffer)).get(10, SECONDS));
+                assertThatThrownBy(() -> channel.write(ByteBuffer.wrap(new byte[2 * RING_SIZE])))
+                        .isInstanceOf(IOException.class)
+                        .hasMessage("Peer is gone");
+            }
+
+            // the server goes on with the next client
+            accepted = executor.submit(transport::accept);
+            try (SharedMemoryChannel channel = SharedMemoryTransport.connect(file);
+                    SharedMemoryChannel serverChannel = accepted.get(10, SECONDS)) {
+                channel.write(ByteBuffer.wrap(new byte[] {42}));
+                ByteBuffer buffer = ByteBuffer.allocate(10);
+                assertEquals(1, serverChannel.read(buffer));
+                assertEquals(42, buffer.get(0));
+            }
+        }
+        finally {
+            if (client != null) {
+                client.destroyForcibly();
+            }
+            executor.shutdownNow();
+            MoreFiles.deleteRecursively(directory, ALLOW_INSECURE);
+        }
+    }
+
+    public static final class AbandoningClient
+    {
+        private AbandoningClient() {}
+
+        public static void main(String[] args)
+                throws Exception
+        {
+            SharedMemoryChannel channel = SharedMemoryTransport.connect(Paths.get(args[0]));
+            channel.write(ByteBuffer.wrap(new byte[] {1}));
+            // never closed, until the process is killed
+            Thread.sleep(Long.MAX_VALUE);
+        }
+    }
+}
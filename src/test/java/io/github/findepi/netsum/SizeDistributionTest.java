@@ -0,0 +1,114 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static io.github.findepi.netsum.SizeDistribution.fromString;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SizeDistributionTest
+{
+    @Test
+    public void testFixed()
+    {
+        SizeDistribution sizes = fromString("1000");
+        assertEquals(1000, sizes.next(new Random()));
+        assertEquals(1000, sizes.getMin());
+        assertEquals(1000, sizes.getMax());
+        assertEquals(1000, sizes.getMean(), 0);
+        assertEquals("1000", sizes.toString());
+    }
+
+    @Test
+    public void testUniform()
+    {
+        SizeDistribution sizes = fromString("uniform:10-13");
+        assertEquals(10, sizes.getMin());
+        assertEquals(13, sizes.getMax());
+        assertEquals(11.5, sizes.getMean(), 0);
+
+        int[] counts = sample(sizes, 14, 40_000);
+        for (int size = 10; size <= 13; size++) {
+            assertThat(counts[size]).isBetween(9_000, 11_000);
+        }
+        assertEquals(40_000, counts[10] + counts[11] + counts[12] + counts[13]);
+    }
+
+    @Test
+    public void testWeighted()
+    {
+        SizeDistribution sizes = fromString("weighted:100=9, 10=0, 1000=1");
+        assertEquals(100, sizes.getMin());
+        assertEquals(1000, sizes.getMax());
+        assertEquals(190, sizes.getMean(), 1e-9);
+
+        int[] counts = sample(sizes, 1001, 100_000);
+        assertEquals(0, counts[10]);
+        assertThat(counts[100]).isBetween(89_000, 91_000);
+        assertEquals(100_000, counts[100] + counts[1000]);
+
+        assertEquals("weighted:10=1,20=3", SizeDistribution.weighted(ImmutableMap.of(20, 3L, 10, 1L)).toString());
+    }
+
+    @Test
+    public void testHistogram()
+            throws Exception
+    {
+        Path file = Files.createTempFile("sizes", ".txt");
+        try {
+            Files.write(file, "# size count\n64 3\n\n4096, 1\n8192 0\n64 4\n".getBytes(UTF_8));
+            SizeDistribution sizes = fromString("histogram:" + file);
+            assertEquals(64, sizes.getMin());
+            assertEquals(4096, sizes.getMax());
+            assertEquals((64 * 7 + 4096) / 8., sizes.getMean(), 1e-9);
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testInvalid()
+    {
+        assertThatThrownBy(() -> fromString("x"))
+                .hasMessage("Invalid size: x");
+        assertThatThrownBy(() -> fromString("uniform:10-5"))
+                .hasMessage("Invalid range: 10-5");
+        assertThatThrownBy(() -> fromString("weighted:"))
+                .hasMessage("No sizes");
+        assertThatThrownBy(() -> fromString("weighted:10=-1"))
+                .hasMessage("Invalid weight of size 10: -1");
+        assertThatThrownBy(() -> fromString("normal:10"))
+                .hasMessage("Unknown size distribution: normal:10");
+    }
+
+    private static int[] sample(SizeDistribution sizes, int maxSize, int samples)
+    {
+        Random random = new Random(42);
+        int[] counts = new int[maxSize];
+        for (int i = 0; i < samples; i++) {
+            counts[sizes.next(random)]++;
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SizeStatsTest
+{
+    @Test
+    public void testSizeBuckets()
+    {
+        assertEquals(0, SizeStats.sizeBucket(0));
+        assertEquals(0, SizeStats.sizeBucket(1));
+        assertEquals(1, SizeStats.sizeBucket(2));
+        assertEquals(12, SizeStats.sizeBucket(4096));
+        assertEquals(13, SizeStats.sizeBucket(4097));
+        assertEquals(31, SizeStats.sizeBucket(Integer.MAX_VALUE));
+
+        SizeStats sizes = new SizeStats();
+        sizes.record(100, 1000);
+        sizes.record(128, 1000);
+        sizes.record(5000, 1000);
+        assertEquals(228, sizes.getTotalBytes(7));
+        assertEquals(2, sizes.getTotalPackets(7));
+        assertEquals(1, sizes.getTotalPackets(13));
+        assertEquals(0, sizes.getTotalPackets(12));
+    }
+}
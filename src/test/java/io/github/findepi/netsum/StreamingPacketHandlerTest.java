@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+import static io.github.findepi.netsum.Packets.createPacket;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StreamingPacketHandlerTest
+{
+    private static final int CHUNK_SIZE = 4096;
+
+    @Test
+    public void testReverse()
+            throws IOException
+    {
+        BufferPool bufferPool = new BufferPool(CHUNK_SIZE);
+        TransferStats stats = new TransferStats();
+        try (StreamingPacketHandler handler = new StreamingPacketHandler(bufferPool, CHUNK_SIZE, stats)) {
+            for (int length : new int[] {8, 100, CHUNK_SIZE, 3 * CHUNK_SIZE, 3 * CHUNK_SIZE + 17, 100_000, 50}) {
+                byte[] packet = new byte[length];
+                createPacket(packet, 0, length, length);
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                handler.handle(Channels.newChannel(new ByteArrayInputStream(packet)), Channels.newChannel(output), length);
+
+                byte[] expected = packet.clone();
+                Server.reverse(expected, 0, length);
+                assertArrayEquals(expected, output.toByteArray());
+            }
+        }
+        assertEquals(7, stats.getPacketsIn());
+        assertEquals(7, stats.getPacketsOut());
+        assertEquals(0, bufferPool.getBytesOutstanding());
+    }
+
+    @Test
+    public void testChecksumFailure()
+            throws IOException
+    {
+        int length = 3 * CHUNK_SIZE;
+        byte[] packet = new byte[length];
+        createPacket(packet, 0, length, 42);
+        packet[2 * CHUNK_SIZE + 5]++;
+
+        TransferStats stats = new TransferStats();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (StreamingPacketHandler handler = new StreamingPacketHandler(new BufferPool(CHUNK_SIZE), CHUNK_SIZE, stats)) {
+            assertThatThrownBy(() -> handler.handle(Channels.newChannel(new ByteArrayInputStream(packet)), Channels.newChannel(output), length))
+                    .isInstanceOf(IllegalArgumentException.class)
+                    .hasMessageStartingWith("Checksum failed");
+        }
+        assertEquals(1, stats.getChecksumFailures());
+        assertEquals(0, output.size());
+    }
+}
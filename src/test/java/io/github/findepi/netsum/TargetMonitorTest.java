@@ -0,0 +1,51 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.junit.jupiter.api.Test;
+
+import static io.github.findepi.netsum.TargetMonitor.isSlow;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TargetMonitorTest
+{
+    @Test
+    public void testSlowTarget()
+    {
+        // comparable targets
+        long[] latencies = {100_000, 150_000, 120_000};
+        double[] rates = {1000, 700, 900};
+        for (int i = 0; i < 3; i++) {
+            assertFalse(isSlow(i, latencies, rates));
+        }
+
+        // latency, e.g. when sending at a fixed rate, which keeps packet rates alike
+        latencies = new long[] {100_000, 500_000};
+        rates = new double[] {1000, 1000};
+        assertFalse(isSlow(0, latencies, rates));
+        assertTrue(isSlow(1, latencies, rates));
+
+        // packet rate, down to nothing for a stalled target
+        latencies = new long[] {100_000, 0, 110_000};
+        rates = new double[] {1000, 0, 1000};
+        assertFalse(isSlow(0, latencies, rates));
+        assertTrue(isSlow(1, latencies, rates));
+        assertFalse(isSlow(2, latencies, rates));
+
+        // nothing to compare with
+        assertFalse(isSlow(0, new long[] {100_000}, new double[] {1000}));
+        assertFalse(isSlow(0, new long[] {0, 0}, new double[] {0, 0}));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static io.github.findepi.netsum.Targets.fromString;
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TargetsTest
+{
+    @Test
+    public void testParse()
+    {
+        Targets targets = fromString("a.example:8080, 10.0.0.2:9000=3,[::1]:7000=2");
+        List<Targets.Target> list = targets.getTargets();
+        assertEquals(3, list.size());
+        assertEquals("a.example:8080", list.get(0).toString());
+        assertEquals(1, list.get(0).getWeight());
+        assertEquals("10.0.0.2:9000", list.get(1).toString());
+        assertEquals(3, list.get(1).getWeight());
+        assertEquals("[::1]:7000", list.get(2).toString());
+        assertEquals(2, list.get(2).getWeight());
+        assertEquals(7000, list.get(2).getAddress().getPort());
+
+        assertThatThrownBy(() -> fromString("host"))
+                .hasMessage("Invalid target, HOST:PORT expected: host");
+        assertThatThrownBy(() -> fromString("host:0"))
+                .hasMessage("Invalid port: 0");
+        assertThatThrownBy(() -> fromString("host:80=0"))
+                .hasMessage("Invalid weight: 0");
+        assertThatThrownBy(() -> fromString(" , "))
+                .hasMessage("No targets");
+    }
+
+    @Test
+    public void testAssign()
+    {
+        Targets targets = fromString("a:1,b:2");
+        assertThat(names(targets.assign(5))).containsExactly("a:1", "b:2", "a:1", "b:2", "a:1");
+
+        // in proportion to the weights, interleaved
+        Targets weighted = fromString("a:1=5,b:2=1,c:3=1");
+        assertThat(names(weighted.assign(7))).containsExactly("a:1", "a:1", "b:2", "a:1", "c:3", "a:1", "a:1");
+        assertThat(names(weighted.assign(70))).filteredOn("a:1"::equals).hasSize(50);
+
+        assertThatThrownBy(() -> weighted.assign(2))
+                .hasMessage("Fewer connections than targets: 2");
+    }
+
+    @Test
+    public void testAssignSkewed()
+    {
+        // a weight too small for a connection by proportion still gets one
+        Targets skewed = fromString("a:1=100,b:2=1");
+        assertThat(names(skewed.assign(2))).containsExactlyInAnyOrder("a:1", "b:2");
+
+        List<String> assignment = names(fromString("a:1=100,b:2=1,c:3=1").assign(10));
+        assertThat(assignment).filteredOn("a:1"::equals).hasSize(8);
+        assertThat(assignment).contains("b:2", "c:3");
+    }
+
+    private static List<String> names(List<Targets.Target> targets)
+    {
+        return targets.stream()
+                .map(Targets.Target::toString)
+                .collect(toList());
+    }
+}
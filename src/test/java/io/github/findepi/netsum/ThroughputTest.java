@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.junit.jupiter.api.Test;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ThroughputTest
+{
+    private static final long START = 1_000;
+
+    @Test
+    public void testTotals()
+    {
+        Throughput throughput = new Throughput(command -> {}, START);
+        throughput.add(100);
+        throughput.add(50);
+        assertEquals(150, throughput.getTotalBytes());
+        assertEquals(2, throughput.getTotalPackets());
+    }
+
+    @Test
+    public void testWindowedRates()
+    {
+        Throughput throughput = new Throughput(command -> {}, START);
+        assertEquals(0, throughput.getByteRate(1), 0);
+        assertEquals(0, throughput.getDecayedByteRate(), 0);
+
+        // 1000 bytes/s in 10 packets/s for 30 seconds, then 4000 bytes/s in 20 packets/s for 10 seconds
+        for (int second = 1; second <= 40; second++) {
+            for (int i = 0; i < (second <= 30 ? 10 : 20); i++) {
+                throughput.add(second <= 30 ? 100 : 200);
+            }
+            throughput.sample(START + SECONDS.toNanos(second));
+        }
+
+        assertEquals(4000, throughput.getByteRate(1), 1e-6);
+        assertEquals(4000, throughput.getByteRate(10), 1e-6);
+        assertEquals(20, throughput.getPacketRate(10), 1e-6);
+        assertEquals((20 * 1000 + 10 * 4000) / 30., throughput.getByteRate(30), 1e-6);
+        // only 40 seconds of history
+        assertEquals((30 * 1000 + 10 * 4000) / 40., throughput.getByteRate(60), 1e-6);
+        assertEquals(15, throughput.getPacketRate(20), 1e-6);
+
+        double decayed = throughput.getDecayedByteRate();
+        assertEquals(1000 + 3000 * (1 - Math.exp(-10. / 60)), decayed, 1e-6);
+    }
+
+    @Test
+    public void testConnectionRate()
+    {
+        Throughput throughput = new Throughput(command -> {}, START);
+        for (int second = 1; second <= 20; second++) {
+            for (int i = 0; i < second; i++) {
+                throughput.addConnection();
+            }
+            throughput.sample(START + SECONDS.toNanos(second));
+        }
+        assertEquals(210, throughput.getTotalConnections());
+        assertEquals(20, throughput.getConnectionRate(1), 1e-6);
+        assertEquals(15.5, throughput.getConnectionRate(10), 1e-6);
+        assertEquals(0, throughput.getPacketRate(10), 1e-6);
+    }
+
+    @Test
+    public void testWindowWrapsAround()
+    {
+        Throughput throughput = new Throughput(command -> {}, START);
+        for (int second = 1; second <= 200; second++) {
+            throughput.add(second);
+            throughput.sample(START + SECONDS.toNanos(second));
+        }
+        assertEquals(200, throughput.getByteRate(1), 1e-6);
+        assertEquals((141 + 200) / 2., throughput.getByteRate(60), 1e-6);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import com.google.common.io.MoreFiles;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.io.RecursiveDeleteOption.ALLOW_INSECURE;
+import static io.github.findepi.netsum.Io.transferFully;
+import static io.github.findepi.netsum.Packets.createPacket;
+import static io.github.findepi.netsum.TrafficCapture.segmentPath;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TrafficCaptureTest
+{
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Test
+    public void testRecordAndReplay()
+            throws Exception
+    {
+        Path directory = Files.createTempDirectory("capture");
+        try {
+            Path file = directory.resolve("capture");
+            List<byte[]> packets = new ArrayList<>();
+            ByteArrayOutputStream frames = new ByteArrayOutputStream();
+            try (TrafficRecorder recorder = new TrafficRecorder(file, SEGMENT_SIZE, false)) {
+                for (int length : new int[] {8, 100, 3000, 1000, 2 * SEGMENT_SIZE, 50, 1000, 1000, 1000, 1000}) {
+                    byte[] packet = new byte[length];
+                    createPacket(packet, 0, length, length);
+                    packets.add(packet);
+                    recorder.record(ProtocolVersion.V1, ByteBuffer.wrap(packet));
+                    frames.write(ByteBuffer.allocate(Integer.BYTES).putInt(length).array());
+                    frames.write(packet);
+                }
+            }
+            assertTrue(Files.exists(segmentPath(file, 3)));
+            assertFalse(Files.exists(segmentPath(file, 4)));
+
+            try (TrafficCapture capture = TrafficCapture.open(file)) {
+                assertEquals(ProtocolVersion.V1, capture.getVersion());
+                assertEquals(packets.size(), capture.getPackets());
+                assertEquals(4, capture.getSegments());
+                assertEquals(8, capture.getMinPacketLength());
+                assertEquals(2 * SEGMENT_SIZE, capture.getMaxPacketLength());
+
+                // frames are stored as sent, and the cursor starts over after the last packet
+                ByteArrayOutputStream sent = new ByteArrayOutputStream();
+                TrafficCapture.Cursor cursor = capture.newCursor();
+                for (int i = 0; i < 2 * packets.size(); i++) {
+                    assertArrayEquals(packets.get(i % packets.size()), cursor.packet().getBytes());
+                    if (i < packets.size()) {
+                        transferFully(cursor.file(), cursor.frameStart(), cursor.frameEnd() - cursor.frameStart(), Channels.newChannel(sent));
+                    }
+                    cursor.next();
+                }
+                assertArrayEquals(frames.toByteArray(), sent.toByteArray());
+            }
+
+            // a new recording replaces the segments only when asked to
+            assertThatThrownBy(() -> new TrafficRecorder(file, SEGMENT_SIZE, false))
+                    .isInstanceOf(FileAlreadyExistsException.class);
+            try (TrafficCapture capture = TrafficCapture.open(file)) {
+                assertEquals(packets.size(), capture.getPackets());
+            }
+            try (TrafficRecorder recorder = new TrafficRecorder(file, SEGMENT_SIZE, true)) {
+                recorder.record(ProtocolVersion.V1, ByteBuffer.wrap(packets.get(1)));
+            }
+            try (TrafficCapture capture = TrafficCapture.open(file)) {
+                assertEquals(1, capture.getPackets());
+            }
+        }
+        finally {
+            MoreFiles.deleteRecursively(directory, ALLOW_INSECURE);
+        }
+    }
+
+    @Test
+    public void testUnfinishedSegment()
+            throws Exception
+    {
+        Path directory = Files.createTempDirectory("capture");
+        try {
+            Path file = directory.resolve("capture");
+            byte[] packet = new byte[100];
+            createPacket(packet, 0, packet.length, 42);
+            // not closed, as after a crash
+            TrafficRecorder recorder = new TrafficRecorder(file, SEGMENT_SIZE, false);
+            recorder.record(ProtocolVersion.V1, ByteBuffer.wrap(packet));
+            recorder.record(ProtocolVersion.V1, ByteBuffer.wrap(packet));
+            assertEquals(SEGMENT_SIZE, Files.size(segmentPath(file, 0)));
+
+            try (TrafficCapture capture = TrafficCapture.open(file)) {
+                assertEquals(2, capture.getPackets());
+            }
+            recorder.close();
+        }
+        finally {
+            MoreFiles.deleteRecursively(directory, ALLOW_INSECURE);
+        }
+    }
+
+    @Test
+    public void testEmptyLastSegment()
+            throws Exception
+    {
+        Path directory = Files.createTempDirectory("capture");
+        try {
+            Path file = directory.resolve("capture");
+            try (TrafficRecorder recorder = new TrafficRecorder(file, SEGMENT_SIZE, false)) {
+                recorder.record(ProtocolVersion.V1, ByteBuffer.allocate(100));
+                recorder.close();
+                assertThatThrownBy(() -> recorder.record(ProtocolVersion.V1, ByteBuffer.allocate(100)))
+                        .isInstanceOf(ClosedChannelException.class);
+            }
+            // a segment started right before a crash
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_SIZE);
+            header.putInt(TrafficCapture.MAGIC).putInt(TrafficCapture.FORMAT_VERSION).putInt(ProtocolVersion.V1.getId());
+            Files.write(segmentPath(file, 1), header.array());
+
+            try (TrafficCapture capture = TrafficCapture.open(file)) {
+                assertEquals(1, capture.getPackets());
+                assertEquals(1, capture.getSegments());
+            }
+
+            // but not in the middle of a capture
+            Files.copy(segmentPath(file, 0), segmentPath(file, 2));
+            assertThatThrownBy(() -> TrafficCapture.open(file))
+                    .isInstanceOf(IllegalArgumentException.class)
+                    .hasMessageStartingWith("No packets in");
+        }
+        finally {
+            MoreFiles.deleteRecursively(directory, ALLOW_INSECURE);
+        }
+    }
+
+    @Test
+    public void testMixedProtocols()
+            throws Exception
+    {
+        Path directory = Files.createTempDirectory("capture");
+        try {
+            Path file = directory.resolve("capture");
+            try (TrafficRecorder recorder = new TrafficRecorder(file, SEGMENT_SIZE, false)) {
+                recorder.record(ProtocolVersion.V1, ByteBuffer.allocate(100));
+                recorder.record(ProtocolVersion.V2, ByteBuffer.allocate(100));
+            }
+            assertThatThrownBy(() -> TrafficCapture.open(file))
+                    .isInstanceOf(IllegalArgumentException.class)
+                    .hasMessage("Segments of protocol V1 and V2, replaying mixed protocols is not supported");
+            assertThatThrownBy(() -> TrafficCapture.open(directory.resolve("missing")))
+                    .isInstanceOf(IllegalArgumentException.class)
+                    .hasMessageStartingWith("No capture found");
+        }
+        finally {
+            MoreFiles.deleteRecursively(directory, ALLOW_INSECURE);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.junit.jupiter.api.Test;
+
+import static io.github.findepi.netsum.TransferStats.Phase.READ;
+import static io.github.findepi.netsum.TransferStats.Phase.VERIFY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TransferStatsTest
+{
+    @Test
+    public void testConnectionsAddUp()
+    {
+        TransferStats stats = new TransferStats();
+        TransferStats first = stats.connectionOpened();
+        TransferStats second = stats.connectionOpened();
+        assertEquals(2, stats.getActiveConnections());
+        assertEquals(2, stats.getTotalConnections());
+
+        first.addIn(100);
+        first.addOut(100);
+        second.addIn(50);
+        second.checksumFailed();
+        first.addPhaseNanos(READ, 10);
+        second.addPhaseNanos(READ, 5);
+        second.addPhaseNanos(VERIFY, 7);
+
+        assertEquals(100, first.getBytesIn());
+        assertEquals(1, first.getPacketsIn());
+        assertEquals(0, first.getChecksumFailures());
+        assertEquals(150, stats.getBytesIn());
+        assertEquals(2, stats.getPacketsIn());
+        assertEquals(100, stats.getBytesOut());
+        assertEquals(1, stats.getPacketsOut());
+        assertEquals(1, stats.getChecksumFailures());
+        assertEquals(15, stats.getReadNanos());
+        assertEquals(7, stats.getVerifyNanos());
+        assertEquals(0, stats.getWriteNanos());
+
+        first.connectionClosed();
+        assertEquals(1, stats.getActiveConnections());
+        assertEquals(2, stats.getTotalConnections());
+    }
+
+    @Test
+    public void testGroupsAddUp()
+    {
+        TransferStats stats = new TransferStats();
+        TransferStats group = stats.newGroup();
+        TransferStats other = stats.newGroup();
+        TransferStats connection = group.connectionOpened();
+        other.connectionOpened();
+        assertEquals(1, group.getActiveConnections());
+        assertEquals(2, stats.getActiveConnections());
+        assertEquals(2, stats.getTotalConnections());
+
+        connection.addIn(100);
+        connection.addPhaseNanos(READ, 10);
+        assertEquals(100, group.getBytesIn());
+        assertEquals(0, other.getBytesIn());
+        assertEquals(100, stats.getBytesIn());
+        assertEquals(10, stats.getReadNanos());
+
+        connection.connectionClosed();
+        assertEquals(0, group.getActiveConnections());
+        assertEquals(1, group.getTotalConnections());
+        assertEquals(1, stats.getActiveConnections());
+        assertEquals(2, stats.getTotalConnections());
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.findepi.netsum;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static io.github.findepi.netsum.Packets.createPacket;
+import static io.github.findepi.netsum.UdpServer.DATAGRAM_HEADER_LENGTH;
+import static java.util.Arrays.copyOfRange;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class UdpServerTest
+{
+    @Test
+    public void testLoopback()
+            throws Exception
+    {
+        TransferStats stats = new TransferStats();
+        UdpServer server = new UdpServer(0, new Throughput(command -> {}), stats);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        DatagramChannel serverChannel = DatagramChannel.open();
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Future<?> serving = executor.submit(() -> {
+                server.serve(serverChannel);
+                return null;
+            });
+            channel.connect(serverChannel.getLocalAddress());
+
+            byte[] corrupted = datagram(1, 100);
+            corrupted[DATAGRAM_HEADER_LENGTH + 50]++;
+            channel.write(ByteBuffer.wrap(corrupted));
+            channel.write(ByteBuffer.wrap(new byte[DATAGRAM_HEADER_LENGTH]));
+            for (int length : new int[] {8, 1000, UdpServer.MAX_DATAGRAM_LENGTH - DATAGRAM_HEADER_LENGTH}) {
+                byte[] datagram = datagram(length, length);
+                channel.write(ByteBuffer.wrap(datagram));
+
+                // the invalid datagrams are dropped, answers come in order over loopback
+                ByteBuffer response = ByteBuffer.allocate(UdpServer.MAX_DATAGRAM_LENGTH);
+                channel.read(response);
+                byte[] expected = datagram.clone();
+                Server.reverse(expected, DATAGRAM_HEADER_LENGTH, length);
+                assertArrayEquals(expected, copyOfRange(response.array(), 0, response.position()));
+            }
+
+            // stops the server
+            serverChannel.close();
+            serving.get(10, SECONDS);
+        }
+        finally {
+            serverChannel.close();
+            executor.shutdownNow();
+        }
+        assertEquals(5, stats.getPacketsIn());
+        assertEquals(3, stats.getPacketsOut());
+        // without the datagram headers
+        int answered = 8 + 1000 + UdpServer.MAX_DATAGRAM_LENGTH - DATAGRAM_HEADER_LENGTH;
+        assertEquals(100 + answered, stats.getBytesIn());
+        assertEquals(answered, stats.getBytesOut());
+        assertEquals(1, stats.getChecksumFailures());
+    }
+
+    private static byte[] datagram(long sequence, int length)
+    {
+        byte[] datagram = new byte[DATAGRAM_HEADER_LENGTH + length];
+        ByteBuffer.wrap(datagram).putLong(sequence).putLong(System.nanoTime());
+        createPacket(datagram, DATAGRAM_HEADER_LENGTH, length, sequence);
+        return datagram;
+    }
+}